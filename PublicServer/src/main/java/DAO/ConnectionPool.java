@@ -0,0 +1,196 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionPool {
+
+    /**
+     * Bounded pool of DB connections, shared by all DB_Clients calls.
+     *
+     * - Connections are opened lazily, up to maxSize, and reused afterwards.
+     *   This keeps the TCP and MySQL auth handshakes out of the login path.
+     * - A caller waits at most acquireTimeoutMs for a free connection. Borrowing takes one of maxSize permits,
+     *   returned when the connection is released or discarded, so a waiter is woken as soon as any
+     *   connection comes back or room is made to open a new one. Waiters are served in order.
+     * - Every connection keeps its own cache of prepared statements (see PooledConnection).
+     * - Wait times are recorded, to size the pool against the login load.
+     */
+
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    // Connections idle longer than this are validated before being handed out
+    private static final long VALIDATE_AFTER_IDLE_MS = 30 * 1000;
+
+    private final ConnectionFactory factory;
+    private final BlockingQueue<PooledConnection> idle;
+    private final int maxSize;
+    private final long acquireTimeoutMs;
+    private final AtomicInteger openConnections;
+    private final Semaphore permits; // One per connection that may be borrowed
+    private volatile boolean closed;
+
+    // Metrics
+    private final AtomicLong acquisitions;
+    private final AtomicLong timeouts;
+    private final AtomicLong totalWaitNanos;
+    private final AtomicLong maxWaitNanos;
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long acquireTimeoutMs) {
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        idle = new ArrayBlockingQueue<>(maxSize);
+        openConnections = new AtomicInteger();
+        permits = new Semaphore(maxSize, true);
+        closed = false;
+        acquisitions = new AtomicLong();
+        timeouts = new AtomicLong();
+        totalWaitNanos = new AtomicLong();
+        maxWaitNanos = new AtomicLong();
+    }
+
+    // Release by closing the returned connection (try-with-resources)
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("No DB connection available");
+            }
+            try {
+                PooledConnection connection = idleOrNew();
+                connection.lend();
+                return connection;
+            } catch (SQLException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for DB connection");
+        } finally {
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    // Called by PooledConnection.close()
+    void release(PooledConnection connection) {
+        try {
+            if (closed || connection.isBroken() || !idle.offer(connection)) {
+                discard(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            discard(connection);
+        }
+    }
+
+    // ============================================ METRICS =======================================================
+
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getAverageWaitMicros() {
+        long count = acquisitions.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / count);
+    }
+
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    // Called holding a permit. Open connections never outnumber the permits, so with none idle there is room for a new one
+    // (unless one is being released right now: then it is taken from idle on the next round).
+    private PooledConnection idleOrNew() throws SQLException {
+        while (true) {
+            PooledConnection connection = idle.poll();
+            if (connection == null) {
+                connection = tryOpen();
+                if (connection != null) {
+                    return connection;
+                }
+            } else if (isUsable(connection)) {
+                return connection;
+            } else {
+                discard(connection);
+            }
+        }
+    }
+
+    // Opens a new connection if the pool is not yet at its max size. Returns null otherwise.
+    private PooledConnection tryOpen() throws SQLException {
+        while (true) {
+            int open = openConnections.get();
+            if (open >= maxSize) {
+                return null;
+            }
+            if (openConnections.compareAndSet(open, open + 1)) {
+                break;
+            }
+        }
+        try {
+            return new PooledConnection(this, factory.create());
+        } catch (SQLException e) {
+            openConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledConnection connection) {
+        try {
+            if (connection.getConnection().isClosed()) {
+                return false;
+            }
+            return connection.getIdleMillis() < VALIDATE_AFTER_IDLE_MS || connection.getConnection().isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void discard(PooledConnection connection) {
+        openConnections.decrementAndGet();
+        connection.closePhysical();
+    }
+
+    private void recordWait(long waitNanos) {
+        acquisitions.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        long max;
+        while (waitNanos > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+                break;
+            }
+        }
+    }
+}
@@ -5,6 +5,10 @@ import org.json.simple.JSONObject;
 
 
 import java.sql.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class DB_Clients {
 
@@ -15,17 +19,55 @@ public class DB_Clients {
     private String account;
     private String password;
 
-    //DB operations
-    private Connection connection;
-    private PreparedStatement preparedStatement;
-    private ResultSet resultSet;
+    //DB operations: Pooled connections, shared by concurrent calls. No per-call state is kept in fields.
+    private ConnectionPool pool;
+    // Verified session keys, answering automatic logins without DB queries
+    private final SessionKeyCache sessionKeyCache;
+    // Batched session key INSERTs and DELETEs
+    private final SessionKeyWriter sessionKeyWriter;
 
-    // Lock object
-    private final Object lock_db;
+    // SQL
+    private static final String SQL_USER_LOGIN = "SELECT client_hub_hubId, isAdmin FROM hoso.client_user WHERE nameId = ? AND pass = ?;";
+    private static final String SQL_SESSION_USER = "SELECT u.client_hub_hubId, u.isAdmin FROM hoso.client_session s JOIN hoso.client_user u ON u.nameId = s.client_user_nameId WHERE s.sessionKey = ? AND s.client_user_nameId = ?;";
+    private static final String SQL_HUB_LOGIN = "SELECT hubId, pass FROM hoso.client_hub WHERE hubId = ? AND pass = ?;";
+
+    // Max wait for a batched session key write to be committed
+    private static final long WRITE_TIMEOUT_MS = 10 * 1000;
 
     public DB_Clients() {
         setDbSpecs();
-        lock_db = new Object();
+        final String url = "jdbc:mysql://" + ip + ":" + port + "/" + database + "?useSSL=false&rewriteBatchedStatements=true&user=" + account + "&password=" + password + "&serverTimezone=UTC";
+        int poolSize = 10;
+        long poolTimeoutMs = 5000;
+        int cacheSize = 10000;
+        long cacheTtlMs = 300 * 1000;
+        long writeFlushMs = 5;
+        int writeBatchSize = 100;
+        try {
+            poolSize = Server.getInstance().settings.getDbPoolSize();
+            poolTimeoutMs = Server.getInstance().settings.getDbPoolTimeoutMs();
+            cacheSize = Server.getInstance().settings.getSessionCacheSize();
+            cacheTtlMs = Server.getInstance().settings.getSessionCacheTtlSeconds() * 1000L;
+            writeFlushMs = Server.getInstance().settings.getSessionWriteFlushMs();
+            writeBatchSize = Server.getInstance().settings.getSessionWriteBatchSize();
+        } catch (Exception e) {
+            System.out.println("Unable to read DB pool settings from Settings.");
+        }
+        sessionKeyCache = new SessionKeyCache(cacheSize, cacheTtlMs);
+        pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection create() throws SQLException {
+                return DriverManager.getConnection(url);
+            }
+        }, poolSize, poolTimeoutMs);
+        sessionKeyWriter = new SessionKeyWriter(pool, writeFlushMs, writeBatchSize);
+    }
+
+    // Use another source of connections (e.g. a local DB stand-in)
+    public DB_Clients(ConnectionPool pool, SessionKeyCache sessionKeyCache, SessionKeyWriter sessionKeyWriter) {
+        this.pool = pool;
+        this.sessionKeyCache = sessionKeyCache;
+        this.sessionKeyWriter = sessionKeyWriter;
     }
 
     private void setDbSpecs() {
@@ -42,45 +84,37 @@ public class DB_Clients {
         }
     }
 
-    private void connect() {
-        connection = null;
-
-        //System.out.println(ip+port+database+"<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<");
-
-        String url = "jdbc:mysql://" + ip + ":" + port + "/" + database + "?useSSL=false&user=" + account + "&password=" + password + "&serverTimezone=UTC";
+    private PooledConnection connect() throws Exception {
         try {
-            connection = DriverManager.getConnection(url);
-            preparedStatement = null;
+            return pool.acquire();
         } catch (SQLException ex) {
             System.out.println("DB_Clients connection error");
             System.out.println(ex.getMessage());
-            closeConnection();
+            throw new Exception("Unable to connect to database");
         }
     }
 
-    private void closeConnection() {
-        if (resultSet != null) {
-            try {
-                resultSet.close();
-            } catch (SQLException e) {
-                System.out.println("Error on closing DB_Clients ResultSet");
-            }
-        }
+    public ConnectionPool getPool() {
+        return pool;
+    }
 
-        if (preparedStatement != null) {
-            try {
-                preparedStatement.close();
-                preparedStatement = null;
-            } catch (SQLException e) {
-                System.out.println("Error on closing DB_Clients PreparedStatement");
-            }
-        }
-        if (connection != null) {
-            try {
-                connection.close();
-            } catch (SQLException e) {
-                System.out.println("Error on closing DB_Clients connection");
-            }
+    public SessionKeyCache getSessionKeyCache() {
+        return sessionKeyCache;
+    }
+
+    public void close() {
+        sessionKeyWriter.close();
+        pool.close();
+    }
+
+    // Wait for a batched session key write to be committed. Returns number of affected rows
+    private int awaitWrite(CompletableFuture<Integer> write) throws Exception {
+        try {
+            return write.get(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new Exception("Error on SQL query. Code 1");
+        } catch (TimeoutException e) {
+            throw new Exception("Server unable to update session key. Code 2");
         }
     }
 
@@ -96,47 +130,48 @@ public class DB_Clients {
         // Throws exception with custom exception msg; eg. "Login failed. Connection is good" (Will be sent to the client)
         // See example implementation with prepared statements at bottom of this page.
 
-        connect();
+        long cacheGeneration = sessionKeyCache.getGeneration();
+        PooledConnection connection = connect();
         JSONObject items = new JSONObject();
         int results = 0;
         try {
-                  // Get hubID and admin-state
-                  preparedStatement = connection.prepareStatement("SELECT client_hub_hubId, isAdmin FROM hoso.client_user WHERE nameId = ? AND pass = ?;");
-                  preparedStatement.setString(1, nameID);
-                  preparedStatement.setString(2, password);
-                  resultSet = preparedStatement.executeQuery();
-
-                  //Note: If Query gives no result, the while(next) below won't launch.
-                  while (resultSet.next()) {
-                      results++;
-                      //We already have user name from the method parameters (so we don't need to acquire it from DB_Users).
-                      int hubID = resultSet.getInt("client_hub_hubId"); // As String, while it is an integer in MySQL
-                      boolean admin = resultSet.getBoolean("isAdmin");
-
-                      items.put("hubId", hubID);
-                      items.put("isAdmin", admin);
-                  }
-
-                  if (results != 1) { //If there was to few matches, or for some reason, multiple matches.
-                      // This will be sent to the user before closing the connection.
-                      throw new Exception("Login failed. Connection is good");
-                  }
-                  // Update sessionKey to DB_Users
-                  preparedStatement = connection.prepareStatement("INSERT INTO hoso.client_session (sessionKey, client_user_nameId) VALUES (?, ?);");
-                  preparedStatement.setString(1, newSessionKey);
-                  preparedStatement.setString(2, nameID);
-                  results = preparedStatement.executeUpdate();
-                  if (results != 1) {
-                      throw new Exception("Server unable to update session key. Code 1");
-                  }
-              } catch (SQLException e) {
-                  throw new Exception("Error on SQL query. Code 1");
-              } catch (NullPointerException e) {
-                  throw new Exception("NullPointer Exception");
-              } finally {
-                  closeConnection();
+            // Get hubID and admin-state
+            PreparedStatement preparedStatement = connection.prepare(SQL_USER_LOGIN);
+            preparedStatement.setString(1, nameID);
+            preparedStatement.setString(2, password);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                //Note: If Query gives no result, the while(next) below won't launch.
+                while (resultSet.next()) {
+                    results++;
+                    //We already have user name from the method parameters (so we don't need to acquire it from DB_Users).
+                    int hubID = resultSet.getInt("client_hub_hubId"); // As String, while it is an integer in MySQL
+                    boolean admin = resultSet.getBoolean("isAdmin");
+
+                    items.put("hubId", hubID);
+                    items.put("isAdmin", admin);
+                }
+            }
+
+            if (results != 1) { //If there was to few matches, or for some reason, multiple matches.
+                // This will be sent to the user before closing the connection.
+                throw new Exception("Login failed. Connection is good");
+            }
+        } catch (SQLException e) {
+            connection.markBroken();
+            throw new Exception("Error on SQL query. Code 1");
+        } catch (NullPointerException e) {
+            throw new Exception("NullPointer Exception");
+        } finally {
+            connection.close();
+        }
+
+        // Store sessionKey (batched with other logins). Returns once committed.
+        results = awaitWrite(sessionKeyWriter.insertSessionKey(newSessionKey, nameID));
+        if (results != 1 && !SessionKeyWriter.isUnknownRowCount(results)) {
+            throw new Exception("Server unable to update session key. Code 1");
         }
-              return items;
+        sessionKeyCache.put(nameID, newSessionKey, (Integer) items.get("hubId"), (Boolean) items.get("isAdmin"), cacheGeneration);
+        return items;
     }
 
     public JSONObject automaticUserLogin(String nameID, String sessionKey) throws Exception {
@@ -145,26 +180,24 @@ public class DB_Clients {
         // Return hubID (int) & admin (boolean) from DB. Return in JSON object.
         // IF INVALID:
         // Throws exception with custom exception msg; eg. "Login failed. Connection is good"
-        connect();
         JSONObject info = new JSONObject();
+        SessionKeyCache.Entry cached = sessionKeyCache.get(nameID, sessionKey);
+        if (cached != null) {
+            info.put("hubId", cached.hubId);
+            info.put("isAdmin", cached.isAdmin);
+            return info;
+        }
+
+        long cacheGeneration = sessionKeyCache.getGeneration();
+        PooledConnection connection = connect();
         int results = 0;
-        int result = 0;
 
         try {
-
-            // Verify auto login
-            preparedStatement = connection.prepareStatement("SELECT sessionKey, client_user_nameId FROM hoso.client_session WHERE sessionKey = ? AND client_user_nameId = ?; ");
+            // Verify auto login, and get hubID and admin-state, in one query
+            PreparedStatement preparedStatement = connection.prepare(SQL_SESSION_USER);
             preparedStatement.setString(1, sessionKey);
             preparedStatement.setString(2, nameID);
-            resultSet = preparedStatement.executeQuery();
-
-            if (resultSet.next()) {
-                // Get hubID and admin-state
-                result++;
-                preparedStatement = connection.prepareStatement("SELECT client_hub_hubId, isAdmin FROM hoso.client_user WHERE nameId = ?;");
-                preparedStatement.setString(1, nameID);
-                resultSet = preparedStatement.executeQuery();
-
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
                 while (resultSet.next()) {
                     results++;
                     //We already have user name from the method parameters (so we don't need to acquire it from DB_Users).
@@ -174,21 +207,23 @@ public class DB_Clients {
                     info.put("hubId", hubID);
                     info.put("isAdmin", admin);
                 }
-
-                if (results != 1) {
-                    throw new Exception("Failed to load user info. Connection is good");
-                }
             }
-            if (result != 1) {
+
+            if (results == 0) {
                 throw new Exception("AutoLogin failed. Connection is good");
             }
+            if (results != 1) {
+                throw new Exception("Failed to load user info. Connection is good");
+            }
+            sessionKeyCache.put(nameID, sessionKey, (Integer) info.get("hubId"), (Boolean) info.get("isAdmin"), cacheGeneration);
         } catch (SQLException e) {
-        throw new Exception("Error on SQL query. Code 1");
-    } catch (NullPointerException e) {
-        throw new Exception("NullPointer Exception");
-    } finally {
-        closeConnection();
-    }
+            connection.markBroken();
+            throw new Exception("Error on SQL query. Code 1");
+        } catch (NullPointerException e) {
+            throw new Exception("NullPointer Exception");
+        } finally {
+            connection.close();
+        }
         return info;
     }
 
@@ -196,70 +231,54 @@ public class DB_Clients {
         //TODO: Implement hubLogin()
         // Does not return any data from DB. Valid login: return true. Invalid login: return false.
         // NOTE: This method should not through any Exceptions back the stack trace.
-        connect();
+        PooledConnection connection;
+        try {
+            connection = connect();
+        } catch (Exception e) {
+            return false;
+        }
         int results = 0;
         boolean check = false;
-        String pass;
-        int theHubID;
 
         try {
             // check valid login
-            preparedStatement = connection.prepareStatement("SELECT hubId, pass FROM hoso.client_hub WHERE hubId = ? AND pass = ?;");
+            PreparedStatement preparedStatement = connection.prepare(SQL_HUB_LOGIN);
             preparedStatement.setInt(1, hubID);
             preparedStatement.setString(2, password);
-            resultSet = preparedStatement.executeQuery();
-
-            if (resultSet.next()){
-                results++;
-                check = true;
-                //System.out.println("<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<< is found");
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    results++;
+                    check = true;
+                }
             }
-            if (results != 1){
+            if (results != 1) {
                 check = false;
             }
 
-        }catch (SQLException e){
+        } catch (SQLException e) {
+            connection.markBroken();
+        } finally {
+            connection.close();
         }
 
         return check;
     }
 
-    public void logoutThisDevice(String sessionKey)throws Exception{
-        connect();
-        int result = 0;
-
-        try {
-            preparedStatement = connection.prepareStatement("DELETE from hoso.client_session WHERE sessionKey = ?;");
-            preparedStatement.setString(1, sessionKey);
-            result = preparedStatement.executeUpdate();
-            if (result != 1) {
-                throw new Exception("Server unable to delete session key. Code 1");
-            }
-        } catch (SQLException e) {
-            throw new Exception("Error on SQL query. Code 1");
-        } catch (NullPointerException e) {
-            throw new Exception("NullPointer Exception");
-        } finally {
-            closeConnection();
+    public void logoutThisDevice(String sessionKey) throws Exception {
+        sessionKeyCache.invalidateSessionKey(sessionKey);
+        // Batched with other session key writes. Returns once committed.
+        int result = awaitWrite(sessionKeyWriter.deleteSessionKey(sessionKey));
+        if (result != 1 && !SessionKeyWriter.isUnknownRowCount(result)) {
+            throw new Exception("Server unable to delete session key. Code 1");
         }
     }
 
-    public void logoutAllDevices(String nameId)throws Exception{
-        connect();
-        int result1 = 0;
-        try {
-            preparedStatement = connection.prepareStatement("DELETE from  hoso.client_session WHERE client_user_nameId = ?;");
-            preparedStatement.setString(1, nameId);
-            result1 = preparedStatement.executeUpdate();
-            if (result1 == 0 ) {
-                throw new Exception("Server unable to delete session key. Code 1");
-            }
-        } catch (SQLException e) {
-            throw new Exception("Error on SQL query. Code 1");
-        } catch (NullPointerException e) {
-            throw new Exception("NullPointer Exception");
-        } finally {
-            closeConnection();
+    public void logoutAllDevices(String nameId) throws Exception {
+        sessionKeyCache.invalidateUser(nameId);
+        // Batched with other session key writes. Returns once committed.
+        int result1 = awaitWrite(sessionKeyWriter.deleteUserSessionKeys(nameId));
+        if (result1 == 0) {
+            throw new Exception("Server unable to delete session key. Code 1");
         }
     }
 
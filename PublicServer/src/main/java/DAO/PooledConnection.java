@@ -0,0 +1,126 @@
+package DAO;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class PooledConnection implements AutoCloseable {
+
+    /**
+     * DB connection borrowed from a ConnectionPool.
+     *
+     * - close() returns the connection to the pool, it does not close it. Closing it again has no effect.
+     * - Prepared statements are cached per connection (by SQL) and reused by later calls.
+     * - Used by one thread at a time (while borrowed).
+     */
+
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+    private boolean broken;
+    private boolean borrowed;
+    private long lastUsed;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+        broken = false;
+        lastUsed = System.currentTimeMillis();
+        // Least recently used statements are closed when the cache is full
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > STATEMENT_CACHE_SIZE) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Cached prepared statement. Parameters are overwritten by the caller.
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    // The connection is closed instead of returned to the pool (e.g. after an SQLException)
+    public void markBroken() {
+        broken = true;
+    }
+
+    // After a failed statement: Only a connection-level error (SQLState class 08), or a connection that is no longer
+    // valid, marks it broken. Others (e.g. a constraint violation of one row) keep the connection and its statements.
+    public void markBrokenIfLost(SQLException e) {
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08")) {
+            broken = true;
+            return;
+        }
+        try {
+            broken = broken || !connection.isValid(VALIDATE_TIMEOUT_SECONDS);
+        } catch (SQLException validationError) {
+            broken = true;
+        }
+    }
+
+    boolean isBroken() {
+        return broken;
+    }
+
+    long getIdleMillis() {
+        return System.currentTimeMillis() - lastUsed;
+    }
+
+    // Called by ConnectionPool.acquire()
+    void lend() {
+        borrowed = true;
+    }
+
+    // Return to pool
+    @Override
+    public void close() {
+        if (!borrowed) {
+            return;
+        }
+        borrowed = false;
+        lastUsed = System.currentTimeMillis();
+        pool.release(this);
+    }
+
+    void closePhysical() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.out.println("Error on closing DB_Clients connection");
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            System.out.println("Error on closing DB_Clients PreparedStatement");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package DAO;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionKeyCache {
+
+    /**
+     * In-memory cache of verified session keys: sessionKey + nameID -> (hubId, isAdmin).
+     *
+     * Answers automatic logins (#103) and background location reports (#501)
+     * without the client_session and client_user queries.
+     *
+     * - Bounded: the least recently used entry is evicted when full.
+     * - Entries expire ttlMs after they were verified against the DB.
+     * - Logouts (#105, #106) invalidate entries immediately, before the DB is updated.
+     *   A DB result read before an invalidation is not cached (see getGeneration()).
+     */
+
+    public static class Entry {
+        public final String nameID;
+        public final int hubId;
+        public final boolean isAdmin;
+        private final long expiresAt;
+
+        private Entry(String nameID, int hubId, boolean isAdmin, long expiresAt) {
+            this.nameID = nameID;
+            this.hubId = hubId;
+            this.isAdmin = isAdmin;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMs;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries; // sessionKey -> entry, in access order
+    private final HashMap<String, Set<String>> sessionKeysByName; // nameID -> cached session keys
+    private long generation; // Incremented by every invalidation
+
+    // Stats
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    public SessionKeyCache(int maxSize, long ttlMs) {
+        this.maxSize = maxSize;
+        this.ttlMs = ttlMs;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        sessionKeysByName = new HashMap<>();
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+    }
+
+    // Returns null on miss (unknown, expired, or session key belonging to another user)
+    public synchronized Entry get(String nameID, String sessionKey) {
+        Entry entry = entries.get(sessionKey);
+        if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+            remove(sessionKey);
+            entry = null;
+        }
+        if (entry == null || !entry.nameID.equals(nameID)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    // Take before reading from the DB, and pass to put()
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Ignored if anything was invalidated since the caller read the generation (the DB result may be outdated)
+    public synchronized void put(String nameID, String sessionKey, int hubId, boolean isAdmin, long readGeneration) {
+        if (maxSize < 1 || readGeneration != generation) {
+            return;
+        }
+        remove(sessionKey);
+        entries.put(sessionKey, new Entry(nameID, hubId, isAdmin, System.currentTimeMillis() + ttlMs));
+        Set<String> sessionKeys = sessionKeysByName.get(nameID);
+        if (sessionKeys == null) {
+            sessionKeys = new HashSet<>();
+            sessionKeysByName.put(nameID, sessionKeys);
+        }
+        sessionKeys.add(sessionKey);
+
+        // Evict least recently used
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxSize && eldest.hasNext()) {
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            removeFromName(evicted.getValue().nameID, evicted.getKey());
+            evictions.incrementAndGet();
+        }
+    }
+
+    // #105: One device logged out
+    public synchronized void invalidateSessionKey(String sessionKey) {
+        generation++;
+        remove(sessionKey);
+    }
+
+    // #106: All devices of a user logged out
+    public synchronized void invalidateUser(String nameID) {
+        generation++;
+        Set<String> sessionKeys = sessionKeysByName.remove(nameID);
+        if (sessionKeys != null) {
+            for (String sessionKey : sessionKeys) {
+                entries.remove(sessionKey);
+            }
+        }
+    }
+
+    // ============================================ STATS =======================================================
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private void remove(String sessionKey) {
+        Entry entry = entries.remove(sessionKey);
+        if (entry != null) {
+            removeFromName(entry.nameID, sessionKey);
+        }
+    }
+
+    private void removeFromName(String nameID, String sessionKey) {
+        Set<String> sessionKeys = sessionKeysByName.get(nameID);
+        if (sessionKeys != null) {
+            sessionKeys.remove(sessionKey);
+            if (sessionKeys.isEmpty()) {
+                sessionKeysByName.remove(nameID);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package DAO;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SessionKeyWriter {
+
+    /**
+     * Write-behind batching of session key writes (client_session INSERTs and DELETEs).
+     *
+     * Writes from concurrent logins and logouts are collected for up to flushIntervalMs
+     * (or until maxBatchSize) and executed as JDBC batches in one transaction,
+     * instead of one statement and round trip each.
+     *
+     * Durability and ordering:
+     * - Writes are applied in the order they were submitted, by a single writer thread.
+     *   Consecutive writes of the same kind share one batch.
+     * - The returned future completes (with the number of affected rows) only after the
+     *   transaction holding the write is committed. Callers wait for it before confirming
+     *   anything to the client, e.g. a new session key is never handed out before it is stored.
+     * - If a batch fails, the transaction is rolled back, its connection released, and its writes are retried
+     *   one by one, in order, so only the offending write fails (e.g. a duplicate session key). The connection
+     *   is only discarded on a connection-level error (see PooledConnection.markBrokenIfLost).
+     */
+
+    private enum Kind {
+        INSERT_SESSION("INSERT INTO hoso.client_session (sessionKey, client_user_nameId) VALUES (?, ?);"),
+        DELETE_SESSION("DELETE from hoso.client_session WHERE sessionKey = ?;"),
+        DELETE_USER_SESSIONS("DELETE from  hoso.client_session WHERE client_user_nameId = ?;");
+
+        private final String sql;
+
+        Kind(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    private static class Write {
+        private final Kind kind;
+        private final String[] params;
+        private final CompletableFuture<Integer> result;
+
+        private Write(Kind kind, String... params) {
+            this.kind = kind;
+            this.params = params;
+            result = new CompletableFuture<>();
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final long flushIntervalMs;
+    private final int maxBatchSize;
+    private final LinkedBlockingQueue<Write> pending;
+    private final Thread writerThread;
+    private volatile boolean running;
+
+    public SessionKeyWriter(ConnectionPool pool, long flushIntervalMs, int maxBatchSize) {
+        this.pool = pool;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        pending = new LinkedBlockingQueue<>();
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processWrites();
+            }
+        }, "session-key-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public CompletableFuture<Integer> insertSessionKey(String sessionKey, String nameID) {
+        return submit(new Write(Kind.INSERT_SESSION, sessionKey, nameID));
+    }
+
+    public CompletableFuture<Integer> deleteSessionKey(String sessionKey) {
+        return submit(new Write(Kind.DELETE_SESSION, sessionKey));
+    }
+
+    public CompletableFuture<Integer> deleteUserSessionKeys(String nameID) {
+        return submit(new Write(Kind.DELETE_USER_SESSIONS, nameID));
+    }
+
+    // Pending writes are still flushed
+    public void close() {
+        running = false;
+        writerThread.interrupt();
+    }
+
+    // ============================================ WRITER THREAD =======================================================
+
+    private CompletableFuture<Integer> submit(Write write) {
+        if (!running) {
+            write.result.completeExceptionally(new SQLException("Session key writer closed"));
+        } else {
+            pending.add(write);
+        }
+        return write.result;
+    }
+
+    private void processWrites() {
+        List<Write> batch = new ArrayList<>();
+        while (running || !pending.isEmpty()) {
+            try {
+                Write first = running ? pending.take() : pending.poll();
+                if (first == null) {
+                    break;
+                }
+                batch.add(first);
+                // Collect further writes for up to one flush interval
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Write next = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Closing: flush what is collected, then drain the rest
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    // One transaction. Consecutive writes of the same kind are executed as one JDBC batch.
+    private void flush(List<Write> batch) {
+        int[] rows = new int[batch.size()];
+        PooledConnection connection;
+        try {
+            connection = pool.acquire();
+        } catch (SQLException e) {
+            // No connection for the batch: there is none for its writes one by one either
+            for (Write write : batch) {
+                write.result.completeExceptionally(e);
+            }
+            return;
+        }
+        boolean failed = false;
+        try {
+            connection.getConnection().setAutoCommit(false);
+            int start = 0;
+            while (start < batch.size()) {
+                Kind kind = batch.get(start).kind;
+                int end = start;
+                PreparedStatement preparedStatement = connection.prepare(kind.sql);
+                while (end < batch.size() && batch.get(end).kind == kind) {
+                    String[] params = batch.get(end).params;
+                    for (int i = 0; i < params.length; i++) {
+                        preparedStatement.setString(i + 1, params[i]);
+                    }
+                    preparedStatement.addBatch();
+                    end++;
+                }
+                int[] results = preparedStatement.executeBatch();
+                System.arraycopy(results, 0, rows, start, results.length);
+                start = end;
+            }
+            connection.getConnection().commit();
+        } catch (SQLException e) {
+            failed = true;
+            try {
+                connection.getConnection().rollback();
+            } catch (SQLException rollbackError) {
+                System.out.println("Error on rollback of DB_Clients session key batch");
+                connection.markBrokenIfLost(rollbackError);
+            }
+            connection.markBrokenIfLost(e);
+        } finally {
+            try {
+                connection.getConnection().setAutoCommit(true);
+            } catch (SQLException e) {
+                connection.markBroken();
+            }
+            // Released before any retry, which borrows a connection of its own (also with a pool of one)
+            connection.close();
+        }
+        if (failed) {
+            retryOneByOne(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).result.complete(rows[i]);
+        }
+    }
+
+    // Fallback after a failed batch: every write in its own statement (auto commit)
+    private void retryOneByOne(List<Write> batch) {
+        for (Write write : batch) {
+            try (PooledConnection connection = pool.acquire()) {
+                try {
+                    PreparedStatement preparedStatement = connection.prepare(write.kind.sql);
+                    for (int i = 0; i < write.params.length; i++) {
+                        preparedStatement.setString(i + 1, write.params[i]);
+                    }
+                    write.result.complete(preparedStatement.executeUpdate());
+                } catch (SQLException e) {
+                    connection.markBrokenIfLost(e);
+                    write.result.completeExceptionally(e);
+                }
+            } catch (SQLException e) {
+                write.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Drivers rewriting batches (rewriteBatchedStatements) may not report rows per statement
+    public static boolean isUnknownRowCount(int rows) {
+        return rows == Statement.SUCCESS_NO_INFO;
+    }
+}
@@ -0,0 +1,59 @@
+package model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public final class Capabilities {
+
+    /**
+     * Optional protocol features a client opts in to when logging in.
+     *
+     * Announced as an extra, last field of the login request: caps:[name],[name],...
+     * E.g. 120::12::1234::my house::caps:binary
+     *
+     * Clients that announce nothing get the plain text protocol, unchanged.
+     */
+
+    public static final String PREFIX = "caps:";
+    public static final String BINARY = "binary"; // Binary frames instead of text (hubs)
+    public static final String DEFLATE = "deflate"; // Large messages as compressed binary frames (users)
+    public static final String BATCH = "batch"; // State updates (#316) batched over a time window, as #317 (users)
+    public static final String SEQ = "seq"; // Hub events with sequence numbers, as #318, and replay of missed ones (users, see HubEventLog)
+    public static final String RESUME = "resume"; // Resume token (#108) at login, to resume a lost session with #109 (users, see SessionResumer)
+
+    public static final Capabilities NONE = new Capabilities(Collections.<String>emptySet());
+
+    private final Set<String> names;
+
+    private Capabilities(Set<String> names) {
+        this.names = names;
+    }
+
+    public static boolean isCapabilityField(String field) {
+        return field.startsWith(PREFIX);
+    }
+
+    // Unknown names are ignored, so clients may announce features this server does not have
+    public static Capabilities parse(String field) {
+        if (!isCapabilityField(field)) {
+            return NONE;
+        }
+        Set<String> names = new HashSet<>();
+        for (String name : field.substring(PREFIX.length()).split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim().toLowerCase());
+            }
+        }
+        return names.isEmpty() ? NONE : new Capabilities(Collections.unmodifiableSet(names));
+    }
+
+    public boolean has(String name) {
+        return names.contains(name);
+    }
+
+    @Override
+    public String toString() {
+        return names.toString();
+    }
+}
@@ -1,24 +1,45 @@
 package model;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class Client {
 
     public int sessionID; // Target when sending data
     public boolean loggedIn;
-    private static int sessionCounter = 0;
+    public Capabilities capabilities = Capabilities.NONE; // Protocol features opted in to at login
+    private static final AtomicInteger sessionCounter = new AtomicInteger();
+    // Cluster mode: session IDs of node n are [count] * stride + n, unique in the cluster (see ClusterNode)
+    private static volatile int sessionIDStride = 1;
+    private static volatile int sessionIDNode = 0;
 
     public final int hubID;
 
     public Client() {
         loggedIn = false;
-        sessionID = ++sessionCounter;
+        sessionID = nextSessionID();
         hubID = -1;
     }
 
     public Client(int hubID) {
         loggedIn = false;
-        sessionID = ++sessionCounter;
+        sessionID = nextSessionID();
         this.hubID = hubID;
     }
 
+    // Before any client connects
+    public static void useClusterSessionIDs(int nodeID, int maxNodes) {
+        sessionIDStride = maxNodes;
+        sessionIDNode = nodeID;
+    }
+
+    // The node that issued a session ID (0 when not clustered)
+    public static int nodeOfSessionID(int sessionID) {
+        return Math.floorMod(sessionID, sessionIDStride);
+    }
+
+    private static int nextSessionID() {
+        return sessionCounter.incrementAndGet() * sessionIDStride + sessionIDNode;
+    }
+
 }
@@ -1,20 +1,40 @@
 package model;
 
+import service.HoSoMessage;
+
 public class ClientRequest {
     /**
      *  Maps an incoming request to a particular client session, for
      *  - back tracing, to send individual feedback to a connected client (e.g. passing exception messages)
      *  - enable targeted output even to users logged in on multiple devices simultaneously.
      *
+     *  The hubID of the issuing client decides which dispatcher lane processes the request,
+     *  so that requests concerning the same hub are always handled in order.
+     *
      *  Requests are strings according to HoSo protocol
      */
 
     public int sessionID;
+    public int hubID;
     public String request; // According to HomeSome protocol
 
-    public ClientRequest(int sessionID, String request) {
+    public ClientRequest(int sessionID, int hubID, String request) {
         this.sessionID = sessionID;
+        this.hubID = hubID;
         this.request = request;
     }
 
+    // Low priority requests may be dropped when the server is overloaded (e.g. location reports)
+    public boolean isLowPriority() {
+        return request.startsWith("502::") && !endsSession();
+    }
+
+    // The last request of a background login (#501 -> 502::[lon]::[lat]::1): the session is removed after it
+    public boolean endsSession() {
+        if (!request.startsWith("502::")) {
+            return false;
+        }
+        HoSoMessage fields = HoSoMessage.parse(request);
+        return fields.fieldCount() > 3 && fields.fieldEquals(3, "1");
+    }
 }
@@ -0,0 +1,18 @@
+package model;
+
+
+public class Client_Node extends Client {
+
+    /**
+     * Another public server node of the cluster, connected to forward
+     * messages to this node (see ClusterNode)
+     */
+
+    public final int nodeID;
+
+    public Client_Node(int nodeID) {
+        super();
+        this.nodeID = nodeID;
+        loggedIn = true; // logged in for specialized client
+    }
+}
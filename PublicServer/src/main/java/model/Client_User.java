@@ -14,6 +14,7 @@ public class Client_User extends Client {
     private final String nameID;
     private final boolean admin;
     private final String sessionKey;
+    public volatile String resumeToken; // While the session can be resumed (see SessionResumer)
 
 
     public Client_User(int hubID, String nameID, boolean admin,String sessionKey) {
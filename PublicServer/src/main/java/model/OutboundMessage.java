@@ -0,0 +1,61 @@
+package model;
+
+public final class OutboundMessage {
+    /**
+     * Immutable message on its way to one or more client sessions.
+     *
+     * Built once per output, and the same instance is handed to the send queue of every
+     * recipient of a broadcast. Derived data (e.g. the size accounted against a session's
+     * outbound memory cap) is computed once, here, instead of per recipient.
+     *
+     * Text is according to HoSo protocol
+     */
+
+    private final String text;
+    private final long size;
+    private final String conflationKey;
+    private final boolean removal;
+    private volatile byte[] compressed; // Set once by the first recipient receiving it compressed (see MessageCompressor)
+
+    public OutboundMessage(String text) {
+        this.text = text;
+        this.size = 2L * text.length();
+        this.conflationKey = conflationKeyOf(text);
+        this.removal = text.startsWith("354::");
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // Approximate memory held by the message while queued
+    public long getSize() {
+        return size;
+    }
+
+    // Gadget ID of a state update (#316) or removal (#354), where only the latest value matters. Otherwise null
+    public String getConflationKey() {
+        return conflationKey;
+    }
+
+    // Removal of a gadget (#354): final, never replaced by a later state update of the gadget
+    public boolean isRemoval() {
+        return removal;
+    }
+
+    public byte[] getCompressed() {
+        return compressed;
+    }
+
+    public void setCompressed(byte[] compressed) {
+        this.compressed = compressed;
+    }
+
+    private static String conflationKeyOf(String text) {
+        if (!text.startsWith("316::") && !text.startsWith("354::")) {
+            return null;
+        }
+        int end = text.indexOf("::", 5);
+        return text.substring(5, end < 0 ? text.length() : end);
+    }
+}
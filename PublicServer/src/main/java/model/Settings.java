@@ -1,16 +1,68 @@
 package model;
 
+import service.IngressQueue;
+
 public class Settings {
     // Settings are loaded in from 'config.json' at system boot.
     private boolean debugMode; // Trigger additional logging
+    private int logBufferSize = 8192; // Log lines waiting to be printed
+    private boolean logDropWhenFull = true; // Full log buffer: drop log lines (true), or make logging threads wait (false)
     private int serverPort;
     private int clientLimit; // Max umber of simultaneously connected clients
+    // Ingress queue (requests waiting to be dispatched)
+    private int ingressCapacity = 1000;
+    private String overloadPolicy = "reject"; // When ingress queue is full: "reject", "dropOldest" (low priority requests) or "block"
+    private long ingressBlockTimeoutMs = 100; // Max wait for room with policy "block"
+    // Logins
+    private int loginThreads = 8; // Logins processed in parallel
+    private int loginQueueCapacity = 1000; // Max logins waiting for a login thread
+    // Resumable sessions
+    private boolean sessionResumeEnabled = true; // Users get a token at login (#108) to reconnect without DB login or gadget reload (#109)
+    private long sessionResumeGraceMs = 30000; // How long a lost user session is kept for resuming
+    private int sessionResumeMaxRetained = 10000; // Max lost user sessions kept at a time
+    // Threads
+    private String threadMode = "platform"; // "platform", or "virtual" (Java 21+): Logins (max loginThreads + loginQueueCapacity at a time) and dispatcher lanes on virtual threads
+    // Hub gadgets
+    private boolean gadgetCacheEnabled = true; // Answer requests for all gadgets (#301/#302) from memory when possible
+    private long gadgetRequestTimeoutMs = 5000; // Max wait for a hub's answer (#303) to a request for all gadgets
+    // Hub event replay
+    private boolean eventReplayEnabled = true; // Accept users opting in to sequence numbered hub events at login (caps:seq), and replay missed ones (#330)
+    private int eventReplayCapacity = 128; // Latest events kept per hub for replay
+    // Request dispatcher
+    private int dispatcherLanes = 0; // Worker lanes processing requests in parallel (one hub is always on the same lane). 0 = one per CPU core
+    private int dispatcherLaneCapacity = 100; // Max requests waiting in each lane. Requests for a full lane are shed (#902)
+    // Outbound messages
+    private int outboundQueueLimit = 1000; // Max messages waiting to be written to one session. Further messages are dropped
+    private long outboundMaxBytes = 4 * 1024 * 1024; // Max memory held by one session's queue before the client is disconnected as too slow
+    private int broadcastParallelThreshold = 64; // Hub events to at least this many users are fanned out in parallel
+    private boolean outboundConflation = true; // A queued gadget update (#316/#354) not yet written is replaced by a newer one of the same gadget
+    private boolean binaryFramingEnabled = true; // Accept hubs opting in to binary frames at login (caps:binary)
+    private boolean compressionEnabled = true; // Accept users opting in to compressed messages at login (caps:deflate)
+    private int compressionThreshold = 1024; // Messages of at least this many characters are compressed (e.g. #304, not #316)
+    private int compressionLevel = 6; // DEFLATE level 1 (fastest) - 9 (smallest)
+    private boolean updateBatchingEnabled = true; // Accept users opting in to batched state updates at login (caps:batch)
+    private long updateBatchWindowMs = 5; // State updates (#316) to one user are collected this long and written as one #317
+    private int updateBatchMaxUpdates = 64; // Max state updates per #317
+    // Cluster
+    private boolean clusterEnabled = false; // Several nodes, any of which accepts any client (see ClusterNode)
+    private int clusterNodeID = 0; // Unique in the cluster: 0 - 63
+    private String[] clusterPeers = {}; // host:port of every other node, e.g. ["10.0.0.2:8084"]
+    private String clusterSecret = ""; // Shared by all nodes of the cluster: authenticates node links
+    // Monitoring
+    private boolean metricsEnabled = false; // Serve metrics on GET /metrics (Prometheus text format)
+    private String metricsToken = ""; // Required: scrapers send "Authorization: Bearer [metricsToken]". Not served if empty
     // DB specs
     private String dbIP;
     private String dbPort; // Used as String when connecting to DB server
     private String dbDatabase;
     private String dbAccount;
     private String dbPassword;
+    private int dbPoolSize = 10; // Max simultaneously open DB connections
+    private long dbPoolTimeoutMs = 5000; // Max wait for a free DB connection
+    private int sessionCacheSize = 10000; // Max verified session keys kept in memory (automatic login). 0 = no cache
+    private int sessionCacheTtlSeconds = 300; // Max age of a cached session key before it is verified against the DB again
+    private long sessionWriteFlushMs = 5; // Session key INSERTs/DELETEs are collected this long and written as one batch
+    private int sessionWriteBatchSize = 100; // Max session key writes per batch
 
     // ===================================== GETTERS & SETTERS =============================================
 
@@ -27,6 +79,22 @@ public class Settings {
         return debugMode;
     }
 
+    public int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public boolean isLogDropWhenFull() {
+        return logDropWhenFull;
+    }
+
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public String getMetricsToken() {
+        return metricsToken;
+    }
+
     public int getServerPort() {
         return serverPort;
     }
@@ -34,4 +102,155 @@ public class Settings {
     public int getClientLimit() {
         return clientLimit;
     }
+
+    public int getDispatcherLanes() {
+        return dispatcherLanes;
+    }
+
+    public int getDispatcherLaneCapacity() {
+        return dispatcherLaneCapacity;
+    }
+
+    public int getOutboundQueueLimit() {
+        return outboundQueueLimit;
+    }
+
+    public long getOutboundMaxBytes() {
+        return outboundMaxBytes;
+    }
+
+    public int getBroadcastParallelThreshold() {
+        return broadcastParallelThreshold;
+    }
+
+    public boolean isOutboundConflation() {
+        return outboundConflation;
+    }
+
+    public boolean isBinaryFramingEnabled() {
+        return binaryFramingEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isUpdateBatchingEnabled() {
+        return updateBatchingEnabled;
+    }
+
+    public long getUpdateBatchWindowMs() {
+        return updateBatchWindowMs;
+    }
+
+    public int getUpdateBatchMaxUpdates() {
+        return updateBatchMaxUpdates;
+    }
+
+    public int getIngressCapacity() {
+        return ingressCapacity;
+    }
+
+    public IngressQueue.OverloadPolicy getOverloadPolicy() {
+        switch (overloadPolicy) {
+            case "dropOldest":
+                return IngressQueue.OverloadPolicy.DROP_OLDEST;
+            case "block":
+                return IngressQueue.OverloadPolicy.BLOCK;
+            default:
+                return IngressQueue.OverloadPolicy.REJECT;
+        }
+    }
+
+    public long getIngressBlockTimeoutMs() {
+        return ingressBlockTimeoutMs;
+    }
+
+    public int getDbPoolSize() {
+        return dbPoolSize;
+    }
+
+    public long getDbPoolTimeoutMs() {
+        return dbPoolTimeoutMs;
+    }
+
+    public int getLoginThreads() {
+        return loginThreads;
+    }
+
+    public int getLoginQueueCapacity() {
+        return loginQueueCapacity;
+    }
+
+    public boolean isSessionResumeEnabled() {
+        return sessionResumeEnabled;
+    }
+
+    public long getSessionResumeGraceMs() {
+        return sessionResumeGraceMs;
+    }
+
+    public int getSessionResumeMaxRetained() {
+        return sessionResumeMaxRetained;
+    }
+
+    public boolean isVirtualThreadMode() {
+        return "virtual".equals(threadMode);
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public int getSessionCacheTtlSeconds() {
+        return sessionCacheTtlSeconds;
+    }
+
+    public long getSessionWriteFlushMs() {
+        return sessionWriteFlushMs;
+    }
+
+    public int getSessionWriteBatchSize() {
+        return sessionWriteBatchSize;
+    }
+
+    public boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    public int getClusterNodeID() {
+        return clusterNodeID;
+    }
+
+    public String[] getClusterPeers() {
+        return clusterPeers;
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public boolean isEventReplayEnabled() {
+        return eventReplayEnabled;
+    }
+
+    public int getEventReplayCapacity() {
+        return eventReplayCapacity;
+    }
+
+    public boolean isGadgetCacheEnabled() {
+        return gadgetCacheEnabled;
+    }
+
+    public long getGadgetRequestTimeoutMs() {
+        return gadgetRequestTimeoutMs;
+    }
 }
@@ -0,0 +1,216 @@
+package service;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class AsyncLogger {
+
+    /**
+     * Asynchronous logger: Threads logging never format, print or wait for each other.
+     *
+     * - The level is checked before anything else (see isEnabled: callers check it before evaluating costly arguments).
+     * - Enabled log lines are put in a lock free ring buffer (bounded, multi producer, one consumer)
+     *   with their raw arguments. One daemon thread formats and prints them, in batches. It sleeps while the
+     *   buffer is empty, and is woken by the next line published (not by every line).
+     * - When the buffer is full, lines are dropped (and counted) with dropWhenFull, so logging can stay on
+     *   in production without ever blocking a request. Otherwise the logging thread waits for room.
+     */
+
+    public enum Level {
+        DEBUG, INFO, WARN
+    }
+
+    private static final int NO_SESSION = Integer.MIN_VALUE;
+    private static final int MAX_LINE_LENGTH = 90;
+    private static final long FULL_PARK_NANOS = 1000000; // Producer retry interval when the buffer is full (without dropWhenFull)
+
+    private final Level level;
+    private final boolean dropWhenFull;
+    private final PrintStream out;
+
+    // Ring buffer: A slot may be written when its sequence equals the producer position, and read when it is position + 1
+    private final int mask;
+    private final AtomicReferenceArray<Event> events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail; // Next position to write (producers)
+    private long head; // Next position to read (consumer thread only)
+
+    private final AtomicLong droppedCount;
+    private final Thread consumer;
+    private volatile boolean waiting; // The consumer found the buffer empty and is (about to be) parked
+    private volatile boolean running;
+
+    public AsyncLogger(Level level, int bufferSize, boolean dropWhenFull, PrintStream out) {
+        this.level = level;
+        this.dropWhenFull = dropWhenFull;
+        this.out = out;
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1; // Power of two >= bufferSize
+        mask = capacity - 1;
+        events = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        tail = new AtomicLong();
+        head = 0;
+        droppedCount = new AtomicLong();
+        running = true;
+        consumer = new Thread(this::consume, "async-logger");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) >= 0;
+    }
+
+    public void log(Level level, String log, String... data) {
+        if (isEnabled(level)) {
+            publish(new Event(level, log, NO_SESSION, data));
+        }
+    }
+
+    public void log(Level level, String log, int sessionID, String... data) {
+        if (isEnabled(level)) {
+            publish(new Event(level, log, sessionID, data));
+        }
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // Prints what is buffered, then stops the logger thread
+    public void stop() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ============================================ RING BUFFER ====================================================
+
+    private void publish(Event event) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long available = sequences.get(slot) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events.set(slot, event);
+                    sequences.set(slot, position + 1);
+                    if (waiting) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return;
+                }
+            } else if (available < 0) {
+                // Full
+                if (dropWhenFull || !running) {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+            // Else: Another producer claimed the position. Retry
+        }
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    // Returns null if the buffer is empty
+    private Event poll() {
+        if (isEmpty()) {
+            return null;
+        }
+        int slot = (int) head & mask;
+        Event event = events.get(slot);
+        events.set(slot, null);
+        sequences.set(slot, head + mask + 1);
+        head++;
+        return event;
+    }
+
+    // Executed by the logger thread
+    private void consume() {
+        StringBuilder batch = new StringBuilder(8192);
+        long reportedDrops = 0;
+        while (true) {
+            boolean stopping = !running;
+            Event event;
+            while (batch.length() < 64 * 1024 && (event = poll()) != null) {
+                format(event, batch);
+            }
+            long dropped = droppedCount.get();
+            if (dropped > reportedDrops) {
+                batch.append("[Log buffer full: ").append(dropped - reportedDrops).append(" lines dropped]\n");
+                reportedDrops = dropped;
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            } else if (stopping) {
+                return;
+            } else {
+                // Announce the wait before checking once more, so a line published meanwhile unparks this thread
+                waiting = true;
+                if (isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+            }
+        }
+    }
+
+    // ============================================ FORMATTING =====================================================
+
+    // Same layout as the original debug log: [log]: (padded to 30) [first] (Session id) rest..., cut at 90 characters
+    private void format(Event event, StringBuilder batch) {
+        int start = batch.length();
+        if (event.level != Level.DEBUG) {
+            batch.append(event.level).append(' ');
+        }
+        batch.append(event.log).append(':');
+        while (batch.length() - start < 30) {
+            batch.append(' ');
+        }
+        String[] data = event.data;
+        if (data.length > 0) {
+            batch.append('[').append(data[0]).append(']');
+            if (event.sessionID != NO_SESSION) {
+                batch.append(" (Session ").append(event.sessionID).append(')');
+            }
+            for (int i = 1; i < data.length; i++) {
+                batch.append(' ').append(data[i]);
+            }
+        }
+        if (batch.length() - start > MAX_LINE_LENGTH) {
+            batch.setLength(start + MAX_LINE_LENGTH);
+            batch.append("[...]");
+        }
+        batch.append('\n');
+    }
+
+    private static final class Event {
+        private final Level level;
+        private final String log;
+        private final int sessionID;
+        private final String[] data;
+
+        private Event(Level level, String log, int sessionID, String[] data) {
+            this.level = level;
+            this.log = log;
+            this.sessionID = sessionID;
+            this.data = data;
+        }
+    }
+}
@@ -4,21 +4,37 @@ package service;
 import web_resource.WebSocketServer;
 import org.eclipse.jetty.websocket.api.Session;
 import DAO.DB_Clients;
+import model.Capabilities;
 import model.Client;
 import model.ClientRequest;
 import model.Client_Hub;
+import model.Client_Node;
 import model.Client_User;
+import model.OutboundMessage;
+import model.Settings;
 import spark.Spark;
 
 
 import org.json.simple.JSONObject;
 
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 
 public class ClientHandler {
@@ -31,13 +47,22 @@ public class ClientHandler {
      * - The only class accessing the database class DB_Clients.
      */
 
-    public HashMap<Session, Client> connectedClients;
+    public SessionRegistry connectedClients;
+    private final ConcurrentHashMap<Session, SessionSender> outbound;
 
 
     private int clientLimit;
-    private DB_Clients clientDB;
-    private final Object lock_clients;
-    private final Object lock_login;
+    private int broadcastParallelThreshold;
+    private volatile DB_Clients clientDB;
+    private final ExecutorService loginExecutor;
+    private final Semaphore loginPermits; // Virtual threads only: Bounds the logins in progress
+    private final Set<Session> loginsInFlight;
+    private final LatencyRecorder loginLatency;
+    private final LatencyRecorder loginDbLatency;
+    private final MessageCompressor compressor;
+    private final UpdateBatcher updateBatcher;
+    private final SessionResumer sessionResumer;
+    private final boolean sessionResumeEnabled;
     private String encryptedKey;
 
 
@@ -52,19 +77,42 @@ public class ClientHandler {
     }
 
     private ClientHandler() {
-        connectedClients = new HashMap<>();
+        connectedClients = new SessionRegistry();
+        outbound = new ConcurrentHashMap<>();
         clientDB = new DB_Clients();
-        lock_clients = new Object();
-        lock_login = new Object();
+        Settings settings = Server.getInstance().settings;
+        ExecutorService virtualLogins = settings.isVirtualThreadMode() ? VirtualThreads.newPerTaskExecutor("login-") : null;
+        if (virtualLogins != null) {
+            // One virtual thread per login. A login waiting for the DB does not hold a platform thread.
+            loginExecutor = virtualLogins;
+            loginPermits = new Semaphore(settings.getLoginThreads() + settings.getLoginQueueCapacity());
+        } else {
+            ThreadPoolExecutor loginThreads = new ThreadPoolExecutor(settings.getLoginThreads(), settings.getLoginThreads(), 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(settings.getLoginQueueCapacity()));
+            loginThreads.allowCoreThreadTimeOut(true);
+            loginExecutor = loginThreads;
+            loginPermits = null;
+        }
+        loginsInFlight = ConcurrentHashMap.newKeySet();
+        loginLatency = new LatencyRecorder();
+        loginDbLatency = new LatencyRecorder();
+        compressor = new MessageCompressor(settings.getCompressionThreshold(), settings.getCompressionLevel());
+        updateBatcher = new UpdateBatcher(settings.getUpdateBatchWindowMs(), settings.getUpdateBatchMaxUpdates());
+        sessionResumer = new SessionResumer(settings.getSessionResumeGraceMs(), settings.getSessionResumeMaxRetained());
+        sessionResumeEnabled = settings.isSessionResumeEnabled();
     }
 
     public void launchWebSocketServer(int serverTcpPort, int clientLimit) {
         this.clientLimit = clientLimit;
+        this.broadcastParallelThreshold = Server.getInstance().settings.getBroadcastParallelThreshold();
 
         // Create web socket listening on a path, and being implemented by a class.
         Spark.webSocket("/homesome", WebSocketServer.class);
         Spark.port(serverTcpPort);
         Spark.threadPool(clientLimit);
+        if (Server.getInstance().settings.isMetricsEnabled()) {
+            launchMetricsEndpoint(Server.getInstance().settings.getMetricsToken());
+        }
         Spark.init();
         // Browser test: http://localhost:tcpPort/
         // If no web page is provided, should say "404 Error, com.homesome.service powered by Jetty"
@@ -72,108 +120,243 @@ public class ClientHandler {
         System.out.println("Jetty WebSocket (web) server started");
     }
 
+    // Prometheus scrape target: http://localhost:tcpPort/metrics, with "Authorization: Bearer [metricsToken]".
+    // It shares the clients' port, so it is only served with a token.
+    private void launchMetricsEndpoint(String token) {
+        if (token == null || token.isEmpty()) {
+            Server.getInstance().warnLog("Metrics not served", "metricsToken is not set");
+            return;
+        }
+        final byte[] authorization = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        Spark.get("/metrics", (request, response) -> {
+            String header = request.headers("Authorization");
+            if (header == null || !MessageDigest.isEqual(authorization, header.getBytes(StandardCharsets.UTF_8))) {
+                response.status(401);
+                response.header("WWW-Authenticate", "Bearer");
+                return "";
+            }
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.getInstance().render();
+        });
+    }
+
     public void stopWebSocketServer() {
         Spark.stop();
+        loginExecutor.shutdownNow();
+        updateBatcher.stop();
+        sessionResumer.stop();
+        compressor.close();
     }
 
 
     // ======================================== ACCEPT AND MANAGE NEW CLIENTS =================================================
 
     public void addClient(Session session) {
-        synchronized (lock_clients) {
 
-            // Default idle threshold for not logged in clients
-            session.setIdleTimeout(8000);
-            //Map session to new generic client instance
-            Client newClient = new Client();
-            connectedClients.put(session, newClient);
+        // Default idle threshold for not logged in clients
+        session.setIdleTimeout(8000);
+        //Map session to new generic client instance
+        Client newClient = new Client();
+        Settings settings = Server.getInstance().settings;
+        outbound.put(session, new SessionSender(session, settings.getOutboundQueueLimit(), settings.getOutboundMaxBytes(),
+                settings.isOutboundConflation()));
+        connectedClients.put(session, newClient);
+        if (Server.getInstance().isDebugEnabled()) {
             debugLog("Connected clients", String.valueOf(connectedClients.size()));
         }
     }
 
     public void removeClient(Session session) {
-        synchronized (lock_clients) {
-            if (session.isOpen()) {
-                session.close();
+        SessionSender sender = outbound.remove(session);
+        if (sender != null) {
+            // Closes the session once already queued output (e.g. a login error) is written
+            sender.close();
+        } else if (session.isOpen()) {
+            session.close();
+        }
+        Client removed = connectedClients.remove(session);
+        ClusterNode.getInstance().loginClosed(session);
+        if (removed instanceof Client_Hub) {
+            // Gadgets of a disconnected hub may change unreported
+            Server.getInstance().getGadgetCache().invalidate(removed.hubID);
+            if (connectedClients.getHubSession(removed.hubID) == null) {
+                Server.getInstance().getEventLog().reset(removed.hubID);
+                ClusterNode.getInstance().hubDisconnected(removed.hubID);
             }
-            connectedClients.remove(session);
+        } else if (removed instanceof Client_User) {
+            // Kept for a while, in case the user reconnects with its resume token (#109)
+            sessionResumer.retain((Client_User) removed);
+        } else if (removed instanceof Client_Node) {
+            ClusterNode.getInstance().nodeLeft(((Client_Node) removed).nodeID);
+        }
+        if (Server.getInstance().isDebugEnabled()) {
             debugLog("Connected clients", String.valueOf(connectedClients.size()));
         }
     }
 
     public void removeTheClient(int sessionID) throws Exception {
-        synchronized (lock_clients) {
-            removeClient(getSession(sessionID));
-        }
+        removeClient(getSession(sessionID));
     }
 
     // ========================================= CLIENT REQUESTS ==================================================
 
     // Called from WebSocket implementation class @OnWebSocketMessage
     public void addClientRequest(Session session, String request) {
-        synchronized (lock_clients) {
-            debugLog("Request from client", getIP(session), request);
-            try {
-                if (connectedClients.get(session).loggedIn) {
-                    if (request.toLowerCase().equals("ping")) {
-                        // Ping. Resets idle time
-                        debugLog("Ping from client", getIP(session));
-                    } else {
-                        // Add request to server
-                        ClientRequest newRequest = new ClientRequest(connectedClients.get(session).sessionID, request);
-                        Server.getInstance().clientRequests.put(newRequest);
-                    }
+        debugLog("Request from client", session, request);
+        try {
+            Client client = connectedClients.get(session);
+            if (client.loggedIn) {
+                if (request.toLowerCase().equals("ping")) {
+                    // Ping. Resets idle time
+                    debugLog("Ping from client", session);
+                } else if (client instanceof Client_Node) {
+                    // Forwarded by another node of the cluster: Handled right here, in the order sent
+                    ClusterNode.getInstance().receive(((Client_Node) client).nodeID, HoSoMessage.parse(request));
                 } else {
-                    session.setIdleTimeout(60 * 1000); // Increase idle threshold
-                    // ****if the client is not logged in call the login****
-                    clientLogin(session, request);
+                    // Add request to server
+                    ClientRequest newRequest = new ClientRequest(client.sessionID, client.hubID, request);
+                    Server.getInstance().addClientRequest(newRequest);
+                }
+            } else {
+                session.setIdleTimeout(60 * 1000); // Increase idle threshold
+                if (request.startsWith("133::")) {
+                    // Node login answering its challenge (#132): only an HMAC to check, so handled right here.
+                    // It may arrive before the #130 is done with, so it does not wait for the login executor.
+                    processLogin(session, request);
+                    return;
                 }
-            } catch (Exception e) {
-                debugLog("Unable to handle request", getIP(session), request);
+                // ****if the client is not logged in call the login****
+                clientLogin(session, request);
+            }
+        } catch (Exception e) {
+            debugLog("Unable to handle request", session, request);
+        }
+    }
+
+    // Called from WebSocket implementation class @OnWebSocketMessage (binary)
+    // Binary frames are translated to text, and from there on handled as any other request.
+    public void addClientRequest(Session session, byte[] frame, int offset, int length) {
+        Client client = connectedClients.get(session);
+        SessionSender sender = outbound.get(session);
+        if (client == null || !client.loggedIn || sender == null || !sender.isBinary()) {
+            if (Server.getInstance().isDebugEnabled()) {
+                debugLog("Unexpected binary frame", session, String.valueOf(length));
             }
+            return;
+        }
+        try {
+            addClientRequest(session, HoSoBinaryCodec.decode(frame, offset, length));
+        } catch (Exception e) {
+            debugLog("Unable to handle request", session, e.getMessage());
         }
     }
 
     // ========================================== CLIENT LOGIN ===================================================
 
-    // Process client login requests: Called from ClientThread before gaining access to server features.
-    private void clientLogin(Session session, String loginRequest) {
-        synchronized (lock_login) {
-            try {
-
-                String[] commands = loginRequest.split("::");
-
-                switch (commands[0]) {
-                    case "101": // Manual user login (Android or browser)
-                        manualUserLogin(session, commands);
-                        break;
-                    case "103": // Automatic user login (Android or browser)
-                        automaticUserLogin(session, commands, false);
-                        break;
-                    case "120": // Hub login
-                        hubLogin(session, commands);
-                        break;
-                    case "501": // Android background process reports location
-                        automaticUserLogin(session, commands, true);
-                        break;
-                    default:
-                        throw new Exception("Invalid login format");
+    // Process client login requests: Called from WebSocket threads before gaining access to server features.
+    // The login is handed over to the login executor, so the WebSocket thread returns immediately and many logins run in parallel.
+    private void clientLogin(final Session session, final String loginRequest) {
+        if (!loginsInFlight.add(session)) {
+            debugLog("Login already in progress", session, loginRequest);
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            if (loginPermits != null && !loginPermits.tryAcquire()) {
+                throw new RejectedExecutionException();
+            }
+            CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    processLogin(session, loginRequest);
                 }
-            } catch (Exception e) {
-                debugLog("Failed login", getIP(session), e.getMessage());
-                // Pass custom exception msg. E.g. from DB_Clients
-                writeToClient(session, "903::".concat(e.getMessage()));
-                // session.close();
-                removeClient(session);
+            }, loginExecutor).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable e) {
+                    if (loginPermits != null) {
+                        loginPermits.release();
+                    }
+                    loginsInFlight.remove(session);
+                    loginLatency.record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loginsInFlight.remove(session);
+            debugLog("Failed login", session, "Login queue full");
+            writeToClient(session, "903::Server busy. Try again");
+            removeClient(session);
+        }
+    }
+
+    // Executed by login executor threads
+    private void processLogin(Session session, String loginRequest) {
+        try {
+
+            HoSoMessage commands = HoSoMessage.parse(loginRequest);
+
+            switch (commands.opcode()) {
+                case "101": // Manual user login (Android or browser)
+                    manualUserLogin(session, commands);
+                    break;
+                case "103": // Automatic user login (Android or browser)
+                    automaticUserLogin(session, commands, false);
+                    break;
+                case "120": // Hub login
+                    hubLogin(session, commands);
+                    break;
+                case "501": // Android background process reports location
+                    automaticUserLogin(session, commands, true);
+                    break;
+                case "109": // User resumes a lost session (Android or browser)
+                    resumeUserSession(session, commands);
+                    break;
+                case "130": // Another node of the cluster: challenged to prove it knows clusterSecret
+                    nodeChallenge(session, commands);
+                    break;
+                case "133": // Another node of the cluster: answers the challenge
+                    nodeLogin(session, commands);
+                    break;
+                default:
+                    throw new Exception("Invalid login format");
             }
+        } catch (Exception e) {
+            debugLog("Failed login", session, e.getMessage());
+            // Pass custom exception msg. E.g. from DB_Clients
+            writeToClient(session, "903::".concat(e.getMessage()));
+            // session.close();
+            removeClient(session);
         }
     }
 
+    // Map the session to its logged in client. Only done once the login has completed, and only if the client is still connected.
+    private void registerClient(Session session, Client client) throws Exception {
+        if (!session.isOpen()) {
+            throw new Exception("Client disconnected during login");
+        }
+        connectedClients.put(session, client);
+        if (!session.isOpen()) {
+            // Closed while registering: removeClient() may already have run
+            connectedClients.remove(session);
+            throw new Exception("Client disconnected during login");
+        }
+    }
+
+    // Login latency, from login request to completed login (microseconds)
+    public LatencyRecorder getLoginLatency() {
+        return loginLatency;
+    }
+
+    // Time spent in DB_Clients during logins (microseconds)
+    public LatencyRecorder getLoginDbLatency() {
+        return loginDbLatency;
+    }
+
     // #101
-    private void manualUserLogin(Session session, String[] loginRequest) throws Exception {
+    private void manualUserLogin(Session session, HoSoMessage loginRequest) throws Exception {
         // Request according to HoSo protocol: #101
-        String nameID = loginRequest[1];
-        String pwd = loginRequest[2];
+        // 101::nameID::pwd::caps:deflate,batch (optional last field: protocol features, see Capabilities)
+        String nameID = loginRequest.field(1);
+        String pwd = loginRequest.field(2);
 
 
         // Generate new session key to use henceforth if this login succeeds.
@@ -185,7 +368,13 @@ public class ClientHandler {
 
 
         //Try to log in with nameID and password (throws exception on invalid)
-        JSONObject result = clientDB.manualUserLogin(nameID, pwd, newSessionKey);
+        JSONObject result;
+        long dbStart = System.nanoTime();
+        try {
+            result = clientDB.manualUserLogin(nameID, pwd, newSessionKey);
+        } finally {
+            loginDbLatency.record(System.nanoTime() - dbStart);
+        }
         int hubID = (Integer) result.get("hubId");
         boolean admin = (Boolean) result.get("isAdmin");
 
@@ -195,25 +384,26 @@ public class ClientHandler {
 
         // Create valid user instance
         Client_User validClient = new Client_User(hubID, nameID, admin, newSessionKey);
+        validClient.capabilities = getCapabilities(loginRequest, 3);
+        applyCapabilities(session, validClient);
 
         // Overwrite the Client mapped to the session, with a specialized and logged in:
-        connectedClients.put(session, validClient);
-        System.out.println("----------------------------------------------------------------------------------------------" + connectedClients.get(session));
-
-        debugLog(String.format("%s (%s)", "Client logged in", nameID), validClient.sessionID, getIP(session));
+        registerClient(session, validClient);
+        debugLog("Client logged in", validClient.sessionID, session, nameID);
 
         // Response according to HoSo protocol #102
-        String loginConfirmation = String.format("102::%s::%s::%s::%s", nameID, admin, hubAlias, newSessionKey);
+        String loginConfirmation = new HoSoBuilder("102").add(nameID).add(admin).add(hubAlias).add(newSessionKey).build();
         writeToClient(session, loginConfirmation);
+        issueResumeToken(session, validClient);
         //302 from the client to the server, 302 from the server to the hub, 303 from hub to server, 304 from server to client
         // Request all gadgets from the hub that belongs to the client on behalf of the client
-        String request = String.format("%s::%s", "302", validClient.sessionID);
-        ClientRequest requestAllGadgets = new ClientRequest(validClient.sessionID, request);
-        Server.getInstance().clientRequests.put(requestAllGadgets);
+        String request = new HoSoBuilder("302").add(validClient.sessionID).build();
+        ClientRequest requestAllGadgets = new ClientRequest(validClient.sessionID, validClient.hubID, request);
+        Server.getInstance().addClientRequest(requestAllGadgets);
     }
 
     // #103
-    public void automaticUserLogin(Session session, String[] loginRequest, boolean backgroundAndroid) throws Exception {
+    public void automaticUserLogin(Session session, HoSoMessage loginRequest, boolean backgroundAndroid) throws Exception {
         //TODO: Implement automatic login
         /**
          * Similar to manualUserLogin, except:
@@ -222,12 +412,13 @@ public class ClientHandler {
          * - Response to client upon successful login: #104
          */
         // Request according to HoSo protocol: #103
-        String nameID = loginRequest[1];
-        String sessionKey = loginRequest[2];
+        // 103::nameID::sessionKey::caps:deflate,batch (optional last field: protocol features, see Capabilities)
+        String nameID = loginRequest.field(1);
+        String sessionKey = loginRequest.field(2);
         String confirmationMessage = "";
        /*
         if (loginRequest.length > 3) {
-            confirmationMessage = loginRequest[3];
+            confirmationMessage = loginRequest.field(3);
         }
         if (!confirmationMessage.isEmpty()) {
             backgroundAndroid = Boolean.valueOf(confirmationMessage);
@@ -240,7 +431,13 @@ public class ClientHandler {
         //System.out.println(check+"<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<<< valid");
         //if (check) {
 
-        JSONObject result = clientDB.automaticUserLogin(nameID, sessionKey);
+        JSONObject result;
+        long dbStart = System.nanoTime();
+        try {
+            result = clientDB.automaticUserLogin(nameID, sessionKey);
+        } finally {
+            loginDbLatency.record(System.nanoTime() - dbStart);
+        }
         int hubId = (Integer) result.get("hubId");
         boolean isAdmin = (Boolean) result.get("isAdmin");
 
@@ -249,40 +446,85 @@ public class ClientHandler {
         getHubAlias(hubId);
 
         Client_User validClient = new Client_User(hubId, nameID, isAdmin, sessionKey);
-        connectedClients.put(session, validClient);
-        debugLog(String.format("%s (%s)", "Client logged in", nameID), validClient.sessionID, getIP(session));
+        if (!backgroundAndroid) {
+            validClient.capabilities = getCapabilities(loginRequest, 3);
+            applyCapabilities(session, validClient);
+        }
+        registerClient(session, validClient);
+        debugLog("Client logged in", validClient.sessionID, session, nameID);
 
         if (backgroundAndroid) {
-            String longitude = loginRequest[3];
-            String lat = loginRequest[4];
+            String longitude = loginRequest.field(3);
+            String lat = loginRequest.field(4);
 
-            String serverRequest = String.format("502::%s::%s::1", longitude, lat);
-            ClientRequest forwardLocation = new ClientRequest(validClient.sessionID, serverRequest);
-            Server.getInstance().clientRequests.put(forwardLocation);
+            String serverRequest = new HoSoBuilder("502").add(longitude).add(lat).add(1).build();
+            ClientRequest forwardLocation = new ClientRequest(validClient.sessionID, validClient.hubID, serverRequest);
+            Server.getInstance().addClientRequest(forwardLocation);
 
         } else {
             // Response according to HoSo protocol #104
             String responseMsg = "Successful login";
-            String loginConfirmation = String.format("104::%s", responseMsg);
+            String loginConfirmation = new HoSoBuilder("104").add(responseMsg).build();
             writeToClient(session, loginConfirmation);
+            issueResumeToken(session, validClient);
 
             // Request all gadgets on behalf of the client
-            String request = String.format("%s::%s", "302", validClient.sessionID); //302::1
-            ClientRequest requestAllGadgets = new ClientRequest(validClient.sessionID, request);// 1,"302::1"
-            Server.getInstance().clientRequests.put(requestAllGadgets);
+            String request = new HoSoBuilder("302").add(validClient.sessionID).build(); //302::1
+            ClientRequest requestAllGadgets = new ClientRequest(validClient.sessionID, validClient.hubID, request);// 1,"302::1"
+            Server.getInstance().addClientRequest(requestAllGadgets);
 
         }
     }
 
-    public String getUserNameID(int sessionID) throws Exception {
-        synchronized (lock_clients) {
-            return ((Client_User) connectedClients.get(getSession(sessionID))).getNameID();
+    // #109 -> #110: No DB login, and no #302 (the client still has the gadgets)
+    private void resumeUserSession(Session session, HoSoMessage loginRequest) throws Exception {
+        // 109::resumeToken::caps:deflate,batch (optional last field: protocol features, see Capabilities)
+        Client_User resumedClient = sessionResumer.resume(loginRequest.field(1));
+        if (resumedClient == null) {
+            throw new Exception("Session expired. Log in again");
+        }
+        // Check that the hub is still connected
+        getHubAlias(resumedClient.hubID);
+        // Connection lost unnoticed (e.g. a phone on a cell handover): the new connection takes over
+        Session previousSession = connectedClients.getSession(resumedClient.sessionID);
+        if (previousSession != null) {
+            removeClient(previousSession);
+        }
+
+        if (loginRequest.fieldCount() > 2) {
+            resumedClient.capabilities = getCapabilities(loginRequest, 2);
+        }
+        applyCapabilities(session, resumedClient);
+        sessionResumer.issueToken(resumedClient);
+        // Same client instance and sessionID as before: answers in flight to the session reach it again
+        registerClient(session, resumedClient);
+        debugLog("Client resumed session", resumedClient.sessionID, session, resumedClient.getNameID());
+
+        String resumeConfirmation = new HoSoBuilder("110").add(resumedClient.resumeToken).add((int) sessionResumer.getGraceSeconds()).build();
+        writeToClient(session, resumeConfirmation);
+    }
+
+    // #108: Token for resuming the session if the connection is lost, to users that opted in (see SessionResumer)
+    private void issueResumeToken(Session session, Client_User client) {
+        if (sessionResumeEnabled && client.capabilities.has(Capabilities.RESUME)) {
+            sessionResumer.issueToken(client);
+            writeToClient(session, new HoSoBuilder("108").add(client.resumeToken).add((int) sessionResumer.getGraceSeconds()).build());
         }
     }
 
+    // Lost sessions kept for resuming, and resume counts
+    public SessionResumer getSessionResumer() {
+        return sessionResumer;
+    }
+
+    public String getUserNameID(int sessionID) throws Exception {
+        return ((Client_User) connectedClients.get(getSession(sessionID))).getNameID();
+    }
+
     // #120
-    private void hubLogin(Session session, String[] loginRequest) throws Exception {
+    private void hubLogin(Session session, HoSoMessage loginRequest) throws Exception {
         //120::12::1234::my house
+        //120::12::1234::my house::caps:binary (optional: protocol features, see Capabilities)
         //TODO: Implement hub login
         /**
          * - DB method only returns true/false (no data in case of success, and no exception in case of failure)
@@ -295,25 +537,73 @@ public class ClientHandler {
          */
         String msgToHub;
         String hubLoginConfirmation;
-        int hubId = Integer.parseInt(loginRequest[1]);
-        String hubPass = loginRequest[2];
-        String hubAlas = loginRequest[3];
-        if (clientDB.hubLogin(hubId, hubPass)) {
+        int hubId = loginRequest.intField(1);
+        String hubPass = loginRequest.field(2);
+        String hubAlas = loginRequest.field(3);
+        long dbStart = System.nanoTime();
+        boolean validLogin = clientDB.hubLogin(hubId, hubPass);
+        loginDbLatency.record(System.nanoTime() - dbStart);
+        if (validLogin) {
 
             Client_Hub validHub = new Client_Hub(hubId, hubAlas);
-            connectedClients.put(session, validHub);
-            debugLog(String.format("%s (%s)", "Hub logged in", hubId), validHub.sessionID, getIP(session));
+            validHub.capabilities = getCapabilities(loginRequest, 4);
+            // From the login confirmation (#121) and on, output to the hub is framed as requested
+            applyCapabilities(session, validHub);
+            registerClient(session, validHub);
+            Server.getInstance().getGadgetCache().invalidate(hubId);
+            Server.getInstance().getEventLog().reset(hubId);
+            ClusterNode.getInstance().hubConnected(hubId, hubAlas);
+            if (Server.getInstance().isDebugEnabled()) {
+                debugLog("Hub logged in", validHub.sessionID, session, String.valueOf(hubId));
+            }
             // response
             msgToHub = "Successful login";
-            hubLoginConfirmation = String.format("121::%s", msgToHub);
+            hubLoginConfirmation = new HoSoBuilder("121").add(msgToHub).build();
             writeToClient(session, hubLoginConfirmation);
         } else {
             msgToHub = "Unsuccessful login, the hub information are incorrect!";
-            hubLoginConfirmation = String.format("901::%s", msgToHub);
+            hubLoginConfirmation = new HoSoBuilder("901").add(msgToHub).build();
             writeToClient(session, hubLoginConfirmation);
         }
     }
 
+    // #130
+    private void nodeChallenge(Session session, HoSoMessage loginRequest) throws Exception {
+        // 130::nodeID::nonce -> 132::nonce::proof
+        writeToClient(session, ClusterNode.getInstance().challengeNodeLogin(session, loginRequest.intField(1), loginRequest.field(2)));
+    }
+
+    private void nodeLogin(Session session, HoSoMessage loginRequest) throws Exception {
+        // 133::proof
+        int nodeID = ClusterNode.getInstance().verifyNodeLogin(session, loginRequest.field(1));
+        Client_Node node = new Client_Node(nodeID);
+        registerClient(session, node);
+        if (Server.getInstance().isDebugEnabled()) {
+            debugLog("Node logged in", node.sessionID, session, String.valueOf(nodeID));
+        }
+        writeToClient(session, new HoSoBuilder("131").add(ClusterNode.getInstance().getNodeID()).build());
+    }
+
+    // Optional last field of a login request: caps:[name],[name],...
+    private Capabilities getCapabilities(HoSoMessage loginRequest, int field) {
+        if (loginRequest.fieldCount() > field && Capabilities.isCapabilityField(loginRequest.field(field))) {
+            return Capabilities.parse(loginRequest.field(field));
+        }
+        return Capabilities.NONE;
+    }
+
+    // Output to the session as opted in to at login (and as enabled in settings)
+    private void applyCapabilities(Session session, Client client) {
+        SessionSender sender = outbound.get(session);
+        if (sender != null) {
+            Settings settings = Server.getInstance().settings;
+            sender.setBinary(client.capabilities.has(Capabilities.BINARY) && settings.isBinaryFramingEnabled());
+            sender.setCompressor(client.capabilities.has(Capabilities.DEFLATE) && settings.isCompressionEnabled() ? compressor : null);
+            sender.setBatcher(client.capabilities.has(Capabilities.BATCH) && settings.isUpdateBatchingEnabled() ? updateBatcher : null);
+            sender.setSequenced(client.capabilities.has(Capabilities.SEQ) && settings.isEventReplayEnabled());
+        }
+    }
+
     private String generateSessionKey(String userName) throws Exception {
         // Create "random" hash value with small collision risk.
         // Called by manualUserLogin()
@@ -335,86 +625,111 @@ public class ClientHandler {
     // ============================================ UTILITIES =======================================================
 
     private Client_Hub getHubByHubID(int hubID) throws Exception {
-        synchronized (lock_clients) {
-            for (Session session : connectedClients.keySet()) {
-                Client client = connectedClients.get(session);
-                if (client instanceof Client_Hub && client.hubID == hubID) {
-                    return (Client_Hub) client;
-                }
-            }
-            throw new Exception("Your hub is not connected");
+        Session hubSession = connectedClients.getHubSession(hubID);
+        if (hubSession != null) {
+            return (Client_Hub) connectedClients.get(hubSession);
         }
+        throw new Exception("Your hub is not connected");
     }
 
     public Client_Hub getHubBySessionID(int sessionID) throws Exception {
 
-        synchronized (lock_clients) {
-            for (Session session : connectedClients.keySet()) {
-                Client client = connectedClients.get(session);
-                if (client instanceof Client_Hub && client.sessionID == sessionID) {
-                    return (Client_Hub) client;
-                }
+        Session session = connectedClients.getSession(sessionID);
+        if (session != null) {
+            Client client = connectedClients.get(session);
+            if (client instanceof Client_Hub) {
+                return (Client_Hub) client;
             }
-            throw new Exception("Your hub is not connected");
         }
+        throw new Exception("Your hub is not connected");
     }
 
+    // Hub on this node, or (cluster mode) on another node
     private String getHubAlias(int hubID) throws Exception {
-        synchronized (lock_clients) {
-            for (Session session : connectedClients.keySet()) {
-                Client client = connectedClients.get(session);
-                if (client instanceof Client_Hub && client.hubID == hubID) {
-                    return ((Client_Hub) client).alias;
-                }
+        Session hubSession = connectedClients.getHubSession(hubID);
+        if (hubSession == null) {
+            String alias = ClusterNode.getInstance().getHubAlias(hubID);
+            if (alias != null) {
+                return alias;
             }
-            throw new Exception("Your hub is not connected");
         }
+        return getHubByHubID(hubID).alias;
     }
 
-    public int getHubSessionIdByUserSessionId(int userSessionID) throws Exception {
-        synchronized (lock_clients) {
-            int hubID = getHubIDByHubSessionId(userSessionID);
-            return getHubByHubID(hubID).sessionID;
+    public boolean isHubConnectedHere(int hubID) {
+        return connectedClients.getHubSession(hubID) != null;
+    }
+
+    // Hubs logged in to this node
+    public List<Client_Hub> getConnectedHubs() {
+        List<Client_Hub> hubs = new ArrayList<>();
+        for (int hubID : connectedClients.getHubIDs()) {
+            Session hubSession = connectedClients.getHubSession(hubID);
+            Client client = hubSession == null ? null : connectedClients.get(hubSession);
+            if (client instanceof Client_Hub) {
+                hubs.add((Client_Hub) client);
+            }
         }
+        return hubs;
+    }
+
+    public int getHubSessionIdByUserSessionId(int userSessionID) throws Exception {
+        int hubID = getHubIDByHubSessionId(userSessionID);
+        return getHubByHubID(hubID).sessionID;
     }
 
     public int getHubIDByHubSessionId(int hubSessionID) throws Exception {
-        synchronized (lock_clients) {
-            int hubID = connectedClients.get(getSession(hubSessionID)).hubID;
-            if (hubID > -1) {
-                return hubID;
-            } else {
-                throw new Exception("No hubID was found connected to that session!");
-            }
+        int hubID = connectedClients.get(getSession(hubSessionID)).hubID;
+        if (hubID > -1) {
+            return hubID;
+        } else {
+            throw new Exception("No hubID was found connected to that session!");
         }
     }
 
 
     public Session getSession(int sessionID) throws Exception {
-        synchronized (lock_clients) {
-            for (Session session : connectedClients.keySet()) {
-                if (connectedClients.get(session).sessionID == sessionID) {
-                    return session;
-                }
-            }
-            throw new Exception("No session match");
+        Session session = connectedClients.getSession(sessionID);
+        if (session != null) {
+            return session;
         }
+        throw new Exception("No session match");
     }
 
     public void logoutOneDevice(int sessionId) throws Exception {
-        synchronized (lock_clients) {
-            String sessionKey = ((Client_User) connectedClients.get(getSession(sessionId))).getSessionKey();
-            clientDB.logoutThisDevice(sessionKey);
+        Client_User user = (Client_User) connectedClients.get(getSession(sessionId));
+        sessionResumer.revoke(user); // Not resumable once logged out
+        try {
+            clientDB.logoutThisDevice(user.getSessionKey());
+        } finally {
+            // Cluster mode: also no longer cached on the other nodes
+            ClusterNode.getInstance().sessionKeyLoggedOut(user.getSessionKey());
         }
     }
 
     public void logoutAllDevices(int sessionId) throws Exception {
-        synchronized (lock_clients) {
-            String nameId = ((Client_User) connectedClients.get(getSession(sessionId))).getNameID();
-            clientDB.logoutAllDevices(nameId);
+        Client_User user = (Client_User) connectedClients.get(getSession(sessionId));
+        sessionResumer.revoke(user); // Not resumable once logged out
+        sessionResumer.discardUser(user.getNameID());
+        try {
+            clientDB.logoutAllDevices(user.getNameID());
+        } finally {
+            // Cluster mode: also not resumable, nor cached, on the other nodes
+            ClusterNode.getInstance().userLoggedOut(user.getNameID());
         }
     }
 
+    // #814 from another node: the user logged out of all devices there
+    public void invalidateUser(String nameID) {
+        sessionResumer.discardUser(nameID);
+        clientDB.getSessionKeyCache().invalidateUser(nameID);
+    }
+
+    // #815 from another node: a device of a user logged out there
+    public void invalidateSessionKey(String sessionKey) {
+        clientDB.getSessionKeyCache().invalidateSessionKey(sessionKey);
+    }
+
 
     // For logging purposes
     private String getIP(Session session) {
@@ -424,64 +739,215 @@ public class ClientHandler {
     // ======================================== OUTPUT TO CLIENT(S) =================================================
     // Used by Server class to output data to connected clients
 
+    // Cluster mode: Sessions of other nodes are reached through their node, and broadcasts reach the users on every node
     public void outputToClients(int sessionID, boolean toHub, boolean onlyToIndividual, boolean onlyToAdmin, String msg) {
-        synchronized (lock_clients) {
-            Session targetSession = null;
-            try {
-                targetSession = getSession(sessionID);
-
-                /*if (onlyToIndividual) {
-                    if (toHub) {
-                        targetSession = getHubSession(sessionID);// get the hub session
-                    } else {
-                        targetSession = getSession(sessionID); // get client session here
-                    }*/
-
-                if (onlyToIndividual) {
-                    Client targetClient = connectedClients.get(targetSession);// I will get the whole client object
-                    // check if user is slogged in
-                    if (targetClient.loggedIn) {
-                        // check if target is a hub...
-                        if ((toHub && targetClient instanceof Client_Hub) ||
-                                // ... or target is a user, and verify admin rights in relation to the output request
-                                (!toHub && targetClient instanceof Client_User && (!onlyToAdmin || ((Client_User) targetClient).isAdmin()))) {
-                            // output to client
-                            writeToClient(targetSession, msg);
-                        }
-                    }
+        Session targetSession = null;
+        try {
+            if (onlyToIndividual && connectedClients.getSession(sessionID) == null
+                    && ClusterNode.getInstance().forwardToSession(sessionID, toHub, onlyToAdmin, msg)) {
+                return;
+            }
+            targetSession = getSession(sessionID);
+
+            /*if (onlyToIndividual) {
+                if (toHub) {
+                    targetSession = getHubSession(sessionID);// get the hub session
                 } else {
-                    // Msg to all users belonging to the same hub (note: this is not output to hubs)
-                    int hubID = connectedClients.get(getSession(sessionID)).hubID;
-                    for (Session session : connectedClients.keySet()) {
-                        Client targetClient = connectedClients.get(session);
-                        if (targetClient.loggedIn && targetClient.hubID == hubID && targetClient instanceof Client_User) {
-                            if (!onlyToAdmin || ((Client_User) targetClient).isAdmin()) {
-                                writeToClient(session, msg);
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                debugLog(e.getMessage(), getIP(targetSession), "SessionID: " + sessionID);
+                    targetSession = getSession(sessionID); // get client session here
+                }*/
+
+            if (onlyToIndividual) {
+                outputToClient(targetSession, toHub, onlyToAdmin, msg);
+            } else {
+                // Msg to all users belonging to the same hub (note: this is not output to hubs)
+                int hubID = connectedClients.get(targetSession).hubID;
+                broadcast(onlyToAdmin ? connectedClients.getAdminSessions(hubID) : connectedClients.getUserSessions(hubID), msg);
+                ClusterNode.getInstance().forwardToUsers(hubID, onlyToAdmin, msg);
+            }
+        } catch (Exception e) {
+            debugLog(e.getMessage(), sessionID, targetSession);
+        }
+    }
+
+    // Output to the client that issued a request, whether a hub or a user
+    public void replyToClient(int sessionID, String msg) {
+        Session session = connectedClients.getSession(sessionID);
+        Client client = session == null ? null : connectedClients.get(session);
+        outputToClients(sessionID, client instanceof Client_Hub, true, false, msg);
+    }
+
+    private void outputToClient(Session targetSession, boolean toHub, boolean onlyToAdmin, String msg) {
+        Client targetClient = connectedClients.get(targetSession);// I will get the whole client object
+        // check if user is slogged in
+        if (targetClient != null && targetClient.loggedIn) {
+            // check if target is a hub...
+            if ((toHub && targetClient instanceof Client_Hub) ||
+                    // ... or target is a user, and verify admin rights in relation to the output request
+                    (!toHub && targetClient instanceof Client_User && (!onlyToAdmin || ((Client_User) targetClient).isAdmin()))) {
+                // output to client
+                writeToClient(targetSession, msg);
+            }
+        }
+    }
+
+    // Hub event (#316, #352, #354, #404) to all users of the hub. Sequenced: as numbered by HubEventLog (#318), for users
+    // that opted in (null if event replay is disabled)
+    public void outputHubEvent(int hubID, String event, String sequenced) {
+        outputLocalHubEvent(hubID, event, sequenced);
+        if (sequenced == null) {
+            ClusterNode.getInstance().forwardToUsers(hubID, false, event);
+        } else {
+            ClusterNode.getInstance().forwardHubEvent(hubID, sequenced);
+        }
+    }
+
+    // Output to a hub: on this node, or (cluster mode) forwarded to the node holding the hub
+    public void outputToHub(int hubID, String msg) throws Exception {
+        Session hubSession = connectedClients.getHubSession(hubID);
+        if (hubSession != null) {
+            writeToClient(hubSession, msg);
+        } else if (!ClusterNode.getInstance().forwardToHub(hubID, msg)) {
+            throw new Exception("Your hub is not connected");
+        }
+    }
+
+    // ----- Cluster: output forwarded by other nodes. Only to this node's clients, never forwarded again -----
+
+    // False if the hub is not connected to this node
+    public boolean outputToLocalHub(int hubID, String msg) {
+        Session hubSession = connectedClients.getHubSession(hubID);
+        if (hubSession == null) {
+            return false;
+        }
+        writeToClient(hubSession, msg);
+        return true;
+    }
+
+    public void outputToLocalClient(int sessionID, boolean toHub, boolean onlyToAdmin, String msg) {
+        Session targetSession = connectedClients.getSession(sessionID);
+        if (targetSession != null) {
+            outputToClient(targetSession, toHub, onlyToAdmin, msg);
+        } else {
+            debugLog("No session match", sessionID);
+        }
+    }
+
+    public void outputToLocalUsers(int hubID, boolean onlyToAdmin, String msg) {
+        broadcast(onlyToAdmin ? connectedClients.getAdminSessions(hubID) : connectedClients.getUserSessions(hubID), msg);
+    }
+
+    public void outputLocalHubEvent(int hubID, String event, String sequenced) {
+        if (sequenced == null) {
+            broadcast(connectedClients.getUserSessions(hubID), event);
+            return;
+        }
+        // Both forms are built once, and each recipient gets the one it opted in to
+        final OutboundMessage message = new OutboundMessage(event);
+        final OutboundMessage sequencedMessage = new OutboundMessage(sequenced);
+        Set<Session> recipients = connectedClients.getUserSessions(hubID);
+        if (Server.getInstance().isDebugEnabled()) {
+            debugLog("Output to clients", String.valueOf(recipients.size()), sequenced);
+        }
+        if (recipients.size() >= broadcastParallelThreshold) {
+            recipients.parallelStream().forEach(session -> queueEventToClient(session, message, sequencedMessage));
+        } else {
+            for (Session session : recipients) {
+                queueEventToClient(session, message, sequencedMessage);
+            }
+        }
+    }
+
+    // Same message to individual users (e.g. every session waiting for a hub's gadgets). The message is built once.
+    public void outputToUsers(Collection<Integer> sessionIDs, String msg) {
+        OutboundMessage message = new OutboundMessage(msg);
+        if (Server.getInstance().isDebugEnabled()) {
+            debugLog("Output to clients", String.valueOf(sessionIDs.size()), msg);
+        }
+        for (int sessionID : sessionIDs) {
+            Session session = connectedClients.getSession(sessionID);
+            if (session != null && connectedClients.get(session) instanceof Client_User) {
+                queueToClient(session, message);
+            } else if (session == null) {
+                // Cluster: a user of another node
+                ClusterNode.getInstance().forwardToSession(sessionID, false, false, msg);
             }
         }
     }
 
     private void writeToClient(Session session, String msg) {
-        synchronized (lock_clients) {
-            if (session.isOpen()) {
-                try {
-                    debugLog("Output to client", getIP(session), msg);
-                    session.getRemote().sendString(msg);
-                } catch (IOException e) {
-                    debugLog("Unable to write to client", getIP(session), msg);
-                }
-            } else {
-                debugLog("Client session closed", getIP(session));
+        SessionSender sender = outbound.get(session);
+        if (sender != null && session.isOpen()) {
+            debugLog("Output to client", session, msg);
+            if (!sender.send(new OutboundMessage(msg))) {
+                debugLog("Output to client dropped", session, msg);
             }
+        } else {
+            debugLog("Client session closed", session);
         }
     }
 
+    // Same message to many sessions: The message is built and logged once, and the same instance is queued to every recipient.
+    // Large recipient sets are fanned out in parallel.
+    private void broadcast(Set<Session> recipients, String msg) {
+        final OutboundMessage message = new OutboundMessage(msg);
+        if (Server.getInstance().isDebugEnabled()) {
+            debugLog("Output to clients", String.valueOf(recipients.size()), msg);
+        }
+        if (recipients.size() >= broadcastParallelThreshold) {
+            recipients.parallelStream().forEach(session -> queueToClient(session, message));
+        } else {
+            for (Session session : recipients) {
+                queueToClient(session, message);
+            }
+        }
+    }
+
+    private void queueToClient(Session session, OutboundMessage message) {
+        SessionSender sender = outbound.get(session);
+        if (sender != null && session.isOpen()) {
+            sender.send(message);
+        }
+    }
+
+    private void queueEventToClient(Session session, OutboundMessage message, OutboundMessage sequencedMessage) {
+        SessionSender sender = outbound.get(session);
+        if (sender != null && session.isOpen()) {
+            sender.send(sender.isSequenced() ? sequencedMessage : message);
+        }
+    }
+
+    // Outbound queue of a session: queue length, sent and dropped message counts
+    public SessionSender getSender(int sessionID) throws Exception {
+        SessionSender sender = outbound.get(getSession(sessionID));
+        if (sender == null) {
+            throw new Exception("No session match");
+        }
+        return sender;
+    }
+
+    public DB_Clients getClientDB() {
+        return clientDB;
+    }
+
+    // Replace the database, e.g. with a local stand-in for benchmarks and load tests. Call before clients connect.
+    public void setClientDB(DB_Clients clientDB) {
+        DB_Clients previous = this.clientDB;
+        this.clientDB = clientDB;
+        if (previous != null && previous != clientDB) {
+            previous.close();
+        }
+    }
+
+    // Compression CPU time and bytes saved, per opcode
+    public MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    // Batched state update frames (#317) written, and the updates they carried
+    public UpdateBatcher getUpdateBatcher() {
+        return updateBatcher;
+    }
+
     // ===================================== DEBUG LOGS =======================================================
 
 
@@ -492,4 +958,28 @@ public class ClientHandler {
     private void debugLog(String log, int sessionID, String... data) {
         Server.getInstance().debugLog(log, sessionID, data);
     }
+
+    // The client's IP is only looked up if debug logging is enabled
+    private void debugLog(String log, Session session, String... data) {
+        if (Server.getInstance().isDebugEnabled()) {
+            Server.getInstance().debugLog(log, withIP(session, data));
+        }
+    }
+
+    private void debugLog(String log, int sessionID, Session session, String... data) {
+        if (Server.getInstance().isDebugEnabled()) {
+            Server.getInstance().debugLog(log, sessionID, withIP(session, data));
+        }
+    }
+
+    private String[] withIP(Session session, String[] data) {
+        String[] line = new String[data.length + 1];
+        try {
+            line[0] = getIP(session);
+        } catch (RuntimeException e) {
+            line[0] = "?"; // Session gone
+        }
+        System.arraycopy(data, 0, line, 1, data.length);
+        return line;
+    }
 }
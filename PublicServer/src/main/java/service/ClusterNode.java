@@ -0,0 +1,533 @@
+package service;
+
+import model.Client;
+import model.Client_Hub;
+import model.OutboundMessage;
+import model.Settings;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ClusterNode {
+
+    /**
+     * Cluster mode (clusterEnabled): several public server nodes, any of which accepts any client.
+     *
+     * Node links: every node connects to every peer in clusterPeers, the same way clients do, and logs in
+     * by proving it knows clusterSecret, without sending it (both sides prove it, with fresh random nonces):
+     *   130::[nodeID]::[nonce]          Connecting node
+     *   132::[peer nonce]::[proof]      Peer: HMAC-SHA256(clusterSecret, 132::[nodeID]::[nonce]::[peer nonce])
+     *   133::[proof]                    Connecting node: HMAC-SHA256(clusterSecret, 133::[nodeID]::[peer nonce]::[nonce])
+     *   131::[peer nodeID]              Peer: logged in
+     * A node sends on its own links, and receives on the links of its peers. Lost links are connected again every second.
+     *
+     * Hub directory: hubID -> node holding the hub, kept up to date by announcements on the links.
+     *   801::[hubID]::[alias]   The hub logged in to the sending node
+     *   802::[hubID]            The hub is no longer on the sending node
+     * All hubs of a node are announced when its link comes up, and forgotten when the link closes.
+     *
+     * Routing: session IDs are unique in the cluster and tell which node holds the session (see Client).
+     *   810::[hubID]::[message]                               To a hub of the receiving node (302, 312, 371, 402, 503)
+     *   811::[sessionID]::[toHub]::[onlyToAdmin]::[message]   To a session of the receiving node (e.g. 304, 373)
+     *   812::[hubID]::[onlyToAdmin]::[message]                To the receiving node's users of a hub (e.g. 107)
+     *   813::[hubID]::318::[seq]::[event]                     Hub event to the receiving node's users of a hub (see HubEventLog)
+     * A forwarded #302 is answered by the hub's node: from its gadget cache, or coalesced with other requests.
+     * A forwarded #330 (330::[last seq]::[target sessionID]) is answered by the hub's node, from its event log.
+     * Both are answered on the hub's dispatcher lane: in order with the state changes and events handled there.
+     *
+     * Logouts: a user's resume tokens and cached session keys are kept by every node it logged in to.
+     *   814::[nameID]       The user logged out of all devices (#106): discard its tokens and cached keys
+     *   815::[sessionKey]   A device logged out (#105): discard the cached key
+     * Sent once the logout is committed to the DB, so no node caches the old key again after it.
+     *
+     * Forwarded messages are handled on the link's WebSocket thread as they arrive, and only queued for
+     * output there, so messages from one hub reach the users of every node in the order sent. A forwarded
+     * #302 or #330 is handed over to the hub's dispatcher lane instead (see above).
+     */
+
+    private static final int MAX_NODES = 64;
+    private static final long RECONNECT_MS = 1000;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long PING_SECONDS = 20;
+    private static final int LINK_QUEUE_LIMIT = 100000; // Messages waiting to be written to one peer
+    private static final long LINK_MAX_BYTES = 256L * 1024 * 1024; // Beyond this the link is closed, and connected again
+    private static final int NONCE_BYTES = 16;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    // Node login in progress (#130 answered with #132)
+    private static class Challenge {
+        private final int peerNodeID;
+        private final String peerNonce;
+        private final String nonce;
+
+        private Challenge(int peerNodeID, String peerNonce, String nonce) {
+            this.peerNodeID = peerNodeID;
+            this.peerNonce = peerNonce;
+            this.nonce = nonce;
+        }
+    }
+
+    private static class HubLocation {
+        private final int nodeID;
+        private final String alias;
+
+        private HubLocation(int nodeID, String alias) {
+            this.nodeID = nodeID;
+            this.alias = alias;
+        }
+    }
+
+    private volatile boolean enabled;
+    private int nodeID;
+    private byte[] secret;
+    private final ConcurrentHashMap<Integer, HubLocation> directory; // HubID -> hub on another node
+    private final ConcurrentHashMap<Integer, PeerLink> links; // Peer nodeID -> logged in outbound link
+    private final ConcurrentHashMap<Session, Challenge> challenges; // Inbound link -> its login in progress
+    private final SecureRandom random;
+    private final List<PeerLink> peers;
+    private final LongAdder forwarded;
+    private WebSocketClient webSocketClient;
+    private ScheduledThreadPoolExecutor timer;
+
+    // Make Singleton
+    private static ClusterNode instance = null;
+
+    public static synchronized ClusterNode getInstance() {
+        if (instance == null) {
+            instance = new ClusterNode();
+        }
+        return instance;
+    }
+
+    private ClusterNode() {
+        directory = new ConcurrentHashMap<>();
+        links = new ConcurrentHashMap<>();
+        challenges = new ConcurrentHashMap<>();
+        random = new SecureRandom();
+        peers = new ArrayList<>();
+        forwarded = new LongAdder();
+    }
+
+    // Before the WebSocket server is launched. Does nothing unless clusterEnabled.
+    public void start(Settings settings) throws Exception {
+        if (!settings.isClusterEnabled()) {
+            return;
+        }
+        nodeID = settings.getClusterNodeID();
+        if (nodeID < 0 || nodeID >= MAX_NODES) {
+            throw new Exception("clusterNodeID must be 0 - " + (MAX_NODES - 1));
+        }
+        if (settings.getClusterSecret() == null || settings.getClusterSecret().isEmpty()) {
+            throw new Exception("clusterSecret must be set in cluster mode");
+        }
+        secret = settings.getClusterSecret().getBytes(StandardCharsets.UTF_8);
+        Client.useClusterSessionIDs(nodeID, MAX_NODES);
+
+        webSocketClient = new WebSocketClient();
+        webSocketClient.getPolicy().setMaxTextMessageSize(16 * 1024 * 1024);
+        webSocketClient.setMaxIdleTimeout(TimeUnit.SECONDS.toMillis(PING_SECONDS * 3));
+        webSocketClient.start();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cluster-links");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        enabled = true;
+        for (String peer : settings.getClusterPeers()) {
+            final PeerLink link = new PeerLink(URI.create("ws://" + peer + "/homesome"));
+            peers.add(link);
+            timer.execute(link::connect);
+        }
+        timer.scheduleAtFixedRate(this::ping, PING_SECONDS, PING_SECONDS, TimeUnit.SECONDS);
+        System.out.println(String.format("Cluster node %d: linking to %d peers", nodeID, peers.size()));
+    }
+
+    public void stop() {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        timer.shutdownNow();
+        try {
+            webSocketClient.stop();
+        } catch (Exception e) {
+            Server.getInstance().warnLog("Unable to stop cluster links", e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getNodeID() {
+        return nodeID;
+    }
+
+    // True if the session is on another node (never when not in cluster mode)
+    public boolean isRemoteSession(int sessionID) {
+        return enabled && Client.nodeOfSessionID(sessionID) != nodeID;
+    }
+
+    // ========================================= NODE LOGIN =========================================================
+
+    // #130 from a peer: 130::[peer nodeID]::[peer nonce]. Returns the answer, #132
+    public String challengeNodeLogin(Session session, int peerNodeID, String peerNonce) throws Exception {
+        if (!enabled || peerNodeID < 0 || peerNodeID >= MAX_NODES || peerNodeID == nodeID || peerNonce.length() < NONCE_BYTES * 2) {
+            throw new Exception("Invalid node login");
+        }
+        String nonce = newNonce();
+        challenges.put(session, new Challenge(peerNodeID, peerNonce, nonce));
+        return new HoSoBuilder("132").add(nonce).add(proof("132", peerNodeID, peerNonce, nonce)).build();
+    }
+
+    // #133 from a peer: 133::[proof]. Returns the peer's node ID. A challenge is answered once.
+    public int verifyNodeLogin(Session session, String peerProof) throws Exception {
+        Challenge challenge = challenges.remove(session);
+        if (challenge == null || !isEqual(proof("133", challenge.peerNodeID, challenge.nonce, challenge.peerNonce), peerProof)) {
+            throw new Exception("Invalid node login");
+        }
+        return challenge.peerNodeID;
+    }
+
+    // The session closed, possibly before completing its node login
+    public void loginClosed(Session session) {
+        challenges.remove(session);
+    }
+
+    private String newNonce() {
+        byte[] bytes = new byte[NONCE_BYTES];
+        random.nextBytes(bytes);
+        return hex(bytes);
+    }
+
+    // HMAC-SHA256(clusterSecret, [step]::[nodeID]::[first nonce]::[second nonce]), as hex
+    private String proof(String step, int loginNodeID, String firstNonce, String secondNonce) throws Exception {
+        Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(secret, HMAC_ALGORITHM));
+        String challenge = new HoSoBuilder(step).add(loginNodeID).add(firstNonce).add(secondNonce).build();
+        return hex(mac.doFinal(challenge.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static boolean isEqual(String expected, String actual) {
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // ====================================== HUB DIRECTORY =========================================================
+
+    // A hub logged in to this node
+    public void hubConnected(int hubID, String alias) {
+        if (enabled) {
+            sendToAll(new HoSoBuilder("801").add(hubID).add(alias).build());
+        }
+    }
+
+    // The last session of a hub closed on this node
+    public void hubDisconnected(int hubID) {
+        if (enabled) {
+            sendToAll(new HoSoBuilder("802").add(hubID).build());
+        }
+    }
+
+    // Alias of a hub on another node, or null
+    public String getHubAlias(int hubID) {
+        HubLocation location = directory.get(hubID);
+        return location == null ? null : location.alias;
+    }
+
+    // A peer's link to this node closed: its hubs are announced again when it is back
+    public void nodeLeft(int peerNodeID) {
+        directory.values().removeIf(location -> location.nodeID == peerNodeID);
+        Server.getInstance().warnLog("Cluster node left", String.valueOf(peerNodeID));
+    }
+
+    // =========================================== LOGOUTS ==========================================================
+
+    // #106 on this node
+    public void userLoggedOut(String nameID) {
+        if (enabled) {
+            sendToAll(new HoSoBuilder("814").add(nameID).build());
+        }
+    }
+
+    // #105 on this node
+    public void sessionKeyLoggedOut(String sessionKey) {
+        if (enabled) {
+            sendToAll(new HoSoBuilder("815").add(sessionKey).build());
+        }
+    }
+
+    // ========================================= FORWARDING =========================================================
+
+    // False if the hub is not known to be on another node
+    public boolean forwardToHub(int hubID, String msg) {
+        HubLocation location = directory.get(hubID);
+        return location != null && send(location.nodeID, new HoSoBuilder("810").add(hubID).add(msg).build());
+    }
+
+    // False if the session is not on another node (or not in cluster mode)
+    public boolean forwardToSession(int sessionID, boolean toHub, boolean onlyToAdmin, String msg) {
+        if (!enabled) {
+            return false;
+        }
+        int sessionNode = Client.nodeOfSessionID(sessionID);
+        return sessionNode != nodeID
+                && send(sessionNode, new HoSoBuilder("811").add(sessionID).add(toHub).add(onlyToAdmin).add(msg).build());
+    }
+
+    // To the users of a hub on every other node
+    public void forwardToUsers(int hubID, boolean onlyToAdmin, String msg) {
+        if (enabled && !links.isEmpty()) {
+            sendToAll(new HoSoBuilder("812").add(hubID).add(onlyToAdmin).add(msg).build());
+        }
+    }
+
+    // Hub event with its sequence number (#318), to the users of the hub on every other node
+    public void forwardHubEvent(int hubID, String sequenced) {
+        if (enabled && !links.isEmpty()) {
+            sendToAll(new HoSoBuilder("813").add(hubID).add(sequenced).build());
+        }
+    }
+
+    // Messages from a peer's link (called on the link's WebSocket thread)
+    public void receive(int fromNode, HoSoMessage msg) {
+        try {
+            switch (msg.opcode()) {
+                case "801":
+                    directory.put(msg.intField(1), new HubLocation(fromNode, msg.field(2)));
+                    break;
+                case "802":
+                    directory.computeIfPresent(msg.intField(1), (hubID, location) -> location.nodeID == fromNode ? null : location);
+                    break;
+                case "810":
+                    receiveForHub(msg.intField(1), msg.fieldsFrom(2));
+                    break;
+                case "811":
+                    ClientHandler.getInstance().outputToLocalClient(msg.intField(1), Boolean.parseBoolean(msg.field(2)),
+                            Boolean.parseBoolean(msg.field(3)), msg.fieldsFrom(4));
+                    break;
+                case "812":
+                    ClientHandler.getInstance().outputToLocalUsers(msg.intField(1), Boolean.parseBoolean(msg.field(2)), msg.fieldsFrom(3));
+                    break;
+                case "813":
+                    // 813::hubID::318::seq::[event]
+                    ClientHandler.getInstance().outputLocalHubEvent(msg.intField(1), msg.fieldsFrom(4), msg.fieldsFrom(2));
+                    break;
+                case "814":
+                    ClientHandler.getInstance().invalidateUser(msg.field(1));
+                    break;
+                case "815":
+                    ClientHandler.getInstance().invalidateSessionKey(msg.field(1));
+                    break;
+                default:
+                    if (Server.getInstance().isDebugEnabled()) {
+                        Server.getInstance().debugLog("Invalid cluster message", String.valueOf(fromNode), msg.getSource());
+                    }
+                    break;
+            }
+        } catch (Exception e) {
+            if (Server.getInstance().isDebugEnabled()) {
+                Server.getInstance().debugLog("Unable to handle cluster message", String.valueOf(fromNode), e.getMessage());
+            }
+        }
+    }
+
+    // #810: Requests of users on other nodes
+    private void receiveForHub(int hubID, String request) throws Exception {
+        HoSoMessage forwardedRequest = HoSoMessage.parse(request);
+        String opcode = forwardedRequest.opcode();
+        if (opcode.equals("302") || opcode.equals("330")) {
+            // 302::[target sessionID] or 330::[last seq]::[target sessionID]: answered on the hub's dispatcher lane
+            int targetSessionID = forwardedRequest.intField(forwardedRequest.fieldCount() - 1);
+            Server.getInstance().dispatchForwardedRequest(hubID, targetSessionID, request);
+        } else if (!ClientHandler.getInstance().outputToLocalHub(hubID, request)) {
+            if (Server.getInstance().isDebugEnabled()) {
+                Server.getInstance().debugLog("Forwarded to a hub not connected", String.valueOf(hubID), request);
+            }
+        }
+    }
+
+    private boolean send(int peerNodeID, String msg) {
+        PeerLink link = links.get(peerNodeID);
+        return link != null && link.send(msg);
+    }
+
+    private void sendToAll(String msg) {
+        for (PeerLink link : links.values()) {
+            link.send(msg);
+        }
+    }
+
+    private void ping() {
+        for (PeerLink link : links.values()) {
+            link.send("ping");
+        }
+    }
+
+    // ========================================== MONITORING ========================================================
+
+    // Peers this node has a logged in link to
+    public int getLinkCount() {
+        return links.size();
+    }
+
+    // Hubs on other nodes
+    public int getRemoteHubCount() {
+        return directory.size();
+    }
+
+    // Messages sent to other nodes
+    public long getForwardedCount() {
+        return forwarded.sum();
+    }
+
+    // ========================================== PEER LINKS ========================================================
+
+    // Outbound link to one peer: connected (and logged in) again whenever it closes
+    private class PeerLink implements WebSocketListener {
+        private final URI uri;
+        private volatile SessionSender sender;
+        private volatile int peerNodeID = -1;
+        private volatile String nonce; // Of the login in progress
+        private final AtomicBoolean reconnectPending = new AtomicBoolean();
+
+        private PeerLink(URI uri) {
+            this.uri = uri;
+        }
+
+        // On the timer thread: blocks until connected, or the peer is found unreachable
+        private void connect() {
+            reconnectPending.set(false);
+            if (!enabled || sender != null) {
+                return;
+            }
+            Future<Session> connecting = null;
+            try {
+                connecting = webSocketClient.connect(this, uri);
+                connecting.get(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                if (connecting != null) {
+                    connecting.cancel(true);
+                }
+                Server.getInstance().debugLog("Cluster peer unreachable", uri.toString());
+                reconnectLater();
+            }
+        }
+
+        // At most one reconnect scheduled: a failed connect may also be reported as a close
+        private void reconnectLater() {
+            if (enabled && reconnectPending.compareAndSet(false, true)) {
+                timer.schedule(this::connect, RECONNECT_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private boolean send(String msg) {
+            SessionSender sender = this.sender;
+            if (sender == null || !sender.send(new OutboundMessage(msg))) {
+                return false;
+            }
+            forwarded.increment();
+            return true;
+        }
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            if (sender != null) {
+                // Late connect after a timeout, while another connection is up
+                session.close();
+                return;
+            }
+            sender = new SessionSender(session, LINK_QUEUE_LIMIT, LINK_MAX_BYTES, false);
+            nonce = newNonce();
+            sender.send(new OutboundMessage(new HoSoBuilder("130").add(nodeID).add(nonce).build()));
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            HoSoMessage msg = HoSoMessage.parse(message);
+            if (msg.opcode().equals("132")) {
+                answerChallenge(msg);
+            } else if (msg.opcode().equals("131")) {
+                // Logged in: from here on the peer learns this node's hubs
+                peerNodeID = msg.intField(1);
+                links.put(peerNodeID, this);
+                for (Client_Hub hub : ClientHandler.getInstance().getConnectedHubs()) {
+                    send(new HoSoBuilder("801").add(hub.hubID).add(hub.alias).build());
+                }
+                System.out.println(String.format("Cluster node %d: linked to node %d (%s)", nodeID, peerNodeID, uri.getAuthority()));
+            } else if (msg.opcode().equals("903") || msg.opcode().equals("901")) {
+                Server.getInstance().warnLog("Cluster login refused", uri.toString(), message);
+            }
+        }
+
+        // #132: the peer proved it knows clusterSecret. Prove it too, or give up on the peer if its proof is wrong.
+        private void answerChallenge(HoSoMessage challenge) {
+            SessionSender sender = this.sender;
+            String nonce = this.nonce;
+            if (sender == null || nonce == null) {
+                return;
+            }
+            this.nonce = null;
+            try {
+                String peerNonce = challenge.field(1);
+                if (!isEqual(proof("132", nodeID, nonce, peerNonce), challenge.field(2))) {
+                    throw new Exception("Peer does not know clusterSecret");
+                }
+                sender.send(new OutboundMessage(new HoSoBuilder("133").add(proof("133", nodeID, peerNonce, nonce)).build()));
+            } catch (Exception e) {
+                Server.getInstance().warnLog("Cluster peer failed authentication", uri.toString(), e.getMessage());
+                sender.close();
+            }
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int length) {
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+            if (peerNodeID >= 0) {
+                links.remove(peerNodeID, this);
+                Server.getInstance().warnLog("Cluster link lost", uri.toString(), reason);
+            }
+            peerNodeID = -1;
+            SessionSender sender = this.sender;
+            this.sender = null;
+            if (sender != null) {
+                sender.close();
+            }
+            reconnectLater();
+        }
+
+        @Override
+        public void onWebSocketError(Throwable cause) {
+            Server.getInstance().debugLog("Cluster link error", uri.toString(), String.valueOf(cause.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package service;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class GadgetCache {
+
+    /**
+     * Server side copy of each connected hub's gadget table.
+     *
+     * - Built from the hub's full gadget list (#303).
+     * - Kept current by the hub's own reports: state change (#315), new gadget (#351),
+     *   gadget connection lost (#353) and alias change (#403).
+     * - Lets user requests for all gadgets (#301/#302) be answered with #304 from memory.
+     *   The hub is only asked when its table is cold (never received, or invalidated).
+     * - A report that does not fit the table (e.g. state of an unknown gadget) invalidates it,
+     *   so the next request goes to the hub again.
+     *
+     * Gadget fields according to HoSo protocol:
+     * [id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec]
+     */
+
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_ALIAS = 1;
+    private static final int FIELD_STATE = 4;
+    private static final int FIELDS_PER_GADGET = 6;
+
+    private static class HubGadgets {
+        // Guarded by this. Gadget ID -> gadget fields, in the order reported by the hub
+        private final LinkedHashMap<String, String[]> gadgets = new LinkedHashMap<>();
+    }
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<Integer, HubGadgets> hubs;
+
+    public GadgetCache(boolean enabled) {
+        this.enabled = enabled;
+        hubs = new ConcurrentHashMap<>();
+    }
+
+    // #303: [targetSessionID]::[numberOfGadgets]::[gadget fields]...
+    public void putAll(int hubID, HoSoMessage commands) {
+        if (!enabled) {
+            return;
+        }
+        int numberOfGadgets = commands.intField(2);
+        if (commands.fieldCount() - 3 != numberOfGadgets * FIELDS_PER_GADGET) {
+            // Unexpected format: Do not answer from memory
+            invalidate(hubID);
+            return;
+        }
+        HubGadgets table = new HubGadgets();
+        for (int gadget = 0; gadget < numberOfGadgets; gadget++) {
+            table.gadgets.put(commands.field(3 + gadget * FIELDS_PER_GADGET + FIELD_ID), copyFields(commands, 3 + gadget * FIELDS_PER_GADGET));
+        }
+        hubs.put(hubID, table);
+    }
+
+    // #315: [gadgetID]::[state]
+    public void updateState(int hubID, String gadgetID, String state) {
+        updateField(hubID, gadgetID, FIELD_STATE, state);
+    }
+
+    // #403: [gadgetID]::[newAlias]
+    public void updateAlias(int hubID, String gadgetID, String alias) {
+        updateField(hubID, gadgetID, FIELD_ALIAS, alias);
+    }
+
+    // #351: [id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec]
+    public void putGadget(int hubID, HoSoMessage commands) {
+        HubGadgets table = hubs.get(hubID);
+        if (table == null) {
+            return;
+        }
+        if (commands.fieldCount() - 1 != FIELDS_PER_GADGET) {
+            invalidate(hubID);
+            return;
+        }
+        String[] fields = copyFields(commands, 1);
+        synchronized (table) {
+            table.gadgets.put(fields[FIELD_ID], fields);
+        }
+    }
+
+    // #353: [gadgetID]
+    public void removeGadget(int hubID, String gadgetID) {
+        HubGadgets table = hubs.get(hubID);
+        if (table != null) {
+            synchronized (table) {
+                table.gadgets.remove(gadgetID);
+            }
+        }
+    }
+
+    // Hub (re)connected or disconnected: Its gadgets must be requested from the hub again
+    public void invalidate(int hubID) {
+        hubs.remove(hubID);
+    }
+
+    // #304 built from memory. Null if the hub's table is cold.
+    public String buildAllGadgetsMessage(int hubID) {
+        HubGadgets table = hubs.get(hubID);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table) {
+            HoSoBuilder msg = new HoSoBuilder("304", 64 * (table.gadgets.size() + 1)).add(table.gadgets.size());
+            for (String[] fields : table.gadgets.values()) {
+                for (String field : fields) {
+                    msg.add(field);
+                }
+            }
+            return msg.build();
+        }
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private String[] copyFields(HoSoMessage commands, int first) {
+        String[] fields = new String[FIELDS_PER_GADGET];
+        for (int field = 0; field < FIELDS_PER_GADGET; field++) {
+            fields[field] = commands.field(first + field);
+        }
+        return fields;
+    }
+
+    private void updateField(int hubID, String gadgetID, int field, String value) {
+        HubGadgets table = hubs.get(hubID);
+        if (table == null) {
+            return;
+        }
+        boolean known;
+        synchronized (table) {
+            String[] fields = table.gadgets.get(gadgetID);
+            known = fields != null;
+            if (known) {
+                fields[field] = value;
+            }
+        }
+        if (!known) {
+            invalidate(hubID);
+        }
+    }
+}
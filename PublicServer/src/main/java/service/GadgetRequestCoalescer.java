@@ -0,0 +1,97 @@
+package service;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class GadgetRequestCoalescer {
+
+    /**
+     * Deduplicates requests for all gadgets (#302) to the same hub.
+     *
+     * While a #302 to a hub is in flight, further user sessions asking the same hub are only
+     * added as waiters. The single #303 answer is sent as #304 to every waiting session.
+     *
+     * If the hub does not answer within timeoutMs, the waiters are released and told
+     * so (#901), and the next request goes to the hub again.
+     */
+
+    private static class PendingRequest {
+        private final Set<Integer> waiters = new LinkedHashSet<>();
+        private ScheduledFuture<?> timeout;
+    }
+
+    private final long timeoutMs;
+    private final ScheduledThreadPoolExecutor timer;
+
+    // Guarded by this. HubID -> request in flight
+    private final HashMap<Integer, PendingRequest> pending;
+
+    public GadgetRequestCoalescer(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+        pending = new HashMap<>();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gadget-request-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    // Returns true if the caller must send the request to the hub (no request to that hub in flight)
+    public synchronized boolean addWaiter(final int hubID, int sessionID) {
+        PendingRequest request = pending.get(hubID);
+        if (request != null) {
+            request.waiters.add(sessionID);
+            return false;
+        }
+        final PendingRequest newRequest = new PendingRequest();
+        newRequest.waiters.add(sessionID);
+        newRequest.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(hubID, newRequest);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        pending.put(hubID, newRequest);
+        return true;
+    }
+
+    // #303 received: Sessions waiting for the hub's gadgets (empty if none)
+    public Set<Integer> complete(int hubID) {
+        PendingRequest request;
+        synchronized (this) {
+            request = pending.remove(hubID);
+        }
+        if (request == null) {
+            return new LinkedHashSet<>();
+        }
+        request.timeout.cancel(false);
+        return request.waiters;
+    }
+
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    // Fallback: The hub did not answer in time
+    private void expire(int hubID, PendingRequest request) {
+        synchronized (this) {
+            if (pending.get(hubID) != request) {
+                return;
+            }
+            pending.remove(hubID);
+        }
+        if (Server.getInstance().isDebugEnabled()) {
+            Server.getInstance().debugLog("Hub did not answer #302", String.valueOf(hubID));
+        }
+        ClientHandler.getInstance().outputToUsers(request.waiters, "901::Your hub did not respond. Try again");
+    }
+}
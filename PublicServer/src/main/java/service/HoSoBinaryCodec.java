@@ -0,0 +1,174 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class HoSoBinaryCodec {
+
+    /**
+     * Compact binary framing of HoSo protocol messages, for hubs that opt in at login (caps:binary).
+     *
+     * Frame:  [opcode varint] ([tag] [field])*
+     * - tag 0: field is a non-negative integer, written as an unsigned varint (7 bits per byte, low bits first)
+     * - tag 1: field is text, written as [byte length varint] [UTF-8 bytes]
+     *
+     * E.g. 315::12::1 is 6 bytes instead of 10, and IDs and counts in 303 gadget lists take 1-2 bytes each.
+     *
+     * A frame translates to exactly one text message and back: integers are only sent as varints
+     * when their decimal text is canonical (no sign, no leading zeros), so decoding reproduces the text.
+     * The rest of the server works on the text form only.
+     */
+
+    private static final byte TAG_INT = 0;
+    private static final byte TAG_TEXT = 1;
+    private static final int MAX_INT_DIGITS = 9; // Any 9 digit number fits in an int
+
+    private HoSoBinaryCodec() {
+    }
+
+    // Returns null if the message can not be framed (non-numeric opcode), and should be sent as text
+    public static byte[] encode(String message) {
+        HoSoMessage fields = HoSoMessage.parse(message);
+        String opcode = fields.opcode();
+        if (!isCanonicalInt(opcode)) {
+            return null;
+        }
+        Encoder out = new Encoder(message.length() + 8);
+        out.writeVarint(Integer.parseInt(opcode));
+        for (int i = 1; i < fields.fieldCount(); i++) {
+            String field = fields.field(i);
+            if (isCanonicalInt(field)) {
+                out.writeByte(TAG_INT);
+                out.writeVarint(Integer.parseInt(field));
+            } else {
+                byte[] text = field.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(TAG_TEXT);
+                out.writeVarint(text.length);
+                out.writeBytes(text);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static String decode(byte[] frame, int offset, int length) throws Exception {
+        Decoder in = new Decoder(frame, offset, length);
+        StringBuilder message = new StringBuilder(2 * length);
+        message.append(in.readVarint());
+        while (in.hasMore()) {
+            message.append("::");
+            byte tag = in.readByte();
+            if (tag == TAG_INT) {
+                message.append(in.readVarint());
+            } else if (tag == TAG_TEXT) {
+                int textLength = in.readVarint();
+                message.append(in.readText(textLength));
+            } else {
+                throw new Exception("Invalid binary frame: Unknown field tag " + tag);
+            }
+        }
+        return message.toString();
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private static boolean isCanonicalInt(String field) {
+        int length = field.length();
+        if (length == 0 || length > MAX_INT_DIGITS || (length > 1 && field.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Encoder {
+        private byte[] buffer;
+        private int position;
+
+        Encoder(int capacity) {
+            buffer = new byte[capacity];
+            position = 0;
+        }
+
+        void writeByte(byte b) {
+            ensureCapacity(1);
+            buffer[position++] = b;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensureCapacity(int needed) {
+            if (position + needed > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + needed));
+            }
+        }
+    }
+
+    private static final class Decoder {
+        private final byte[] frame;
+        private final int end;
+        private int position;
+
+        Decoder(byte[] frame, int offset, int length) {
+            this.frame = frame;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        byte readByte() throws Exception {
+            if (position >= end) {
+                throw new Exception("Invalid binary frame: Truncated");
+            }
+            return frame[position++];
+        }
+
+        int readVarint() throws Exception {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) {
+                        throw new Exception("Invalid binary frame: Varint out of range");
+                    }
+                    return value;
+                }
+            }
+            throw new Exception("Invalid binary frame: Varint too long");
+        }
+
+        String readText(int length) throws Exception {
+            if (length > end - position) {
+                throw new Exception("Invalid binary frame: Truncated");
+            }
+            String text = new String(frame, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return text;
+        }
+    }
+}
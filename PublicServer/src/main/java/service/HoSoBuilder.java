@@ -0,0 +1,55 @@
+package service;
+
+public final class HoSoBuilder {
+
+    /**
+     * Builder for outgoing HoSo protocol messages: [opcode]::[field]::[field]...
+     *
+     * Appends every field to one buffer, so building a message is linear in its size
+     * (instead of one String.format and one copy of the whole message per field).
+     */
+
+    private final StringBuilder builder;
+
+    public HoSoBuilder(String opcode) {
+        builder = new StringBuilder(64).append(opcode);
+    }
+
+    // Capacity hint: expected length of the message, e.g. the length of the message it is built from
+    public HoSoBuilder(String opcode, int capacity) {
+        builder = new StringBuilder(capacity).append(opcode);
+    }
+
+    public HoSoBuilder add(String field) {
+        builder.append("::").append(field);
+        return this;
+    }
+
+    public HoSoBuilder add(int field) {
+        builder.append("::").append(field);
+        return this;
+    }
+
+    public HoSoBuilder add(boolean field) {
+        builder.append("::").append(field);
+        return this;
+    }
+
+    // Forwards fields [from, last] of an incoming message, without splitting or copying them individually
+    public HoSoBuilder addFields(HoSoMessage message, int from) {
+        if (from < message.fieldCount()) {
+            builder.append("::");
+            message.appendFields(builder, from);
+        }
+        return this;
+    }
+
+    public String build() {
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return build();
+    }
+}
@@ -0,0 +1,133 @@
+package service;
+
+public final class HoSoMessage {
+
+    /**
+     * Zero-copy tokenizer for incoming HoSo protocol messages: [field]::[field]::...
+     *
+     * Only the boundaries of the fields are recorded. No field is copied until it is asked for,
+     * and ranges of fields can be forwarded straight from the source message (see HoSoBuilder.addFields).
+     *
+     * Field semantics match String.split("::"): trailing empty fields are dropped.
+     * Reading a field that does not exist throws ArrayIndexOutOfBoundsException, like the array did.
+     */
+
+    private static final String DELIMITER = "::";
+
+    private final String source;
+    private int[] starts;
+    private int[] ends;
+    private int count;
+
+    private HoSoMessage(String source) {
+        this.source = source;
+        starts = new int[8];
+        ends = new int[8];
+        count = 0;
+    }
+
+    public static HoSoMessage parse(String message) {
+        HoSoMessage parsed = new HoSoMessage(message);
+        int start = 0;
+        int delimiter;
+        while ((delimiter = message.indexOf(DELIMITER, start)) >= 0) {
+            parsed.addField(start, delimiter);
+            start = delimiter + DELIMITER.length();
+        }
+        parsed.addField(start, message.length());
+        // As String.split(): Drop trailing empty fields (but keep at least one field)
+        while (parsed.count > 1 && parsed.starts[parsed.count - 1] == parsed.ends[parsed.count - 1]) {
+            parsed.count--;
+        }
+        return parsed;
+    }
+
+    public int fieldCount() {
+        return count;
+    }
+
+    public String opcode() {
+        return field(0);
+    }
+
+    public String field(int index) {
+        checkIndex(index);
+        return source.substring(starts[index], ends[index]);
+    }
+
+    // Parses a numeric field without copying it
+    public int intField(int index) {
+        checkIndex(index);
+        int position = starts[index];
+        int end = ends[index];
+        boolean negative = position < end && source.charAt(position) == '-';
+        if (negative) {
+            position++;
+        }
+        if (position == end) {
+            throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+        }
+        long value = 0;
+        for (; position < end; position++) {
+            int digit = source.charAt(position) - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+            }
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw new NumberFormatException("For input string: \"" + field(index) + "\"");
+        }
+        return (int) value;
+    }
+
+    public boolean fieldEquals(int index, String value) {
+        checkIndex(index);
+        int length = ends[index] - starts[index];
+        return length == value.length() && source.regionMatches(starts[index], value, 0, length);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    // Appends fields [from, last] to the builder as they appear in the source, delimiters included
+    void appendFields(StringBuilder builder, int from) {
+        if (from < count) {
+            builder.append(source, starts[from], ends[count - 1]);
+        }
+    }
+
+    // Fields [from, last] as they appear in the source, delimiters included. Empty if from is past the last field
+    public String fieldsFrom(int from) {
+        return from < count ? source.substring(starts[from], ends[count - 1]) : "";
+    }
+
+    // Copies of all fields
+    public String[] toArray() {
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            fields[i] = field(i);
+        }
+        return fields;
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private void addField(int start, int end) {
+        if (count == starts.length) {
+            starts = java.util.Arrays.copyOf(starts, count * 2);
+            ends = java.util.Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+}
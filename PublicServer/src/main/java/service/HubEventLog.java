@@ -0,0 +1,146 @@
+package service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class HubEventLog {
+
+    /**
+     * Sequence numbers and replay of hub events (#316, #352, #354, #404), for users that opt in at login (caps:seq).
+     *
+     * Every event of a hub gets the hub's next sequence number, and goes to opted in users as
+     *   318::[seq]::[event]            e.g. 318::1700000000000042::316::7::on
+     * The latest 'capacity' events of every hub are kept. A user that missed events (e.g. while reconnecting)
+     * asks for them with 330::[last seq seen], and gets
+     *   318::[seq]::[event] ...        each missed event, in order, then
+     *   331::[latest seq]::[count]     (the replay ends with the latest event)
+     * or, if some were overwritten already (or are from before the hub last logged in):
+     *   332::[latest seq]              reload all gadgets (#301)
+     *
+     * Sequence numbers of a hub start at [time in ms] * 1000 whenever it logs in or out: always above the
+     * numbers of its earlier logs (at up to 1000 events per ms), also across server restarts. So a number from
+     * before the hub's gadgets may have changed unreported is always found too old.
+     *
+     * Events of a hub are appended by its dispatcher lane, so a replay run on that lane is in order with the
+     * live events to the same session.
+     */
+
+    private static final String SEQUENCED_OPCODE = "318";
+    private static final String REPLAYED_OPCODE = "331";
+    private static final String RELOAD_OPCODE = "332";
+
+    private static class Ring {
+        private final long first; // Sequence number of the first event of this log
+        private long next;
+        private String[] events; // Sequenced events, by [seq] % capacity. Allocated with the first event
+
+        private Ring(long first) {
+            this.first = first;
+            this.next = first;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, Ring> rings; // HubID -> its log
+    private final LongAdder replays;
+    private final LongAdder replayedEvents;
+    private final LongAdder reloads;
+
+    public HubEventLog(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        rings = new ConcurrentHashMap<>();
+        replays = new LongAdder();
+        replayedEvents = new LongAdder();
+        reloads = new LongAdder();
+    }
+
+    // The event as sent to opted in users (#318), now with the hub's next sequence number
+    public String append(int hubID, String event) {
+        Ring ring = rings.computeIfAbsent(hubID, id -> new Ring(startOfLog(null)));
+        synchronized (ring) {
+            long seq = ring.next++;
+            String sequenced = new StringBuilder(event.length() + 24)
+                    .append(SEQUENCED_OPCODE).append("::").append(seq).append("::").append(event).toString();
+            if (ring.events == null) {
+                ring.events = new String[capacity];
+            }
+            ring.events[(int) (seq % capacity)] = sequenced;
+            return sequenced;
+        }
+    }
+
+    // The hub logged in or out: its gadgets may have changed unreported, so earlier events cannot be replayed
+    public void reset(int hubID) {
+        rings.compute(hubID, (id, previous) -> new Ring(startOfLog(previous)));
+    }
+
+    // Events after lastSeq, added to 'missed' in order. Returns the latest sequence number, or -1 if some are not kept
+    public long eventsSince(int hubID, long lastSeq, List<String> missed) {
+        Ring ring = rings.get(hubID);
+        if (ring == null) {
+            reloads.increment();
+            return -1;
+        }
+        synchronized (ring) {
+            long latest = ring.next - 1;
+            long oldest = Math.max(ring.first, ring.next - capacity);
+            if (lastSeq > latest || lastSeq < oldest - 1) {
+                reloads.increment();
+                return -1;
+            }
+            for (long seq = lastSeq + 1; seq <= latest; seq++) {
+                missed.add(ring.events[(int) (seq % capacity)]);
+            }
+            replays.increment();
+            replayedEvents.add(latest - lastSeq);
+            return latest;
+        }
+    }
+
+    // Answer to 330::[lastSeq]: the missed events (#318) then #331, or only #332 if some are not kept
+    public List<String> replay(int hubID, long lastSeq) {
+        List<String> answer = new ArrayList<>();
+        long latest = eventsSince(hubID, lastSeq, answer);
+        if (latest < 0) {
+            answer.clear();
+            answer.add(new HoSoBuilder(RELOAD_OPCODE).add(String.valueOf(latest(hubID))).build());
+        } else {
+            answer.add(new HoSoBuilder(REPLAYED_OPCODE).add(String.valueOf(latest)).add(answer.size()).build());
+        }
+        return answer;
+    }
+
+    // Latest sequence number of a hub (one below the first, if it has no events yet)
+    public long latest(int hubID) {
+        Ring ring = rings.computeIfAbsent(hubID, id -> new Ring(startOfLog(null)));
+        synchronized (ring) {
+            return ring.next - 1;
+        }
+    }
+
+    private static long startOfLog(Ring previous) {
+        long start = System.currentTimeMillis() * 1000;
+        if (previous != null) {
+            synchronized (previous) {
+                // Above every number of the previous log, and not adjacent to it
+                start = Math.max(start, previous.next + 1);
+            }
+        }
+        return start;
+    }
+
+    // Replays served, events replayed, and replays answered with a reload (#332)
+    public long getReplayCount() {
+        return replays.sum();
+    }
+
+    public long getReplayedEventCount() {
+        return replayedEvents.sum();
+    }
+
+    public long getReloadCount() {
+        return reloads.sum();
+    }
+}
@@ -0,0 +1,118 @@
+package service;
+
+import model.ClientRequest;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class IngressQueue {
+
+    /**
+     * Bounded queue of client requests waiting to be dispatched, with admission control.
+     *
+     * When the queue is full, the overload policy decides what happens to a new request:
+     * - REJECT:      the new request is shed.
+     * - DROP_OLDEST: the oldest low priority request in the queue is shed to make room.
+     *                If there is none, the new request is shed.
+     *                Requests ending a session (ClientRequest.endsSession) are never low priority.
+     * - BLOCK:       the submitting thread waits up to blockTimeoutMs for room, then the new request is shed.
+     *
+     * Submitting never blocks a Jetty thread indefinitely. Every shed request, new or dropped, is handed
+     * back to the caller to be answered (#902).
+     */
+
+    public enum OverloadPolicy {
+        REJECT, DROP_OLDEST, BLOCK
+    }
+
+    private final LinkedBlockingDeque<ClientRequest> queue;
+    private final OverloadPolicy policy;
+    private final long blockTimeoutMs;
+
+    // Counters
+    private final AtomicLong accepted;
+    private final AtomicLong shed;
+    private final AtomicLong blocked;
+
+    public IngressQueue(int capacity, OverloadPolicy policy, long blockTimeoutMs) {
+        queue = new LinkedBlockingDeque<>(capacity);
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        accepted = new AtomicLong();
+        shed = new AtomicLong();
+        blocked = new AtomicLong();
+    }
+
+    // Returns false if the new request was shed. Older requests dropped to make room for it (DROP_OLDEST) are added to 'dropped'
+    public boolean submit(ClientRequest clientRequest, List<ClientRequest> dropped) throws InterruptedException {
+        if (queue.offerLast(clientRequest)) {
+            accepted.incrementAndGet();
+            return true;
+        }
+        switch (policy) {
+            case DROP_OLDEST:
+                ClientRequest oldest;
+                while ((oldest = dropOldestLowPriority()) != null) {
+                    dropped.add(oldest);
+                    if (queue.offerLast(clientRequest)) {
+                        accepted.incrementAndGet();
+                        return true;
+                    }
+                }
+                break;
+            case BLOCK:
+                blocked.incrementAndGet();
+                if (queue.offerLast(clientRequest, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    accepted.incrementAndGet();
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        shed.incrementAndGet();
+        return false;
+    }
+
+    public ClientRequest take() throws InterruptedException {
+        return queue.takeFirst();
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    // ============================================ COUNTERS =======================================================
+
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    // Rejected, dropped, or timed out while blocked
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    // Submissions that had to wait for room (BLOCK policy)
+    public long getBlockedCount() {
+        return blocked.get();
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    // The request dropped, or null if there is no low priority request in the queue
+    private ClientRequest dropOldestLowPriority() {
+        Iterator<ClientRequest> requests = queue.iterator();
+        while (requests.hasNext()) {
+            ClientRequest queued = requests.next();
+            if (queued.isLowPriority() && queue.removeFirstOccurrence(queued)) {
+                shed.incrementAndGet();
+                return queued;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,99 @@
+package service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyRecorder {
+
+    /**
+     * Lock free latency histogram, recording in microseconds.
+     *
+     * Buckets are logarithmic with 4 sub-buckets per power of two, so a reported
+     * percentile is at most 25% above the true value. Covers up to ~2^40 microseconds.
+     */
+
+    private static final int BUCKETS = 160;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong totalMicros;
+    private final AtomicLong maxMicros;
+
+    public LatencyRecorder() {
+        buckets = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        totalMicros = new AtomicLong();
+        maxMicros = new AtomicLong();
+    }
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        buckets.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = maxMicros.get())) {
+            if (maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    // Upper bound (microseconds) of the bucket holding the given percentile, e.g. percentile(99.0)
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(upperBoundOf(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotalMicros() {
+        return totalMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    public long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    // Highest value (microseconds) recorded in a bucket
+    public static long upperBoundOf(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int exp = (bucket - 4) / 4 + 2;
+        int sub = (bucket - 4) % 4;
+        return ((4L + sub) << (exp - 2)) + (1L << (exp - 2)) - 1;
+    }
+
+    // Values 0-3 have one bucket each. Above: 4 buckets per power of two.
+    private static int bucketOf(long micros) {
+        if (micros < 4) {
+            return (int) micros;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) ((micros >>> (exp - 2)) & 3);
+        return Math.min(BUCKETS - 1, 4 + (exp - 2) * 4 + sub);
+    }
+}
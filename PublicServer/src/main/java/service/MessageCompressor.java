@@ -0,0 +1,189 @@
+package service;
+
+import model.OutboundMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+public class MessageCompressor {
+
+    /**
+     * Compression of large outgoing messages (e.g. #304 gadget lists, #373 gadget groups) for clients
+     * that opt in at login (caps:deflate).
+     *
+     * - Messages of at least 'threshold' characters are sent as a binary frame holding the UTF-8 text,
+     *   compressed with raw DEFLATE (RFC 1951, as permessage-deflate). Smaller messages (e.g. #316) stay text frames.
+     * - A message is compressed once, also when broadcast to many sessions.
+     * - CPU time and bytes saved are recorded per opcode.
+     * - Deflaters hold native memory, freed only by end(): they are pooled (at most one per core kept idle),
+     *   and every Deflater not returned to the pool, or still in it at close(), is ended.
+     */
+
+    // Marks a message that does not get smaller when compressed
+    private static final byte[] INCOMPRESSIBLE = new byte[0];
+
+    // A Deflater with its output buffer
+    private static class Worker {
+        private final Deflater deflater;
+        private byte[] buffer;
+
+        private Worker(int level) {
+            deflater = new Deflater(level, true);
+            buffer = new byte[4096];
+        }
+    }
+
+    private final int threshold;
+    private final int level;
+    private final ConcurrentHashMap<String, Stats> statsByOpcode;
+    private final ArrayBlockingQueue<Worker> idleWorkers;
+    private volatile boolean closed;
+
+    public MessageCompressor(int threshold, int level) {
+        this.threshold = threshold;
+        this.level = level;
+        statsByOpcode = new ConcurrentHashMap<>();
+        idleWorkers = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+        closed = false;
+    }
+
+    // Returns null if the message is to be sent uncompressed
+    public byte[] compress(OutboundMessage msg) {
+        if (msg.getText().length() < threshold) {
+            return null;
+        }
+        byte[] compressed = msg.getCompressed();
+        if (compressed == null) {
+            long start = System.nanoTime();
+            byte[] text = msg.getText().getBytes(StandardCharsets.UTF_8);
+            compressed = deflate(text);
+            statsOf(msg.getText()).record(text.length, compressed.length, System.nanoTime() - start);
+            if (compressed.length >= text.length) {
+                compressed = INCOMPRESSIBLE;
+            }
+            msg.setCompressed(compressed);
+        }
+        return compressed == INCOMPRESSIBLE ? null : compressed;
+    }
+
+    // Called for every compressed frame written to a session
+    public void recordSent(OutboundMessage msg, int compressedLength) {
+        statsOf(msg.getText()).sent(msg.getText().length(), compressedLength);
+    }
+
+    // Frees the native memory of the pooled Deflaters. Messages compressed later use a Deflater of their own.
+    public void close() {
+        closed = true;
+        Worker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            worker.deflater.end();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    // Opcode -> stats, sorted by opcode
+    public Map<String, Stats> getStats() {
+        return Collections.unmodifiableMap(new TreeMap<>(statsByOpcode));
+    }
+
+    // ========================================== STATS PER OPCODE =================================================
+
+    public static class Stats {
+        private final LongAdder compressedMessages = new LongAdder();
+        private final LongAdder originalBytes = new LongAdder();
+        private final LongAdder compressedBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder sentFrames = new LongAdder();
+        private final LongAdder savedBytes = new LongAdder();
+
+        private void record(int original, int compressed, long nanos) {
+            compressedMessages.increment();
+            originalBytes.add(original);
+            compressedBytes.add(compressed);
+            cpuNanos.add(nanos);
+        }
+
+        private void sent(int original, int compressed) {
+            sentFrames.increment();
+            savedBytes.add(original - compressed);
+        }
+
+        // Distinct messages compressed (a broadcast counts once)
+        public long getCompressedMessages() {
+            return compressedMessages.sum();
+        }
+
+        public long getOriginalBytes() {
+            return originalBytes.sum();
+        }
+
+        public long getCompressedBytes() {
+            return compressedBytes.sum();
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+
+        // Compressed frames written (one per recipient)
+        public long getSentFrames() {
+            return sentFrames.sum();
+        }
+
+        // Bytes not sent over the network thanks to compression (approximate: text length vs. compressed length)
+        public long getSavedBytes() {
+            return savedBytes.sum();
+        }
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private Stats statsOf(String text) {
+        int end = text.indexOf("::");
+        String opcode = end < 0 ? text : text.substring(0, end);
+        Stats stats = statsByOpcode.get(opcode);
+        if (stats == null) {
+            stats = statsByOpcode.computeIfAbsent(opcode, key -> new Stats());
+        }
+        return stats;
+    }
+
+    private byte[] deflate(byte[] input) {
+        Worker worker = idleWorkers.poll();
+        if (worker == null) {
+            worker = new Worker(level);
+        }
+        try {
+            Deflater deflater = worker.deflater;
+            if (worker.buffer.length < input.length + 64) {
+                worker.buffer = new byte[input.length + 64];
+            }
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == worker.buffer.length) {
+                    worker.buffer = Arrays.copyOf(worker.buffer, worker.buffer.length * 2);
+                }
+                length += deflater.deflate(worker.buffer, length, worker.buffer.length - length);
+            }
+            return Arrays.copyOf(worker.buffer, length);
+        } finally {
+            // Pooled after close() started draining the pool: taken back out
+            if (closed || !idleWorkers.offer(worker) || (closed && idleWorkers.remove(worker))) {
+                worker.deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package service;
+
+import DAO.ConnectionPool;
+import DAO.DB_Clients;
+import DAO.SessionKeyCache;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Metrics {
+
+    /**
+     * Server metrics, exposed on GET /metrics in the Prometheus text format (version 0.0.4).
+     * Off by default, and only served to scrapers sending the metricsToken (see ClientHandler).
+     *
+     * Recorded here: requests per opcode (count, errors, processing latency histogram) and outbound traffic.
+     * Everything else (queues, clients, logins, DB pool, caches, compression) is read from its owner
+     * when the endpoint is scraped, so recording costs nothing extra on those paths.
+     */
+
+    private static final String TEXT_FRAME = "text";
+    private static final String BINARY_FRAME = "binary";
+    private static final long MAX_BUCKET_MICROS = 1L << 25; // Histogram buckets up to ~33 s, then +Inf
+
+    private final ConcurrentHashMap<String, RequestStats> requests;
+    private final LongAdder outboundTextMessages;
+    private final LongAdder outboundTextBytes;
+    private final LongAdder outboundBinaryMessages;
+    private final LongAdder outboundBinaryBytes;
+    private final LongAdder outboundDropped;
+    private final LongAdder outboundConflated;
+
+    // Make Singleton
+    private static Metrics instance = null;
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    private Metrics() {
+        requests = new ConcurrentHashMap<>();
+        outboundTextMessages = new LongAdder();
+        outboundTextBytes = new LongAdder();
+        outboundBinaryMessages = new LongAdder();
+        outboundBinaryBytes = new LongAdder();
+        outboundDropped = new LongAdder();
+        outboundConflated = new LongAdder();
+    }
+
+    // ============================================ RECORDING =======================================================
+
+    // Opcode: as handled by the request switch. Unknown opcodes are recorded as one ("invalid") to bound the label set.
+    public void recordRequest(String opcode, long nanos, boolean failed) {
+        RequestStats stats = requests.get(opcode);
+        if (stats == null) {
+            stats = requests.computeIfAbsent(opcode, key -> new RequestStats());
+        }
+        stats.latency.record(nanos);
+        if (failed) {
+            stats.errors.increment();
+        }
+    }
+
+    // Bytes: frame length for binary frames, number of characters for text frames (equal for ASCII)
+    public void recordOutbound(boolean binary, int bytes) {
+        if (binary) {
+            outboundBinaryMessages.increment();
+            outboundBinaryBytes.add(bytes);
+        } else {
+            outboundTextMessages.increment();
+            outboundTextBytes.add(bytes);
+        }
+    }
+
+    public void recordOutboundDropped(int messages) {
+        outboundDropped.add(messages);
+    }
+
+    public void recordOutboundConflated() {
+        outboundConflated.increment();
+    }
+
+    // ============================================ EXPOSITION ======================================================
+
+    public String render() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        Server server = Server.getInstance();
+        ClientHandler clientHandler = ClientHandler.getInstance();
+
+        // Requests
+        header(out, "hoso_requests_total", "counter", "Requests processed, by opcode");
+        for (Map.Entry<String, RequestStats> entry : sorted(requests).entrySet()) {
+            sample(out, "hoso_requests_total", opcodeLabel(entry.getKey()), entry.getValue().latency.getCount());
+        }
+        header(out, "hoso_request_errors_total", "counter", "Requests answered with an error (#901), by opcode");
+        for (Map.Entry<String, RequestStats> entry : sorted(requests).entrySet()) {
+            sample(out, "hoso_request_errors_total", opcodeLabel(entry.getKey()), entry.getValue().errors.sum());
+        }
+        header(out, "hoso_request_duration_seconds", "histogram", "Processing time in the request switch, by opcode");
+        for (Map.Entry<String, RequestStats> entry : sorted(requests).entrySet()) {
+            histogram(out, "hoso_request_duration_seconds", opcodeLabel(entry.getKey()), entry.getValue().latency);
+        }
+
+        // Ingress and dispatcher
+        IngressQueue ingress = server.getIngressQueue();
+        if (ingress != null) {
+            gauge(out, "hoso_ingress_queue_depth", "Requests waiting to be dispatched", ingress.size());
+            counter(out, "hoso_ingress_accepted_total", "Requests accepted by the ingress queue", ingress.getAcceptedCount());
+            counter(out, "hoso_ingress_shed_total", "Requests shed due to overload", ingress.getShedCount());
+            counter(out, "hoso_ingress_blocked_total", "Submissions that had to wait for room", ingress.getBlockedCount());
+        }
+        int[] lanes = server.getDispatcherQueueDepths();
+        header(out, "hoso_dispatcher_lane_depth", "gauge", "Requests waiting in each dispatcher lane");
+        for (int lane = 0; lane < lanes.length; lane++) {
+            sample(out, "hoso_dispatcher_lane_depth", "lane=\"" + lane + "\"", lanes[lane]);
+        }
+        long[] laneShed = server.getDispatcherShedCounts();
+        header(out, "hoso_dispatcher_lane_shed_total", "counter", "Requests shed because their dispatcher lane was full");
+        for (int lane = 0; lane < laneShed.length; lane++) {
+            sample(out, "hoso_dispatcher_lane_shed_total", "lane=\"" + lane + "\"", laneShed[lane]);
+        }
+
+        // Clients
+        SessionRegistry clients = clientHandler.connectedClients;
+        int hubs = clients.getHubCount();
+        int users = clients.getUserCount();
+        header(out, "hoso_connected_clients", "gauge", "Connected sessions, by client type");
+        sample(out, "hoso_connected_clients", "type=\"hub\"", hubs);
+        sample(out, "hoso_connected_clients", "type=\"user\"", users);
+        sample(out, "hoso_connected_clients", "type=\"not_logged_in\"", Math.max(0, clients.size() - hubs - users));
+
+        // Cluster
+        ClusterNode cluster = ClusterNode.getInstance();
+        if (cluster.isEnabled()) {
+            gauge(out, "hoso_cluster_links", "Other nodes this node has a link to", cluster.getLinkCount());
+            gauge(out, "hoso_cluster_remote_hubs", "Hubs connected to other nodes", cluster.getRemoteHubCount());
+            counter(out, "hoso_cluster_forwarded_total", "Messages sent to other nodes", cluster.getForwardedCount());
+        }
+
+        // Logins and DB
+        header(out, "hoso_login_duration_seconds", "histogram", "Login time, from login request to completed login");
+        histogram(out, "hoso_login_duration_seconds", "", clientHandler.getLoginLatency());
+        header(out, "hoso_login_db_duration_seconds", "histogram", "Time spent in the database during logins");
+        histogram(out, "hoso_login_db_duration_seconds", "", clientHandler.getLoginDbLatency());
+        DB_Clients clientDB = clientHandler.getClientDB();
+        ConnectionPool pool = clientDB.getPool();
+        gauge(out, "hoso_db_pool_open_connections", "Open DB connections", pool.getOpenConnections());
+        gauge(out, "hoso_db_pool_idle_connections", "Idle DB connections", pool.getIdleConnections());
+        counter(out, "hoso_db_pool_acquisitions_total", "DB connections handed out", pool.getAcquisitionCount());
+        counter(out, "hoso_db_pool_timeouts_total", "Waits for a DB connection that timed out", pool.getTimeoutCount());
+        gauge(out, "hoso_db_pool_wait_max_seconds", "Longest wait for a DB connection", seconds(pool.getMaxWaitMicros()));
+        SessionKeyCache sessionKeys = clientDB.getSessionKeyCache();
+        if (sessionKeys != null) {
+            counter(out, "hoso_session_cache_hits_total", "Automatic logins verified from memory", sessionKeys.getHitCount());
+            counter(out, "hoso_session_cache_misses_total", "Automatic logins verified against the DB", sessionKeys.getMissCount());
+            counter(out, "hoso_session_cache_evictions_total", "Session keys evicted from memory", sessionKeys.getEvictionCount());
+        }
+
+        HubEventLog eventLog = Server.getInstance().getEventLog();
+        if (eventLog != null) {
+            counter(out, "hoso_event_replays_total", "Missed hub events replayed to a user (#330 -> #331)", eventLog.getReplayCount());
+            counter(out, "hoso_event_replayed_events_total", "Hub events sent in replays", eventLog.getReplayedEventCount());
+            counter(out, "hoso_event_replay_reloads_total", "Replays not possible: user told to reload (#332)", eventLog.getReloadCount());
+        }
+        SessionResumer resumer = clientHandler.getSessionResumer();
+        gauge(out, "hoso_resumable_sessions", "Lost user sessions kept for resuming", resumer.getRetainedCount());
+        counter(out, "hoso_session_resumes_total", "Sessions resumed without DB login (#109)", resumer.getResumedCount());
+        counter(out, "hoso_session_resumes_rejected_total", "Resume attempts with an unknown or expired token", resumer.getRejectedCount());
+
+        // Outbound
+        header(out, "hoso_outbound_messages_total", "counter", "Frames written to clients, by frame type");
+        sample(out, "hoso_outbound_messages_total", "frame=\"" + TEXT_FRAME + "\"", outboundTextMessages.sum());
+        sample(out, "hoso_outbound_messages_total", "frame=\"" + BINARY_FRAME + "\"", outboundBinaryMessages.sum());
+        header(out, "hoso_outbound_bytes_total", "counter", "Payload bytes written to clients, by frame type");
+        sample(out, "hoso_outbound_bytes_total", "frame=\"" + TEXT_FRAME + "\"", outboundTextBytes.sum());
+        sample(out, "hoso_outbound_bytes_total", "frame=\"" + BINARY_FRAME + "\"", outboundBinaryBytes.sum());
+        counter(out, "hoso_outbound_dropped_total", "Messages dropped (full queue, slow or closed client)", outboundDropped.sum());
+        counter(out, "hoso_outbound_conflated_total", "Queued gadget updates replaced by a newer one", outboundConflated.sum());
+        UpdateBatcher batcher = clientHandler.getUpdateBatcher();
+        counter(out, "hoso_update_batches_total", "Batched state update frames (#317) written", batcher.getBatchedFrames());
+        counter(out, "hoso_update_batched_updates_total", "State updates carried by #317 frames", batcher.getBatchedUpdates());
+
+        AsyncLogger logger = server.getLogger();
+        if (logger != null) {
+            counter(out, "hoso_log_dropped_total", "Log lines dropped because the log buffer was full", logger.getDroppedCount());
+        }
+
+        // Compression
+        Map<String, MessageCompressor.Stats> compression = clientHandler.getCompressor().getStats();
+        header(out, "hoso_compression_cpu_seconds_total", "counter", "CPU time spent compressing, by opcode");
+        for (Map.Entry<String, MessageCompressor.Stats> entry : compression.entrySet()) {
+            sample(out, "hoso_compression_cpu_seconds_total", opcodeLabel(entry.getKey()), entry.getValue().getCpuNanos() / 1e9);
+        }
+        header(out, "hoso_compression_saved_bytes_total", "counter", "Bytes not sent thanks to compression, by opcode");
+        for (Map.Entry<String, MessageCompressor.Stats> entry : compression.entrySet()) {
+            sample(out, "hoso_compression_saved_bytes_total", opcodeLabel(entry.getKey()), entry.getValue().getSavedBytes());
+        }
+        return out.toString();
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private static class RequestStats {
+        private final LatencyRecorder latency = new LatencyRecorder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    private static <V> Map<String, V> sorted(Map<String, V> map) {
+        return new TreeMap<>(map);
+    }
+
+    private static String opcodeLabel(String opcode) {
+        return "opcode=\"" + opcode + "\"";
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        header(out, name, "gauge", help);
+        sample(out, name, "", value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, double value) {
+        header(out, name, "counter", help);
+        sample(out, name, "", value);
+    }
+
+    // Cumulative buckets at bounds of 2^n - 1 microseconds, from the recorder's finer log buckets. A recorder bucket
+    // holds whole microseconds up to and including its upper bound, so that bound is the (inclusive) le.
+    private static void histogram(StringBuilder out, String name, String labels, LatencyRecorder recorder) {
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int bucket = 0; bucket < recorder.getBucketCount(); bucket++) {
+            cumulative += recorder.getBucket(bucket);
+            long upperMicros = LatencyRecorder.upperBoundOf(bucket);
+            if (Long.bitCount(upperMicros + 1) == 1 && upperMicros >= 3 && upperMicros < MAX_BUCKET_MICROS) {
+                sample(out, name + "_bucket", separator + "le=\"" + seconds(upperMicros) + "\"", cumulative);
+            }
+        }
+        sample(out, name + "_bucket", separator + "le=\"+Inf\"", cumulative);
+        sample(out, name + "_sum", labels, seconds(recorder.getTotalMicros()));
+        sample(out, name + "_count", labels, recorder.getCount());
+    }
+}
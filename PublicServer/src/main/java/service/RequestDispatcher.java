@@ -0,0 +1,130 @@
+package service;
+
+import model.ClientRequest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+public class RequestDispatcher {
+
+    /**
+     * Processes client requests on a fixed number of worker lanes.
+     *
+     * - Each lane has its own queue and worker thread.
+     * - Requests are assigned to a lane by the hubID of the issuing client,
+     *   so all requests concerning one hub are processed strictly in order,
+     *   while different hubs are processed in parallel.
+     * - A slow request for one hub only delays the hubs sharing its lane.
+     * - Dispatching never waits: if the lane of a request's hub is full, the request is shed (and counted
+     *   for that lane), so one busy hub cannot stall the thread handing requests to all the other lanes.
+     * - Lane threads are daemon platform threads, or come from the given factory (e.g. virtual threads).
+     */
+
+    private final BlockingQueue<ClientRequest>[] lanes;
+    private final Thread[] workers;
+    private final Consumer<ClientRequest> handler;
+    private final ThreadFactory threadFactory;
+    private final AtomicLongArray shed;
+    private volatile boolean running;
+
+    public RequestDispatcher(int laneCount, int laneCapacity, Consumer<ClientRequest> handler) {
+        this(laneCount, laneCapacity, handler, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public RequestDispatcher(int laneCount, int laneCapacity, Consumer<ClientRequest> handler, ThreadFactory threadFactory) {
+        if (laneCount < 1) {
+            laneCount = Runtime.getRuntime().availableProcessors();
+        }
+        lanes = new BlockingQueue[laneCount];
+        workers = new Thread[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ArrayBlockingQueue<>(laneCapacity);
+        }
+        shed = new AtomicLongArray(laneCount);
+        this.handler = handler;
+        this.threadFactory = threadFactory;
+        running = false;
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < lanes.length; i++) {
+            final BlockingQueue<ClientRequest> lane = lanes[i];
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    processLane(lane);
+                }
+            };
+            if (threadFactory != null) {
+                workers[i] = threadFactory.newThread(worker);
+            } else {
+                workers[i] = new Thread(worker, "dispatcher-lane-" + i);
+                workers[i].setDaemon(true);
+            }
+            workers[i].start();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+    }
+
+    // Returns false, without waiting, if the lane of the request's hub is full. The caller answers the shed request.
+    public boolean dispatch(ClientRequest clientRequest) {
+        int lane = laneOf(clientRequest.hubID);
+        if (lanes[lane].offer(clientRequest)) {
+            return true;
+        }
+        shed.incrementAndGet(lane);
+        return false;
+    }
+
+    public int laneOf(int hubID) {
+        return Math.floorMod(hubID, lanes.length);
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    // Number of requests currently waiting in each lane
+    public int[] getQueueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].size();
+        }
+        return depths;
+    }
+
+    // Number of requests shed by each lane because it was full
+    public long[] getShedCounts() {
+        long[] counts = new long[shed.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = shed.get(i);
+        }
+        return counts;
+    }
+
+    // Executed by each lane's worker thread
+    private void processLane(BlockingQueue<ClientRequest> lane) {
+        while (running) {
+            try {
+                handler.accept(lane.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // Ignore & carry on.
+            }
+        }
+    }
+}
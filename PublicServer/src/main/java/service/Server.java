@@ -8,24 +8,30 @@ import model.Settings;
 
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class Server {
 
-    public BlockingQueue<ClientRequest> clientRequests;
+    private IngressQueue clientRequests;
+    private RequestDispatcher dispatcher;
+    private GadgetCache gadgetCache;
+    private GadgetRequestCoalescer gadgetRequests;
+    private HubEventLog eventLog;
     public volatile Settings settings;
     public volatile boolean terminateServer;
     public DB_Clients clientDB;
+    private volatile AsyncLogger logger;
     // config.json
     //Note: 'config.json' should be located "next to" the project folder: [config.json][PublicServer]
     //private static final String configFileJSON = "./config.json";  // When run as JAR on Linux
     // private static final String configFileJSON = (new File(System.getProperty("user.dir")).getParentFile().getPath()).concat("/config.json"); // When run from IDE
-    private static final String configFileJSON = "config.json"; // When run from IDE
+    // Another file with -Dhoso.config=[path], e.g. one per node when running a cluster on one machine
+    private static final String configFileJSON = System.getProperty("hoso.config", "config.json"); // When run from IDE
 
     // Lock objects
     private final Object lock_closeServer;
-    private final Object lock_debugLogs;
 
     // Make Singleton
     private static Server instance = null;
@@ -38,10 +44,8 @@ public class Server {
     }
 
     private Server() {
-        clientRequests = new ArrayBlockingQueue<>(10);
         terminateServer = false;
         lock_closeServer = new Object();
-        lock_debugLogs = new Object();
     }
 
     public void launch() {
@@ -49,10 +53,21 @@ public class Server {
         try {
             // Read in settings from JSON
             readInSettings();
+            run();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        } finally {
+            close();
+        }
+    }
 
-            // Launch ClientHandler
-            ClientHandler.getInstance().launchWebSocketServer(settings.getServerPort(), settings.getClientLimit());
-            processRequests();
+    // Launch with settings not read from config.json, e.g. by an in-process load test. Blocks like launch().
+    public void launch(Settings settings) {
+        System.out.println("HomeSome server running...");
+        try {
+            this.settings = settings;
+            startLogger();
+            run();
         } catch (Exception e) {
             System.out.println(e.getMessage());
         } finally {
@@ -60,15 +75,54 @@ public class Server {
         }
     }
 
+    private void run() throws Exception {
+        // Ingress queue between WebSocket threads and the dispatcher
+        clientRequests = new IngressQueue(settings.getIngressCapacity(), settings.getOverloadPolicy(), settings.getIngressBlockTimeoutMs());
+
+        // Hubs' gadget tables, answering requests for all gadgets from memory
+        gadgetCache = new GadgetCache(settings.isGadgetCacheEnabled());
+        gadgetRequests = new GadgetRequestCoalescer(settings.getGadgetRequestTimeoutMs());
+        // Latest events of every hub, for users catching up after a reconnect
+        eventLog = new HubEventLog(settings.getEventReplayCapacity());
+
+        // Launch request dispatcher lanes
+        boolean virtualThreads = settings.isVirtualThreadMode() && VirtualThreads.isAvailable();
+        if (settings.isVirtualThreadMode() && !virtualThreads) {
+            System.out.println("Virtual threads require Java 21 or later: Running on platform threads");
+        }
+        dispatcher = new RequestDispatcher(settings.getDispatcherLanes(), settings.getDispatcherLaneCapacity(), this::processRequest,
+                virtualThreads ? VirtualThreads.factory("dispatcher-lane-") : null);
+        dispatcher.start();
+        System.out.println(String.format("Request dispatcher running on %s lanes (%s threads)", dispatcher.getLaneCount(),
+                virtualThreads ? "virtual" : "platform"));
+
+        // Cluster mode: session IDs unique in the cluster, and links to the other nodes (before any client connects)
+        ClusterNode.getInstance().start(settings);
+
+        // Launch ClientHandler
+        ClientHandler.getInstance().launchWebSocketServer(settings.getServerPort(), settings.getClientLimit());
+        processRequests();
+    }
+
     public void close() {
         synchronized (lock_closeServer) {
             if (!terminateServer) {
                 terminateServer = true;
+                if (dispatcher != null) {
+                    dispatcher.stop();
+                }
+                if (gadgetRequests != null) {
+                    gadgetRequests.close();
+                }
+                ClusterNode.getInstance().stop();
                 ClientHandler.getInstance().stopWebSocketServer();
                 // terminate connection with the mock hub
                 //mock.close();
                 ClientHandler.getInstance().stopWebSocketServer();
                 System.out.println("HomeSome server shutting down");
+                if (logger != null) {
+                    logger.stop();
+                }
             }
         }
     }
@@ -77,91 +131,175 @@ public class Server {
         try (FileReader reader = new FileReader(configFileJSON)) {
             settings = new Gson().fromJson(reader, Settings.class);
         } catch (FileNotFoundException e) {
-            throw new Exception("Unable to read settings from config.json");
+            throw new Exception("Unable to read settings from " + configFileJSON);
         }
+        startLogger();
+    }
+
+    private void startLogger() {
+        logger = new AsyncLogger(settings.isDebugMode() ? AsyncLogger.Level.DEBUG : AsyncLogger.Level.INFO,
+                settings.getLogBufferSize(), settings.isLogDropWhenFull(), System.out);
     }
 
     //================================ PROCESS CLIENT REQUESTS ==============================================
 
-    // Executed by worker thread: processRequestsThread
+    // Executed by main thread: Hands each request over to the dispatcher lane of the issuing client's hub.
+    // Never waits for a lane: a request for a hub whose lane is full is shed, and the other hubs carry on.
     private void processRequests() throws Exception {
         while (!terminateServer) {
+            ClientRequest clientRequest;
             try {
-                ClientRequest clientRequest = clientRequests.take();
-                String commands[] = clientRequest.request.split("::");
-                int sessionID = clientRequest.sessionID;
-
-                try {
-                    switch (commands[0]) {
-                        case "105":
-                            clientLogout(commands, sessionID);
-                            break;
-                        case "106":
-                            clientLogoutAllDevices(commands, sessionID);
-                            break;
-                        case "201":
-                            requestRemoteAccessCredentials(commands, sessionID);
-                            break;
-                        case "301":
-                            userRequestAllHubGadgets(sessionID);
-                            break;
-                        case "302":
-                            serverRequestAllHubGadgets(commands, sessionID); //302::hub number, valid client session ID
-                            break;
-                        case "303":
-                            receiveAllHubGadgets(commands, sessionID);
-                            break;
-                        case "311":
-                            requestGadgetStateChange(commands, sessionID);
-                            break;
-                        case "315":
-                            receiveGadgetStateChange(commands, sessionID);
-                            break;
-                        case "351":
-                            detectNewGadget(commands, sessionID);
-                            break;
-                        case "353":
-                            gadgetConnectionLost(commands, sessionID);
-                            break;
-                        case "370":
-                            requestGadgetGroups(sessionID);
-                            break;
-                        case "372":
-                            receiveGadgetGroups(commands);
-                            break;
-                        case "401":
-                            alterGadgetAliasReq(commands, sessionID);
-                            break;
-                        case "403":
-                            reportGadgetAliasChange(commands, sessionID);
-                            break;
-                        case "410":
-                            requestToEditOrCreateGadgetGroup(commands, sessionID);
-                            break;
-                        case "411":
-                            deleteGadgetGroup(commands, sessionID);
-                            break;
-                            /*
-                        case "501":
-                            notLoggedAndroidReportsLocation(commands, sessionID);
-                            break;
-                            */
-                        case "502":
-                            androidReportsLocation(commands, sessionID);
-                            break;
-                        default:
-                            ClientHandler.getInstance().outputToClients(sessionID, false, true, false, "901::Invalid format");
-                            break;
-                    }
-                } catch (Exception e) {
-                    ClientHandler.getInstance().outputToClients(sessionID, false, true, false, "901::".concat(e.getMessage()));
-                }
+                clientRequest = clientRequests.take();
             } catch (InterruptedException e) {
                 throw new Exception("Terminating processRequests()");
+            }
+            if (!dispatcher.dispatch(clientRequest)) {
+                shedRequest(clientRequest);
+            }
+        }
+    }
+
+    // Called by ClientHandler (WebSocket threads). Requests shed due to overload, also older ones dropped to make
+    // room for this one, are answered with #902
+    public void addClientRequest(ClientRequest clientRequest) throws InterruptedException {
+        List<ClientRequest> dropped = new ArrayList<>(0);
+        if (!clientRequests.submit(clientRequest, dropped)) {
+            shedRequest(clientRequest);
+        }
+        for (ClientRequest droppedRequest : dropped) {
+            shedRequest(droppedRequest);
+        }
+    }
+
+    // Called by ClusterNode (link threads): #302 or #330 of a user on another node, to a hub of this node. Processed on
+    // the hub's dispatcher lane as a request of the target session, so the answer is in order with the hub's state
+    // changes and events handled there. If the lane is full, the target session gets #902
+    public void dispatchForwardedRequest(int hubID, int targetSessionID, String request) {
+        ClientRequest forwardedRequest = new ClientRequest(targetSessionID, hubID, request);
+        if (!dispatcher.dispatch(forwardedRequest)) {
+            shedRequest(forwardedRequest);
+        }
+    }
+
+    // #902 to the issuing hub or user. A request ending a background session still ends it, so the session is not left behind.
+    private void shedRequest(ClientRequest clientRequest) {
+        if (isDebugEnabled()) {
+            debugLog("Request shed (overload)", clientRequest.sessionID, clientRequest.request);
+        }
+        ClientHandler clientHandler = ClientHandler.getInstance();
+        clientHandler.replyToClient(clientRequest.sessionID, "902::Server overloaded. Try again");
+        if (clientRequest.endsSession()) {
+            try {
+                clientHandler.removeTheClient(clientRequest.sessionID);
             } catch (Exception e) {
-                // Ignore & carry on.
+                debugLog(e.getMessage(), clientRequest.sessionID);
+            }
+        }
+    }
+
+    public GadgetCache getGadgetCache() {
+        return gadgetCache;
+    }
+
+    public HubEventLog getEventLog() {
+        return eventLog;
+    }
+
+    public IngressQueue getIngressQueue() {
+        return clientRequests;
+    }
+
+    // Number of requests waiting in each dispatcher lane. Used to size 'dispatcherLanes' against the number of hubs.
+    public int[] getDispatcherQueueDepths() {
+        return dispatcher == null ? new int[0] : dispatcher.getQueueDepths();
+    }
+
+    // Number of requests shed by each dispatcher lane because it was full
+    public long[] getDispatcherShedCounts() {
+        return dispatcher == null ? new long[0] : dispatcher.getShedCounts();
+    }
+
+    // Executed by dispatcher lane threads
+    private void processRequest(ClientRequest clientRequest) {
+        HoSoMessage commands = HoSoMessage.parse(clientRequest.request);
+        int sessionID = clientRequest.sessionID;
+        int hubID = clientRequest.hubID;
+        String metricName = commands.opcode();
+        boolean failed = false;
+        long start = System.nanoTime();
+
+        try {
+            switch (commands.opcode()) {
+                case "105":
+                    clientLogout(commands, sessionID);
+                    break;
+                case "106":
+                    clientLogoutAllDevices(commands, sessionID);
+                    break;
+                case "201":
+                    requestRemoteAccessCredentials(commands, sessionID);
+                    break;
+                case "301":
+                    userRequestAllHubGadgets(sessionID, hubID);
+                    break;
+                case "302":
+                    serverRequestAllHubGadgets(commands, sessionID, hubID); //302::hub number, valid client session ID
+                    break;
+                case "303":
+                    receiveAllHubGadgets(commands, sessionID, hubID);
+                    break;
+                case "311":
+                    requestGadgetStateChange(commands, hubID);
+                    break;
+                case "315":
+                    receiveGadgetStateChange(commands, sessionID, hubID);
+                    break;
+                case "330":
+                    requestEventReplay(commands, sessionID, hubID);
+                    break;
+                case "351":
+                    detectNewGadget(commands, sessionID, hubID);
+                    break;
+                case "353":
+                    gadgetConnectionLost(commands, sessionID, hubID);
+                    break;
+                case "370":
+                    requestGadgetGroups(sessionID, hubID);
+                    break;
+                case "372":
+                    receiveGadgetGroups(commands);
+                    break;
+                case "401":
+                    alterGadgetAliasReq(commands, sessionID, hubID);
+                    break;
+                case "403":
+                    reportGadgetAliasChange(commands, sessionID, hubID);
+                    break;
+                case "410":
+                    requestToEditOrCreateGadgetGroup(commands, sessionID);
+                    break;
+                case "411":
+                    deleteGadgetGroup(commands, sessionID);
+                    break;
+                    /*
+                case "501":
+                    notLoggedAndroidReportsLocation(commands, sessionID);
+                    break;
+                    */
+                case "502":
+                    androidReportsLocation(commands, sessionID, hubID);
+                    break;
+                default:
+                    metricName = "invalid";
+                    failed = true;
+                    ClientHandler.getInstance().outputToClients(sessionID, false, true, false, "901::Invalid format");
+                    break;
             }
+        } catch (Exception e) {
+            failed = true;
+            ClientHandler.getInstance().outputToClients(sessionID, false, true, false, "901::".concat(e.getMessage()));
         }
+        Metrics.getInstance().recordRequest(metricName, System.nanoTime() - start, failed);
     }
 
 
@@ -176,7 +314,7 @@ public class Server {
      */
 
     // #105 -> 107
-    private void clientLogout(String[] commands, int issuinSessionID) throws Exception {
+    private void clientLogout(HoSoMessage commands, int issuinSessionID) throws Exception {
         //TODO: Implement
         // User client (Android/browser) has manually pressed the logout button.
         // Remove/overwrite the client's sessionKey in DB. This would force a manual login next time client wants to connect.
@@ -185,31 +323,29 @@ public class Server {
         // Here it should bring the specific sessionKey for nameID and send it to the DB to delete it
         ClientHandler.getInstance().logoutOneDevice(issuinSessionID);
         // 107
-        String confirmLogout = String.format("107::%s", "Logout successful");
+        String confirmLogout = new HoSoBuilder("107").add("Logout successful").build();
         ClientHandler.getInstance().outputToClients(issuinSessionID, false, true, false, confirmLogout);
 
     }
 
     // #106 -> 107
-    private void clientLogoutAllDevices(String[] commands, int issuingSessionID) throws Exception {
+    private void clientLogoutAllDevices(HoSoMessage commands, int issuingSessionID) throws Exception {
 
         // Here it should bring the name ID for that user and send it to the DB to remove all sessionKey assigned to that user
         ClientHandler.getInstance().logoutAllDevices(issuingSessionID);
         // 107
-        String msg = String.format("107::%s", "All devices logged out");
+        String msg = new HoSoBuilder("107").add("All devices logged out").build();
         ClientHandler.getInstance().outputToClients(issuingSessionID, false, false, false, msg);
     }
 
-    // #301 -> #302
-    private void userRequestAllHubGadgets(int issuingSessionID) throws Exception {
-        String forwardRequest = String.format("302::%s", issuingSessionID);
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(issuingSessionID);
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, true, false, forwardRequest);
+    // #301 -> #302 (or -> #304 from memory)
+    private void userRequestAllHubGadgets(int issuingSessionID, int hubID) throws Exception {
+        requestAllHubGadgets(hubID, issuingSessionID);
     }
 
-    // #302 -> #302
+    // #302 -> #302 (or -> #304 from memory)
     // ps sends 302 to the hub to get all gadgets
-    private void serverRequestAllHubGadgets(String[] commands, int issuinSessionID) throws Exception {
+    private void serverRequestAllHubGadgets(HoSoMessage commands, int issuinSessionID, int hubID) throws Exception {
 /*
         //302::clientSessionID
         // getting the session Id for the client requesting the gadgets and then forward it to the associated hub
@@ -231,30 +367,52 @@ public class Server {
         // 304 from server to client outputToClients(TO THE CLIENT WHO ISSUED THE REQUEST)
         */
 
-        String forwardRequest = String.format("302::%s", commands[1]);
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(issuinSessionID);
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, true, false, forwardRequest);
+        requestAllHubGadgets(hubID, commands.intField(1));
+    }
+
+    // #304 to the target session: from memory, or from the hub
+    private void requestAllHubGadgets(int hubID, int targetSessionID) throws Exception {
+        String cachedGadgets = gadgetCache.buildAllGadgetsMessage(hubID);
+        if (cachedGadgets != null) {
+            ClientHandler.getInstance().outputToClients(targetSessionID, false, true, false, cachedGadgets);
+            return;
+        }
+        requestAllGadgetsFromHub(hubID, targetSessionID);
+    }
+
+    // Sends #302 to the hub, unless a #302 to the same hub is already in flight. Then the target session just waits for its answer.
+    // Cluster: a hub of another node is asked by that node, which caches and coalesces for the whole cluster
+    private void requestAllGadgetsFromHub(int hubID, int targetSessionID) throws Exception {
+        String forwardRequest = new HoSoBuilder("302").add(targetSessionID).build();
+        if (!ClientHandler.getInstance().isHubConnectedHere(hubID)) {
+            ClientHandler.getInstance().outputToHub(hubID, forwardRequest);
+        } else if (gadgetRequests.addWaiter(hubID, targetSessionID)) {
+            ClientHandler.getInstance().outputToHub(hubID, forwardRequest);
+        }
     }
 
     // #303 -> #304
-    private void receiveAllHubGadgets(String[] commands, int issuinSessionID) throws Exception {
+    private void receiveAllHubGadgets(HoSoMessage commands, int issuinSessionID, int hubID) throws Exception {
         //303
-        int targetSessionID = Integer.parseInt(commands[1]);// the client who issued the request
-        int numberOfGadgets = Integer.parseInt(commands[2]);// the gadget information
+        int targetSessionID = commands.intField(1);// the client who issued the request
+        int numberOfGadgets = commands.intField(2);// the gadget information
+        gadgetCache.putAll(hubID, commands);
 
 
         //304
         // Encapsulate (build) new command from the de-encapsulate incoming command (according to protocol)
-        String forwardGadgetsMsg = String.format("%s::%s", "304", numberOfGadgets);
-        for (int command = 3; command < commands.length; command++) {
-            forwardGadgetsMsg = String.format("%s::%s", forwardGadgetsMsg, commands[command]);
-        }
-        // Send to individual client who issued the request using his sessionID
-        ClientHandler.getInstance().outputToClients(targetSessionID, false, true, false, forwardGadgetsMsg);
+        String forwardGadgetsMsg = new HoSoBuilder("304", commands.getSource().length())
+                .add(numberOfGadgets)
+                .addFields(commands, 3)
+                .build();
+        // Send to individual client who issued the request using his sessionID, and to every session waiting for the same hub's gadgets
+        Set<Integer> targetSessionIDs = gadgetRequests.complete(hubID);
+        targetSessionIDs.add(targetSessionID);
+        ClientHandler.getInstance().outputToUsers(targetSessionIDs, forwardGadgetsMsg);
     }
 
     // #311 -> #312
-    private void requestGadgetStateChange(String[] commands, int cSessionID) throws Exception {
+    private void requestGadgetStateChange(HoSoMessage commands, int hubID) throws Exception {
        /*
         int gadgetID;
         String newGadgetState;
@@ -271,31 +429,31 @@ public class Server {
         ClientHandler.getInstance().outputToClients(hubID, true, true, false, forwardGadgetsMsg);
         */
 
-        String forwardRequest = String.format("312::%s::%s", commands[1], commands[2]);
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(cSessionID);
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, true, false, forwardRequest);
+        String forwardRequest = new HoSoBuilder("312").add(commands.field(1)).add(commands.field(2)).build();
+        ClientHandler.getInstance().outputToHub(hubID, forwardRequest);
     }
 
     // #315 -> #316
-    private void receiveGadgetStateChange(String[] commands, int issuingSessionID) throws Exception {
+    private void receiveGadgetStateChange(HoSoMessage commands, int issuingSessionID, int hubID) throws Exception {
         // #315 HUB -> PS
         // 315::gadgetID::GadgetState
 
-        String gadgetID = commands[1];
-        String newState = commands[2];
+        String gadgetID = commands.field(1);
+        String newState = commands.field(2);
+        gadgetCache.updateState(hubID, gadgetID, newState);
 
         //#316 PS -> CLIENT
         // 316::gadgetID::GadgetState
 
-        String forwardMsg = String.format("%s::%s::%s", "316", gadgetID, newState);
+        String forwardMsg = new HoSoBuilder("316").add(gadgetID).add(newState).build();
         // Send to all users associated with that hub -> th connection between the hub and the clients are figured by outputToAllClients()
-        ClientHandler.getInstance().outputToClients(issuingSessionID, false, false, false, forwardMsg);
+        outputHubEvent(hubID, forwardMsg);
         //mock.hubReportsGadgetState();// answers with -> 316::gadgetID::GadgetState
 
     }
 
     // #370 -> #371
-    private void requestGadgetGroups(int cSessionID) throws Exception {
+    private void requestGadgetGroups(int cSessionID, int hubID) throws Exception {
        /*
         // #370 CLIENT -> PS---- NO ARGUMENTS      ---- DONE
         // #371 PS -> HUB ------ CLIENT SESSION ID ---- DONE
@@ -316,32 +474,30 @@ public class Server {
         //mock.requestGadgetGroups(issuingSessionID); //TODO: REMOVE LATER
         */
 
-        String forwardRequest = String.format("371::%s", cSessionID);
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(cSessionID);
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, true, false, forwardRequest);
+        String forwardRequest = new HoSoBuilder("371").add(cSessionID).build();
+        ClientHandler.getInstance().outputToHub(hubID, forwardRequest);
     }
 
     // #372 -> #373
-    private void receiveGadgetGroups(String[] commands) throws Exception {
+    private void receiveGadgetGroups(HoSoMessage commands) throws Exception {
         // #372 HUB ->PS -- DONE
-        int targetSessionID = Integer.parseInt(commands[1]);
+        int targetSessionID = commands.intField(1);
 
         // #373 PS -> CLIENT -- DONE
         // Encapsulate (build) new command from the de-encapsulated incoming command (according to protocol)
-        String forwardGroups = "373";
-        for (int command = 2; command < commands.length; command++) {
-            forwardGroups = String.format("%s::%s", forwardGroups, commands[command]);
-        }
+        String forwardGroups = new HoSoBuilder("373", commands.getSource().length())
+                .addFields(commands, 2)
+                .build();
         // Send to individual client
         ClientHandler.getInstance().outputToClients(targetSessionID, false, true, false, forwardGroups);
     }
 
 
     //WC -> PS 201 -------{ UNDER CONSTRUCTION }----------
-    private void requestRemoteAccessCredentials(String[] commands, int issuinSessionID) throws Exception {
+    private void requestRemoteAccessCredentials(HoSoMessage commands, int issuinSessionID) throws Exception {
         // @params  C_nameID, C_Pwd
-        String requestedNameID = commands[1];
-        String requestedPwd = commands[2];
+        String requestedNameID = commands.field(1);
+        String requestedPwd = commands.field(2);
         int theClientHubSession = ClientHandler.getInstance().getHubSessionIdByUserSessionId(issuinSessionID);
         Client_Hub theCustomerHub = ClientHandler.getInstance().getHubBySessionID(theClientHubSession);
 
@@ -350,75 +506,105 @@ public class Server {
         String hubID = String.valueOf(theCustomerHub.hubID);
         String hubPwd = "";
         String cNameID = "";
-        String forwardMsg = String.format("%s::%s::%s::%s", "202", hubID, hubPwd, cNameID);
+        String forwardMsg = new HoSoBuilder("202").add(hubID).add(hubPwd).add(cNameID).build();
 
     }
 
     // H ->PS 351 -- PS -> C 352
-    private void detectNewGadget(String[] commands, int issuingSessionID) {
+    private void detectNewGadget(HoSoMessage commands, int issuingSessionID, int hubID) {
+        gadgetCache.putGadget(hubID, commands);
         //351::[G1_id]::[G1_alias]::[G1_type]::[G1_valueTemplate]::[G1_state]::[G1_pollDelaySec]
         //PS -> C 352 out put to client ---- forwardTheNewDetectedGadget
-        String forwardGadgetsMsg = String.format("%s", "352");
-        for (int command = 1; command < commands.length; command++) {
-            forwardGadgetsMsg = String.format("%s::%s", forwardGadgetsMsg, commands[command]);
-        }
+        String forwardGadgetsMsg = new HoSoBuilder("352", commands.getSource().length())
+                .addFields(commands, 1)
+                .build();
         // Send to all clients who are connected to that hub
-        ClientHandler.getInstance().outputToClients(issuingSessionID, false, false, false, forwardGadgetsMsg);
+        outputHubEvent(hubID, forwardGadgetsMsg);
     }
 
 
     //H-> PS 353 -- PS -> C 354
-    private void gadgetConnectionLost(String[] commands, int issuingSessionID) {
-        String gadgetID = commands[1];
+    private void gadgetConnectionLost(HoSoMessage commands, int issuingSessionID, int hubID) {
+        String gadgetID = commands.field(1);
+        gadgetCache.removeGadget(hubID, gadgetID);
 
         //PS -> C 354 gadgetRemovalReq
-        String forwardMsg = String.format("%s::%s", "354", gadgetID);
+        String forwardMsg = new HoSoBuilder("354").add(gadgetID).build();
         // Send to all users associated with that hub -> th connection between the hub and the clients are figured by outputToAllClients()
-        ClientHandler.getInstance().outputToClients(issuingSessionID, false, false, false, forwardMsg);
+        outputHubEvent(hubID, forwardMsg);
 
     }
 
     //WC -> PS 401 -- PS -> H 402
-    private void alterGadgetAliasReq(String[] commands, int issuingSessionID) throws Exception {
+    private void alterGadgetAliasReq(HoSoMessage commands, int issuingSessionID, int hubID) throws Exception {
         // @params  g_ID, g_newAlias
-        String gadgetID = commands[1];
-        String newAlias = commands[2];
+        String gadgetID = commands.field(1);
+        String newAlias = commands.field(2);
 
         //PS -> H 402 reqAlterGadgetAlias
         // @params  C_sessionId,g_ID, g_newAlias
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(issuingSessionID);
-        String forwardMsg = String.format("%s::%s::%s::%s", "402", issuingSessionID, gadgetID, newAlias);
+        String forwardMsg = new HoSoBuilder("402").add(issuingSessionID).add(gadgetID).add(newAlias).build();
         // Sending to the hub that belongs to that client who issued the alter gadget alias request
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, false, false, forwardMsg);
+        ClientHandler.getInstance().outputToHub(hubID, forwardMsg);
     }
 
     //403 H-> PS reportGadget alias change H-> PS G_ID - G_newAlias
     //404 PS -> C @params G_ID ,G_newAlias
-    private void reportGadgetAliasChange(String[] commands, int issuingSessionID) {
-        String gadgetID = commands[1];
-        String newAlias = commands[2];
+    private void reportGadgetAliasChange(HoSoMessage commands, int issuingSessionID, int hubID) {
+        String gadgetID = commands.field(1);
+        String newAlias = commands.field(2);
+        gadgetCache.updateAlias(hubID, gadgetID, newAlias);
 
-        String forwardMsg = String.format("%s::%s::%s", "404", gadgetID, newAlias);
-        ClientHandler.getInstance().outputToClients(issuingSessionID, false, false, false, forwardMsg);
+        String forwardMsg = new HoSoBuilder("404").add(gadgetID).add(newAlias).build();
+        outputHubEvent(hubID, forwardMsg);
+    }
+
+    // Hub events get the hub's next sequence number, and are kept for replay (see HubEventLog)
+    private void outputHubEvent(int hubID, String event) {
+        String sequenced = settings.isEventReplayEnabled() ? eventLog.append(hubID, event) : null;
+        ClientHandler.getInstance().outputHubEvent(hubID, event, sequenced);
+    }
+
+    // #330 -> #318 (each missed event) + #331, or -> #332
+    private void requestEventReplay(HoSoMessage commands, int issuingSessionID, int hubID) throws Exception {
+        //330::lastSeq
+        long lastSeq = Long.parseLong(commands.field(1));
+        if (!settings.isEventReplayEnabled()) {
+            throw new Exception("Event replay not enabled");
+        }
+        if (!ClientHandler.getInstance().isHubConnectedHere(hubID) && !ClusterNode.getInstance().isRemoteSession(issuingSessionID)) {
+            // Cluster: the node of the hub keeps its events. A request forwarded here is answered here (#332 if the hub left)
+            String forwardRequest = new HoSoBuilder("330").add(String.valueOf(lastSeq)).add(issuingSessionID).build();
+            ClientHandler.getInstance().outputToHub(hubID, forwardRequest);
+            return;
+        }
+        replayHubEvents(hubID, lastSeq, issuingSessionID);
+    }
+
+    private void replayHubEvents(int hubID, long lastSeq, int targetSessionID) {
+        ClientHandler clientHandler = ClientHandler.getInstance();
+        for (String answer : eventLog.replay(hubID, lastSeq)) {
+            clientHandler.outputToClients(targetSessionID, false, true, false, answer);
+        }
     }
 
     //410 WC -> PS
-    private void requestToEditOrCreateGadgetGroup(String[] commands, int issuingSessionID) {
+    private void requestToEditOrCreateGadgetGroup(HoSoMessage commands, int issuingSessionID) {
         //@params A3 = [groupName]:[G_id]:[G_id]:[G_id]
         // if groupName Exist then edit else create new group
-        String groupName = commands[1];
+        String groupName = commands.field(1);
 
         //we should include a protocol that will talk with the hub here to inform about the name of the group
-        String forwardGadgetsMsg = String.format("%s::", "...");
-        for (int command = 2; command < commands.length; command++) {
-            forwardGadgetsMsg = String.format("%s:%s", forwardGadgetsMsg, commands[command]);
+        StringBuilder forwardGadgetsMsg = new StringBuilder("...::");
+        for (int command = 2; command < commands.fieldCount(); command++) {
+            forwardGadgetsMsg.append(':').append(commands.field(command));
         }
 
     }
 
     //411 WC -> PS @params groupName
-    private void deleteGadgetGroup(String[] commands, int issuingSessionID) {
-        String groupName = commands[1];
+    private void deleteGadgetGroup(HoSoMessage commands, int issuingSessionID) {
+        String groupName = commands.field(1);
     }
 
     //501 AC -> PS --- 503 PS -> H
@@ -447,20 +633,18 @@ public class Server {
     }
 */
     //502 AC -> PS -- 503 PS -> H
-    public void androidReportsLocation(String[] commands, int issuingSessionID) throws Exception {
+    public void androidReportsLocation(HoSoMessage commands, int issuingSessionID, int hubID) throws Exception {
         //Ac_longitude, Ac_latitude
-        String longitude = commands[1];
-        String latitude = commands[2];
-        boolean isBackgroundReq = commands[3].equals("1");
+        String longitude = commands.field(1);
+        String latitude = commands.field(2);
+        boolean isBackgroundReq = commands.fieldEquals(3, "1");
         String userName = ClientHandler.getInstance().getUserNameID(issuingSessionID);
 
         //503 PS -> H
         //forward C_nameID, Ac_longitude, Ac_latitude
-        // getting the hub session ID that corresponds to that client
-        int hubSessionID = ClientHandler.getInstance().getHubSessionIdByUserSessionId(issuingSessionID);
-        String forwardMsg = String.format("503::%s::%s::%s", userName, longitude, latitude);
-        //outputting to the hub all the information obtained earlier above
-        ClientHandler.getInstance().outputToClients(hubSessionID, true, true, false, forwardMsg);
+        String forwardMsg = new HoSoBuilder("503").add(userName).add(longitude).add(latitude).build();
+        //outputting to the hub all the information obtained earlier above (on this node or, in a cluster, another one)
+        ClientHandler.getInstance().outputToHub(hubID, forwardMsg);
         if (isBackgroundReq) {
             ClientHandler.getInstance().removeTheClient(issuingSessionID);
         }
@@ -468,42 +652,36 @@ public class Server {
 
 
     // ===================================== DEBUG LOGS =======================================================
+    // Formatted and printed by the logger thread. Check isDebugEnabled() before building costly arguments.
+
+    public boolean isDebugEnabled() {
+        AsyncLogger logger = this.logger;
+        return logger != null && logger.isEnabled(AsyncLogger.Level.DEBUG);
+    }
 
     public void debugLog(String log, String... data) {
-        synchronized (lock_debugLogs) {
-            if (settings.isDebugMode()) {
-                String logData = "";
-                if (data.length > 0) {
-                    logData = String.format("[%s]", data[0]);
-                    if (data.length > 1) {
-                        for (int i = 1; i < data.length; i++) {
-                            logData = String.format("%s %s", logData, data[i]);
-                        }
-                    }
-                }
-                log = String.format("%-30s%s", log.concat(":"), logData);
-                System.out.println(log.length() > 90 ? log.substring(0, 90).concat("[...]") : log);
-            }
+        AsyncLogger logger = this.logger;
+        if (logger != null) {
+            logger.log(AsyncLogger.Level.DEBUG, log, data);
         }
     }
 
     public void debugLog(String log, int threadID, String... data) {
-        synchronized (lock_debugLogs) {
-            if (settings.isDebugMode()) {
-                String logData = "";
-                if (data.length > 0) {
-                    logData = String.format("[%s] (Session %s)", data[0], threadID);
-                    if (data.length > 1) {
-                        for (int i = 1; i < data.length; i++) {
-                            logData = String.format("%s %s", logData, data[i]);
-                        }
-                    }
-                }
-                log = String.format("%-30s%s", log.concat(":"), logData);
-                System.out.println(log.length() > 90 ? log.substring(0, 90).concat("[...]") : log);
-            }
+        AsyncLogger logger = this.logger;
+        if (logger != null) {
+            logger.log(AsyncLogger.Level.DEBUG, log, threadID, data);
         }
     }
 
+    // Logged also when not in debug mode
+    public void warnLog(String log, String... data) {
+        AsyncLogger logger = this.logger;
+        if (logger != null) {
+            logger.log(AsyncLogger.Level.WARN, log, data);
+        }
+    }
 
+    public AsyncLogger getLogger() {
+        return logger;
+    }
 }
@@ -0,0 +1,192 @@
+package service;
+
+import model.Client;
+import model.Client_Hub;
+import model.Client_User;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionRegistry {
+
+    /**
+     * Register of all connected client sessions, indexed for the lookups made by ClientHandler:
+     * - session       -> client
+     * - sessionID     -> session
+     * - hubID         -> hub session
+     * - hubID         -> logged in user sessions (and the admin subset)
+     *
+     * Every lookup and fan-out is O(1) or O(recipients), instead of a scan over all connections.
+     *
+     * Thread safe: lookups are lock free (concurrent maps), while updates (of the session -> client map and
+     * of the indexes together) are serialized per hub on one of a fixed number of lock stripes. Clients of
+     * unrelated hubs never contend. A session moving between hubs holds both stripes, taken in index order.
+     */
+
+    private static final int STRIPES = 64;
+
+    private final ConcurrentHashMap<Session, Client> clients;
+    private final ConcurrentHashMap<Integer, Session> sessionsByID;
+    private final ConcurrentHashMap<Integer, Session> hubSessions;
+    private final ConcurrentHashMap<Integer, Set<Session>> userSessions;
+    private final ConcurrentHashMap<Integer, Set<Session>> adminSessions;
+    private final AtomicInteger userCount;
+
+    // Lock objects
+    private final Object[] lock_hubs;
+
+    public SessionRegistry() {
+        clients = new ConcurrentHashMap<>();
+        sessionsByID = new ConcurrentHashMap<>();
+        hubSessions = new ConcurrentHashMap<>();
+        userSessions = new ConcurrentHashMap<>();
+        adminSessions = new ConcurrentHashMap<>();
+        userCount = new AtomicInteger();
+        lock_hubs = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            lock_hubs[i] = new Object();
+        }
+    }
+
+    // Map session to client. Replaces (and un-indexes) any client previously mapped to the session.
+    public void put(Session session, Client client) {
+        while (true) {
+            Client previous = clients.get(session);
+            int previousHubID = previous == null ? client.hubID : previous.hubID;
+            Object first = lockOf(Math.min(stripeOf(previousHubID), stripeOf(client.hubID)));
+            Object second = lockOf(Math.max(stripeOf(previousHubID), stripeOf(client.hubID)));
+            synchronized (first) {
+                synchronized (second) {
+                    // Retry if the session was re-mapped while waiting for the locks
+                    if (clients.get(session) != previous) {
+                        continue;
+                    }
+                    clients.put(session, client);
+                    if (previous != null) {
+                        unindex(session, previous);
+                    }
+                    index(session, client);
+                    return;
+                }
+            }
+        }
+    }
+
+    public Client remove(Session session) {
+        while (true) {
+            Client client = clients.get(session);
+            if (client == null) {
+                return null;
+            }
+            synchronized (lockOf(stripeOf(client.hubID))) {
+                if (clients.remove(session, client)) {
+                    unindex(session, client);
+                    return client;
+                }
+            }
+        }
+    }
+
+    public Client get(Session session) {
+        return clients.get(session);
+    }
+
+    public Session getSession(int sessionID) {
+        return sessionsByID.get(sessionID);
+    }
+
+    public Session getHubSession(int hubID) {
+        return hubSessions.get(hubID);
+    }
+
+    // IDs of logged in hubs
+    public Set<Integer> getHubIDs() {
+        return Collections.unmodifiableSet(hubSessions.keySet());
+    }
+
+    // Logged in users (Android/browser) belonging to hub
+    public Set<Session> getUserSessions(int hubID) {
+        Set<Session> sessions = userSessions.get(hubID);
+        return sessions == null ? Collections.<Session>emptySet() : sessions;
+    }
+
+    // Logged in users with admin rights belonging to hub
+    public Set<Session> getAdminSessions(int hubID) {
+        Set<Session> sessions = adminSessions.get(hubID);
+        return sessions == null ? Collections.<Session>emptySet() : sessions;
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    // Logged in hubs
+    public int getHubCount() {
+        return hubSessions.size();
+    }
+
+    // Logged in users (Android/browser)
+    public int getUserCount() {
+        return userCount.get();
+    }
+
+    // ============================================ INDEXES =======================================================
+
+    private static int stripeOf(int hubID) {
+        return Math.floorMod(hubID, STRIPES);
+    }
+
+    private Object lockOf(int stripe) {
+        return lock_hubs[stripe];
+    }
+
+    // Called holding the client's hub's lock stripe
+    private void index(Session session, Client client) {
+        sessionsByID.put(client.sessionID, session);
+        if (client instanceof Client_Hub) {
+            hubSessions.put(client.hubID, session);
+        } else if (client instanceof Client_User) {
+            addTo(userSessions, client.hubID, session);
+            userCount.incrementAndGet();
+            if (((Client_User) client).isAdmin()) {
+                addTo(adminSessions, client.hubID, session);
+            }
+        }
+    }
+
+    // Called holding the client's hub's lock stripe
+    private void unindex(Session session, Client client) {
+        sessionsByID.remove(client.sessionID, session);
+        if (client instanceof Client_Hub) {
+            hubSessions.remove(client.hubID, session);
+        } else if (client instanceof Client_User) {
+            removeFrom(userSessions, client.hubID, session);
+            userCount.decrementAndGet();
+            removeFrom(adminSessions, client.hubID, session);
+        }
+    }
+
+    // Called holding the hub's lock stripe
+    private void addTo(ConcurrentHashMap<Integer, Set<Session>> index, int hubID, Session session) {
+        Set<Session> sessions = index.get(hubID);
+        if (sessions == null) {
+            sessions = ConcurrentHashMap.newKeySet();
+            index.put(hubID, sessions);
+        }
+        sessions.add(session);
+    }
+
+    // Called holding the hub's lock stripe
+    private void removeFrom(ConcurrentHashMap<Integer, Set<Session>> index, int hubID, Session session) {
+        Set<Session> sessions = index.get(hubID);
+        if (sessions != null) {
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                index.remove(hubID);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package service;
+
+import model.Client_User;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SessionResumer {
+
+    /**
+     * Resumable user sessions: a user reconnecting shortly after losing its connection (e.g. a phone on
+     * a cell handover) gets its session back without a DB login, and without reloading all gadgets.
+     *
+     * - At login (#101, #103) a user that opts in (caps:resume) gets a resume token: 108::[token]::[grace seconds]
+     * - When its connection is lost, the logged in Client_User is retained for the grace period
+     * - Within it, 109::[token] (optionally ::caps:...) reattaches that Client_User, session ID included,
+     *   to the new connection. Answer: 110::[new token]::[grace seconds]. Tokens are single use.
+     *   If the server has not yet noticed the lost connection, the new connection takes over from it.
+     * - Later, or with an unknown token, the answer is #903, and the client logs in as usual (#103)
+     *
+     * Logging out (#105, #106) discards the token. Tokens are only valid on the node that issued them,
+     * and logging out of all devices discards the user's tokens on every node (see ClusterNode, #814).
+     */
+
+    private static final int TOKEN_BYTES = 16;
+
+    private static class Retained {
+        private final Client_User client;
+        private final long expiresAt; // System.nanoTime()
+
+        private Retained(Client_User client, long expiresAt) {
+            this.client = client;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long graceMs;
+    private final int maxRetained;
+    private final SecureRandom random;
+    private final ConcurrentHashMap<String, Client_User> live; // Resume token -> connected session
+    private final ConcurrentHashMap<String, Retained> retained; // Resume token -> lost session
+    private final ScheduledThreadPoolExecutor timer;
+    private final LongAdder resumedCount;
+    private final LongAdder rejectedCount;
+
+    public SessionResumer(long graceMs, int maxRetained) {
+        this.graceMs = graceMs;
+        this.maxRetained = maxRetained;
+        random = new SecureRandom();
+        live = new ConcurrentHashMap<>();
+        retained = new ConcurrentHashMap<>();
+        resumedCount = new LongAdder();
+        rejectedCount = new LongAdder();
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "session-resume-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Sessions not resumed in time are dropped
+        timer.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // New token of a connected user, replacing any previous one
+    public String issueToken(Client_User client) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        revoke(client);
+        client.resumeToken = token.toString();
+        live.put(client.resumeToken, client);
+        return client.resumeToken;
+    }
+
+    // The user logged out
+    public void revoke(Client_User client) {
+        String token = client.resumeToken;
+        if (token != null) {
+            client.resumeToken = null;
+            live.remove(token, client);
+            retained.remove(token);
+        }
+    }
+
+    public long getGraceSeconds() {
+        return TimeUnit.MILLISECONDS.toSeconds(graceMs);
+    }
+
+    // A user's connection was lost. Returns false if it has no valid token, or too many sessions are retained already.
+    public boolean retain(Client_User client) {
+        String token = client.resumeToken;
+        if (token == null || !live.remove(token, client) || retained.size() >= maxRetained) {
+            return false;
+        }
+        retained.put(token, new Retained(client, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMs)));
+        return true;
+    }
+
+    // The session of a token (lost, or still connected), or null if unknown or expired. A token resumes once.
+    public Client_User resume(String token) {
+        Client_User client = live.remove(token);
+        if (client == null) {
+            Retained session = retained.remove(token);
+            client = session == null || System.nanoTime() - session.expiresAt > 0 ? null : session.client;
+        }
+        if (client == null) {
+            rejectedCount.increment();
+            return null;
+        }
+        resumedCount.increment();
+        return client;
+    }
+
+    // The user logged out of all devices
+    public void discardUser(String nameID) {
+        live.values().removeIf(client -> client.getNameID().equals(nameID));
+        retained.values().removeIf(session -> session.client.getNameID().equals(nameID));
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+        live.clear();
+        retained.clear();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        retained.values().removeIf(session -> now - session.expiresAt > 0);
+    }
+
+    // Lost sessions waiting to be resumed
+    public int getRetainedCount() {
+        return retained.size();
+    }
+
+    public long getResumedCount() {
+        return resumedCount.sum();
+    }
+
+    // Unknown or expired tokens
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+}
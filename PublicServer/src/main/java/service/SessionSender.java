@@ -0,0 +1,365 @@
+package service;
+
+import model.OutboundMessage;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+public class SessionSender implements WriteCallback {
+
+    /**
+     * Non-blocking outbound channel of one client session.
+     *
+     * - Messages are queued and written asynchronously, one at a time, in order.
+     *   The next message is written from the completion callback of the previous one.
+     * - A full queue (queueLimit) drops the new message.
+     * - Exceeding the memory cap (maxQueuedBytes) marks the client as a chronically
+     *   slow consumer: the session is closed, so it cannot hold back output to anybody else.
+     * - Sessions switched to binary framing get every message as a binary frame (see HoSoBinaryCodec).
+     * - Sessions with a compressor get large messages as compressed binary frames (see MessageCompressor).
+     * - Sessions with a batcher get state updates collected over a short time window (see UpdateBatcher).
+     * - Sequenced sessions get hub events as #318, with sequence numbers (see HubEventLog). These are not
+     *   conflated or batched: every event keeps its number.
+     * - Conflation: A state update (#316) or removal (#354) of a gadget replaces a still queued, older update of the
+     *   same gadget, in its place in the queue. Only updates queued after the last other message (e.g. #102, #304)
+     *   are replaced: other messages are never reordered, and no update moves past them. A queued removal is
+     *   never replaced by a state update: the client always learns that the gadget was removed.
+     */
+
+    private static final int QUEUED = 0;
+    private static final int DROPPED = 1;
+    private static final int EVICTED = 2;
+
+    private final Session session;
+    private final int queueLimit;
+    private final long maxQueuedBytes;
+    private final boolean conflate;
+    private volatile boolean binary;
+    private volatile boolean sequenced;
+    private volatile MessageCompressor compressor;
+    private final Runnable windowFlush;
+
+    // Guarded by this
+    private final ArrayDeque<Slot> queue;
+    private final HashMap<String, Slot> conflatable; // Gadget ID -> its queued update, since the last other message
+    private long queuedBytes;
+    private boolean sending;
+    private boolean flushing;
+    private boolean closing;
+    private long sentCount;
+    private long droppedCount;
+    private long conflatedCount;
+    private UpdateBatcher batcher;
+    private UpdateBatcher.Batch batch; // Open time window of state updates, if batching
+
+    public SessionSender(Session session, int queueLimit, long maxQueuedBytes, boolean conflate) {
+        this.session = session;
+        this.queueLimit = queueLimit;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.conflate = conflate;
+        queue = new ArrayDeque<>();
+        conflatable = new HashMap<>();
+        queuedBytes = 0;
+        sending = false;
+        flushing = false;
+        closing = false;
+        windowFlush = this::flushWindow;
+    }
+
+    // Returns false if the message was dropped
+    public boolean send(OutboundMessage msg) {
+        int result;
+        UpdateBatcher openWindow = null;
+        synchronized (this) {
+            int pendingResult = QUEUED;
+            if (batch != null && !closing) {
+                if (batcher.isBatchable(msg)) {
+                    if (batch.add(msg)) {
+                        // Full: Write the batch now
+                        msg = batch.take();
+                    } else {
+                        if (batch.markScheduled()) {
+                            openWindow = batcher;
+                        }
+                        msg = null;
+                    }
+                } else {
+                    // Updates collected so far go first
+                    OutboundMessage pending = batch.take();
+                    if (pending != null) {
+                        pendingResult = offer(pending);
+                    }
+                }
+            }
+            result = msg == null ? QUEUED : offer(msg);
+            if (pendingResult == EVICTED) {
+                result = EVICTED;
+            }
+        }
+        if (openWindow != null) {
+            openWindow.schedule(windowFlush);
+        }
+        return afterOffer(result);
+    }
+
+    // Write messages not yet written as binary frames (hubs having opted in at login)
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // Hub events with sequence numbers (users having opted in at login)
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    // Compress large text messages not yet written (clients having opted in at login). Null: no compression
+    public void setCompressor(MessageCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    // Collect state updates (#316) over a time window and write them as one frame (clients having opted in at login).
+    // Set once, at login.
+    public synchronized void setBatcher(UpdateBatcher batcher) {
+        this.batcher = batcher;
+        batch = batcher == null ? null : batcher.new Batch();
+    }
+
+    // Close the session as soon as all queued messages are written
+    public void close() {
+        boolean lastWindow = false;
+        synchronized (this) {
+            if (batch != null && !closing) {
+                OutboundMessage pending = batch.take();
+                lastWindow = pending != null && offer(pending) == QUEUED;
+            }
+            closing = true;
+            if (!lastWindow && (sending || !queue.isEmpty())) {
+                return;
+            }
+        }
+        if (lastWindow) {
+            // Closes the session once written
+            flush();
+            return;
+        }
+        closeSession();
+    }
+
+    // ======================================== WRITE CALLBACKS =================================================
+
+    @Override
+    public void writeSuccess() {
+        synchronized (this) {
+            sending = false;
+            sentCount++;
+        }
+        flush();
+    }
+
+    @Override
+    public void writeFailed(Throwable x) {
+        synchronized (this) {
+            sending = false;
+            droppedCount += queue.size() + 1;
+            Metrics.getInstance().recordOutboundDropped(queue.size() + 1);
+            queue.clear();
+            conflatable.clear();
+            queuedBytes = 0;
+            closing = true;
+        }
+        if (Server.getInstance().isDebugEnabled()) {
+            Server.getInstance().debugLog("Unable to write to client", String.valueOf(session.getRemoteAddress()), x.getMessage());
+        }
+        closeSession();
+    }
+
+    // ========================================== QUEUE STATS ===================================================
+
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // Queued updates replaced by a newer update of the same gadget before being written
+    public synchronized long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    // ============================================ UTILITIES ===================================================
+
+    // Queues a message. Returns QUEUED, DROPPED or EVICTED
+    private int offer(OutboundMessage msg) {
+        if (closing) {
+            droppedCount++;
+            Metrics.getInstance().recordOutboundDropped(1);
+            return DROPPED;
+        }
+        String gadgetID = conflate ? msg.getConflationKey() : null;
+        if (gadgetID != null) {
+            Slot older = conflatable.get(gadgetID);
+            // A queued removal stays: a later update of the gadget is queued after it
+            if (older != null && !(older.msg.isRemoval() && !msg.isRemoval())) {
+                // Newer value of the same gadget: Replace the older one where it is queued
+                queuedBytes += msg.getSize() - older.msg.getSize();
+                older.msg = msg;
+                conflatedCount++;
+                Metrics.getInstance().recordOutboundConflated();
+                return QUEUED;
+            }
+        } else {
+            // Barrier: Updates queued so far must not move past this message
+            conflatable.clear();
+        }
+        if (queue.size() >= queueLimit) {
+            droppedCount++;
+            Metrics.getInstance().recordOutboundDropped(1);
+            return DROPPED;
+        }
+        queuedBytes += msg.getSize();
+        if (queuedBytes > maxQueuedBytes) {
+            // Chronically slow consumer: Give up on the session
+            droppedCount += queue.size() + 1;
+            Metrics.getInstance().recordOutboundDropped(queue.size() + 1);
+            queue.clear();
+            conflatable.clear();
+            queuedBytes = 0;
+            closing = true;
+            return EVICTED;
+        }
+        Slot slot = new Slot(msg);
+        queue.add(slot);
+        if (gadgetID != null) {
+            conflatable.put(gadgetID, slot);
+        }
+        return QUEUED;
+    }
+
+    // Called without holding the lock. Returns false if the message was not queued
+    private boolean afterOffer(int result) {
+        if (result == EVICTED) {
+            Server.getInstance().warnLog("Slow client evicted", String.valueOf(session.getRemoteAddress()));
+            session.close(StatusCode.POLICY_VIOLATION, "Slow consumer");
+            return false;
+        }
+        if (result == DROPPED) {
+            return false;
+        }
+        flush();
+        return true;
+    }
+
+    // The time window of the collected state updates closed: Write them
+    private void flushWindow() {
+        int result;
+        synchronized (this) {
+            if (batch == null) {
+                return;
+            }
+            batch.timerFired();
+            OutboundMessage pending = batch.take();
+            if (pending == null) {
+                return;
+            }
+            result = offer(pending);
+        }
+        afterOffer(result);
+    }
+
+    // Writes queued messages until the queue is empty or a write is pending.
+    // Write callbacks completing on the flushing thread hand back to the loop instead of recursing.
+    private void flush() {
+        synchronized (this) {
+            if (flushing) {
+                return;
+            }
+            flushing = true;
+        }
+        while (true) {
+            OutboundMessage next;
+            boolean closeNow = false;
+            synchronized (this) {
+                if (sending || queue.isEmpty()) {
+                    flushing = false;
+                    closeNow = closing && !sending;
+                    next = null;
+                } else {
+                    Slot slot = queue.poll();
+                    next = slot.msg;
+                    if (next.getConflationKey() != null) {
+                        conflatable.remove(next.getConflationKey(), slot);
+                    }
+                    queuedBytes -= next.getSize();
+                    sending = true;
+                }
+            }
+            if (next == null) {
+                if (closeNow) {
+                    closeSession();
+                }
+                return;
+            }
+            if (!session.isOpen()) {
+                synchronized (this) {
+                    flushing = false;
+                }
+                writeFailed(new Exception("Client session closed"));
+                return;
+            }
+            MessageCompressor compressor = this.compressor;
+            byte[] frame = null;
+            if (binary) {
+                frame = HoSoBinaryCodec.encode(next.getText());
+            } else if (compressor != null) {
+                frame = compressor.compress(next);
+                if (frame != null) {
+                    compressor.recordSent(next, frame.length);
+                }
+            }
+            if (frame != null) {
+                Metrics.getInstance().recordOutbound(true, frame.length);
+                session.getRemote().sendBytes(ByteBuffer.wrap(frame), this);
+            } else {
+                Metrics.getInstance().recordOutbound(false, next.getText().length());
+                session.getRemote().sendString(next.getText(), this);
+            }
+        }
+    }
+
+    // Queue entry. A conflated update replaces the message of its slot
+    private static final class Slot {
+        private OutboundMessage msg;
+
+        private Slot(OutboundMessage msg) {
+            this.msg = msg;
+        }
+    }
+
+    private void closeSession() {
+        if (session.isOpen()) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package service;
+
+import model.OutboundMessage;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class UpdateBatcher {
+
+    /**
+     * Time-window batching of gadget state updates (#316) to users that opt in at login (caps:batch).
+     *
+     * The first #316 to a session opens a window of 'windowMs'. Updates to that session within the window
+     * are collected and written as one frame when the window closes (or when 'maxUpdates' are collected):
+     *
+     *   317::[count]::[gadgetID]::[state]::[gadgetID]::[state]...
+     *
+     * A window holding one update is written as the plain #316. Any other message to the session first
+     * flushes the open window, so the order of messages is unchanged.
+     *
+     * One timer thread serves all sessions. The per-session state is a Batch, owned by the SessionSender.
+     */
+
+    private static final String STATE_UPDATE = "316::";
+    private static final String BATCH_OPCODE = "317";
+
+    private final long windowMs;
+    private final int maxUpdates;
+    private final ScheduledThreadPoolExecutor timer;
+    private final LongAdder batchedFrames;
+    private final LongAdder batchedUpdates;
+
+    public UpdateBatcher(long windowMs, int maxUpdates) {
+        this.windowMs = windowMs;
+        this.maxUpdates = maxUpdates;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "update-batch-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        batchedFrames = new LongAdder();
+        batchedUpdates = new LongAdder();
+    }
+
+    public boolean isBatchable(OutboundMessage msg) {
+        return msg.getText().startsWith(STATE_UPDATE);
+    }
+
+    public int getMaxUpdates() {
+        return maxUpdates;
+    }
+
+    // Runs the flush of a session's window once it closes
+    public void schedule(Runnable flush) {
+        timer.schedule(flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    // #317 frames written, and #316 updates carried by them
+    public long getBatchedFrames() {
+        return batchedFrames.sum();
+    }
+
+    public long getBatchedUpdates() {
+        return batchedUpdates.sum();
+    }
+
+    // ========================================== PER SESSION WINDOW ===============================================
+
+    // Not thread safe: Guarded by the owning SessionSender
+    public class Batch {
+        private final StringBuilder updates = new StringBuilder(256);
+        private OutboundMessage first;
+        private int count;
+        private boolean scheduled;
+
+        // Returns true when the batch is full and should be written now
+        public boolean add(OutboundMessage msg) {
+            if (count == 0) {
+                first = msg;
+            }
+            // Fields after the opcode: [gadgetID]::[state]
+            updates.append("::").append(msg.getText(), STATE_UPDATE.length(), msg.getText().length());
+            count++;
+            return count >= maxUpdates;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        // Returns true if the caller must schedule the flush of this window
+        public boolean markScheduled() {
+            if (scheduled) {
+                return false;
+            }
+            scheduled = true;
+            return true;
+        }
+
+        // Called by the timer before flushing
+        public void timerFired() {
+            scheduled = false;
+        }
+
+        // The collected updates as one message, and an empty batch. Null if there is nothing to write
+        public OutboundMessage take() {
+            if (count == 0) {
+                return null;
+            }
+            OutboundMessage msg;
+            if (count == 1) {
+                msg = first;
+            } else {
+                msg = new OutboundMessage(new StringBuilder(updates.length() + 16)
+                        .append(BATCH_OPCODE).append("::").append(count).append(updates).toString());
+                batchedFrames.increment();
+                batchedUpdates.add(count);
+            }
+            updates.setLength(0);
+            first = null;
+            count = 0;
+            return msg;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public final class VirtualThreads {
+
+    /**
+     * Virtual threads (Java 21+), for threadMode "virtual".
+     *
+     * The server is compiled for Java 8, so the Thread.Builder API is reached through reflection.
+     * On older JVMs isAvailable() is false, and callers use platform threads instead.
+     */
+
+    private static final boolean AVAILABLE = factory("probe-") != null;
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    // Thread.ofVirtual().name(prefix, 0).factory(): threads named [prefix]0, [prefix]1, ... Null if not available.
+    public static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Executors.newThreadPerTaskExecutor(): One new virtual thread per task. Null if not available.
+    public static ExecutorService newPerTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        if (factory == null) {
+            return null;
+        }
+        try {
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
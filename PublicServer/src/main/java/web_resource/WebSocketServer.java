@@ -31,4 +31,10 @@ public class WebSocketServer {
         //System.out.println("WE R HERE  ON MESSAGE >>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
         ClientHandler.getInstance().addClientRequest(session, message);
     }
+
+    // Binary message from client (hubs having opted in to binary framing)
+    @OnWebSocketMessage
+    public void onBinaryMessage(Session session, byte[] buffer, int offset, int length) throws Exception {
+        ClientHandler.getInstance().addClientRequest(session, buffer, offset, length);
+    }
 }
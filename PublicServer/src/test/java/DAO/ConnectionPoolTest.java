@@ -0,0 +1,129 @@
+package DAO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+
+    /**
+     * Waiting for a connection: a waiter proceeds as soon as a connection is released or discarded,
+     * and gives up after acquireTimeoutMs.
+     */
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private ConnectionPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new ConnectionPool(this::newConnection, 2, TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void releasedConnectionIsReused() throws SQLException {
+        PooledConnection first = pool.acquire();
+        first.close();
+
+        assertSame(first, pool.acquire());
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void waiterGetsReleasedConnection() throws Exception {
+        PooledConnection first = pool.acquire();
+        pool.acquire();
+        closeLater(first, 100);
+
+        long start = System.nanoTime();
+        assertSame(first, pool.acquire());
+        assertTrue(millisSince(start) < TIMEOUT_MS);
+    }
+
+    @Test
+    public void waiterOpensConnectionWhenOneIsDiscarded() throws Exception {
+        PooledConnection broken = pool.acquire();
+        pool.acquire();
+        broken.markBroken();
+        closeLater(broken, 100);
+
+        long start = System.nanoTime();
+        pool.acquire();
+        assertTrue(millisSince(start) < TIMEOUT_MS);
+        assertEquals(3, opened.get());
+        assertEquals(2, pool.getOpenConnections());
+    }
+
+    @Test
+    public void closingTwiceReleasesOnce() throws SQLException {
+        PooledConnection first = pool.acquire();
+        first.close();
+        first.close();
+        pool.acquire();
+        pool.acquire();
+
+        assertEquals(2, pool.getOpenConnections());
+        assertEquals(0, pool.getIdleConnections());
+    }
+
+    @Test
+    public void givesUpAfterTimeout() throws SQLException {
+        ConnectionPool small = new ConnectionPool(this::newConnection, 1, 50);
+        small.acquire();
+        try {
+            small.acquire();
+            fail("Acquired more connections than the pool holds");
+        } catch (SQLException e) {
+            assertEquals(1, small.getTimeoutCount());
+        }
+    }
+
+    // Connection that is always open and valid
+    private Connection newConnection() {
+        opened.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isClosed":
+                            return false;
+                        case "isValid":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static void closeLater(final PooledConnection connection, final long delayMs) {
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            connection.close();
+        });
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+}
@@ -0,0 +1,154 @@
+package DAO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SessionKeyWriterTest {
+
+    /**
+     * A failed batch, on a pool of one connection: the batch's connection is released before its writes are
+     * retried one by one, and only a connection-level error (SQLState class 08) discards the connection.
+     */
+
+    private static final String DUPLICATE_KEY = "duplicate";
+    private static final long WAIT_SECONDS = 5;
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private volatile String batchErrorState; // SQLState of the next failing batch
+    private ConnectionPool pool;
+    private SessionKeyWriter writer;
+
+    @Before
+    public void setUp() {
+        pool = new ConnectionPool(this::newConnection, 1, 200);
+        writer = new SessionKeyWriter(pool, 50, 16);
+    }
+
+    @After
+    public void tearDown() {
+        writer.close();
+        pool.close();
+    }
+
+    @Test
+    public void onlyOffendingWriteFailsAndConnectionIsKept() throws Exception {
+        batchErrorState = "23000";
+        List<CompletableFuture<Integer>> results = insertAll("key1", DUPLICATE_KEY, "key2");
+
+        assertEquals(1, (int) results.get(0).get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertFails(results.get(1));
+        assertEquals(1, (int) results.get(2).get(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, pool.getTimeoutCount());
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void lostConnectionIsDiscarded() throws Exception {
+        batchErrorState = "08S01";
+        List<CompletableFuture<Integer>> results = insertAll("key1", "key2");
+
+        for (CompletableFuture<Integer> result : results) {
+            assertEquals(1, (int) result.get(WAIT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertEquals(0, pool.getTimeoutCount());
+        assertEquals(2, opened.get());
+    }
+
+    private List<CompletableFuture<Integer>> insertAll(String... sessionKeys) {
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (String sessionKey : sessionKeys) {
+            results.add(writer.insertSessionKey(sessionKey, "user"));
+        }
+        return results;
+    }
+
+    private static void assertFails(CompletableFuture<Integer> result) throws Exception {
+        try {
+            result.get(WAIT_SECONDS, TimeUnit.SECONDS);
+            fail("Write of a duplicate key succeeded");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+    }
+
+    // Connection whose batches fail once with batchErrorState. Single statements fail only for the duplicate key.
+    private Connection newConnection() {
+        opened.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepareStatement":
+                            return newStatement();
+                        case "isClosed":
+                            return false;
+                        case "isValid":
+                            return true;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private PreparedStatement newStatement() {
+        final String[] key = new String[1];
+        final List<String> batch = new ArrayList<>();
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setString":
+                            if ((int) args[0] == 1) {
+                                key[0] = (String) args[1];
+                            }
+                            return null;
+                        case "addBatch":
+                            batch.add(key[0]);
+                            return null;
+                        case "executeBatch": {
+                            String state = batchErrorState;
+                            batchErrorState = null;
+                            int rows = batch.size();
+                            batch.clear();
+                            if (state != null) {
+                                throw new SQLException("Batch failed", state);
+                            }
+                            int[] results = new int[rows];
+                            java.util.Arrays.fill(results, 1);
+                            return results;
+                        }
+                        case "executeUpdate":
+                            if (DUPLICATE_KEY.equals(key[0])) {
+                                throw new SQLException("Duplicate entry", "23000");
+                            }
+                            return 1;
+                        case "isClosed":
+                            return false;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
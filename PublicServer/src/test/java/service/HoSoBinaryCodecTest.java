@@ -0,0 +1,66 @@
+package service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HoSoBinaryCodecTest {
+
+    /**
+     * A binary frame decodes to the fields String.split("::") finds in the text it was encoded from
+     * (as HoSoMessage parses them): canonical integers as varints, everything else as text.
+     */
+
+    private static final String[] MESSAGES = {
+            "315::12::1",
+            "303::1::Lamp::1::on::0::2::Heater::0::21.5::1",
+            "316::7::off",
+            "104::Successful login",
+            "120::007::-3::2147483648::123456789::1234567890", // Not canonical, or too long for a varint: text
+            "316::7::",                                        // Trailing empty fields are dropped, as by split()
+            "401::5::Vardagsrumslampa \u2600 \u00e4",      // Multi-byte UTF-8
+            "901::Invalid format::::x",                        // Empty field in the middle
+            "102",
+    };
+
+    @Test
+    public void decodesToTheFieldsOfSplit() throws Exception {
+        for (String message : MESSAGES) {
+            byte[] frame = HoSoBinaryCodec.encode(message);
+            String decoded = HoSoBinaryCodec.decode(frame, 0, frame.length);
+
+            assertArrayEquals(message, message.split("::"), decoded.split("::"));
+            assertArrayEquals(message, message.split("::"), fieldsOf(HoSoMessage.parse(decoded)));
+        }
+    }
+
+    @Test
+    public void decodesFromOffset() throws Exception {
+        byte[] frame = HoSoBinaryCodec.encode("315::12::1");
+        byte[] padded = new byte[frame.length + 4];
+        System.arraycopy(frame, 0, padded, 2, frame.length);
+
+        assertEquals("315::12::1", HoSoBinaryCodec.decode(padded, 2, frame.length));
+    }
+
+    @Test
+    public void nonNumericOpcodeIsSentAsText() {
+        assertNull(HoSoBinaryCodec.encode("ping"));
+    }
+
+    @Test(expected = Exception.class)
+    public void truncatedFrameIsRejected() throws Exception {
+        byte[] frame = HoSoBinaryCodec.encode("104::Successful login");
+        HoSoBinaryCodec.decode(frame, 0, frame.length - 1);
+    }
+
+    private static String[] fieldsOf(HoSoMessage message) {
+        String[] fields = new String[message.fieldCount()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = message.field(i);
+        }
+        return fields;
+    }
+}
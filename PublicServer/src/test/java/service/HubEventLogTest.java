@@ -0,0 +1,83 @@
+package service;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HubEventLogTest {
+
+    /**
+     * Replay of missed hub events (330 -> 318... 331), and the reload (#332) when some are no longer kept.
+     */
+
+    private static final int HUB = 7;
+
+    @Test
+    public void replaysMissedEventsInOrder() {
+        HubEventLog log = new HubEventLog(4);
+        long seen = log.latest(HUB);
+        log.append(HUB, "316::1::on");
+        log.append(HUB, "316::2::off");
+        log.append(HUB, "354::1");
+
+        assertEquals(Arrays.asList(
+                "318::" + (seen + 1) + "::316::1::on",
+                "318::" + (seen + 2) + "::316::2::off",
+                "318::" + (seen + 3) + "::354::1",
+                "331::" + (seen + 3) + "::3"), log.replay(HUB, seen));
+        assertEquals(1, log.getReplayCount());
+        assertEquals(3, log.getReplayedEventCount());
+    }
+
+    @Test
+    public void nothingMissed() {
+        HubEventLog log = new HubEventLog(4);
+        String event = log.append(HUB, "316::1::on");
+        long latest = Long.parseLong(event.split("::")[1]);
+
+        assertEquals(Collections.singletonList("331::" + latest + "::0"), log.replay(HUB, latest));
+    }
+
+    @Test
+    public void overwrittenEventsAskForReload() {
+        HubEventLog log = new HubEventLog(2);
+        long seen = log.latest(HUB);
+        log.append(HUB, "316::1::on");
+        log.append(HUB, "316::2::on");
+        log.append(HUB, "316::3::on");
+
+        // The first missed event (seen + 1) is overwritten
+        assertEquals(Collections.singletonList("332::" + (seen + 3)), log.replay(HUB, seen));
+        assertEquals(1, log.getReloadCount());
+        // From the oldest kept one on, the replay works
+        assertEquals(2, log.replay(HUB, seen + 1).size() - 1);
+    }
+
+    @Test
+    public void eventsBeforeHubLoggedInAgainAskForReload() {
+        HubEventLog log = new HubEventLog(4);
+        long seen = Long.parseLong(log.append(HUB, "316::1::on").split("::")[1]);
+        log.reset(HUB);
+        long latest = log.latest(HUB);
+
+        // Also within the same millisecond, the new log starts above the old one
+        assertTrue(latest > seen);
+        assertEquals(Collections.singletonList("332::" + latest), log.replay(HUB, seen));
+    }
+
+    @Test
+    public void unknownOrFutureSequenceNumbersAskForReload() {
+        HubEventLog log = new HubEventLog(4);
+        long latest = Long.parseLong(log.append(HUB, "316::1::on").split("::")[1]);
+
+        assertEquals(Collections.singletonList("332::" + latest), log.replay(HUB, latest + 1));
+        List<String> otherHub = log.replay(HUB + 1, 0);
+        assertEquals(1, otherHub.size());
+        assertTrue(otherHub.get(0).startsWith("332::"));
+    }
+}
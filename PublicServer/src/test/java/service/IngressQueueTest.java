@@ -0,0 +1,125 @@
+package service;
+
+import model.ClientRequest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class IngressQueueTest {
+
+    /**
+     * Admission control when the queue is full: DROP_OLDEST hands back what it dropped, BLOCK waits, then sheds.
+     */
+
+    private static final long NO_TIMEOUT = 0;
+
+    private final List<ClientRequest> dropped = new ArrayList<>();
+
+    @Test
+    public void dropOldestDropsOldestLowPriorityRequest() throws InterruptedException {
+        IngressQueue queue = new IngressQueue(3, IngressQueue.OverloadPolicy.DROP_OLDEST, NO_TIMEOUT);
+        ClientRequest toggle = request("315::4::1");
+        ClientRequest firstLocation = request("502::18.06::59.33");
+        ClientRequest secondLocation = request("502::18.07::59.34");
+        ClientRequest newToggle = request("315::5::1");
+        submitAll(queue, toggle, firstLocation, secondLocation);
+
+        assertTrue(queue.submit(newToggle, dropped));
+
+        assertEquals(Collections.singletonList(firstLocation), dropped);
+        assertEquals(Arrays.asList(toggle, secondLocation, newToggle), drain(queue));
+        assertEquals(1, queue.getShedCount());
+    }
+
+    @Test
+    public void dropOldestShedsNewRequestIfNothingCanBeDropped() throws InterruptedException {
+        IngressQueue queue = new IngressQueue(1, IngressQueue.OverloadPolicy.DROP_OLDEST, NO_TIMEOUT);
+        ClientRequest toggle = request("315::4::1");
+        submitAll(queue, toggle);
+
+        assertFalse(queue.submit(request("502::18.06::59.33"), dropped));
+
+        assertTrue(dropped.isEmpty());
+        assertEquals(Collections.singletonList(toggle), drain(queue));
+        assertEquals(1, queue.getShedCount());
+    }
+
+    @Test
+    public void dropOldestNeverDropsBackgroundLogout() throws InterruptedException {
+        IngressQueue queue = new IngressQueue(1, IngressQueue.OverloadPolicy.DROP_OLDEST, NO_TIMEOUT);
+        ClientRequest backgroundReport = request("502::18.06::59.33::1");
+        submitAll(queue, backgroundReport);
+
+        assertFalse(queue.submit(request("315::4::1"), dropped));
+
+        assertTrue(dropped.isEmpty());
+        assertEquals(Collections.singletonList(backgroundReport), drain(queue));
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        final IngressQueue queue = new IngressQueue(1, IngressQueue.OverloadPolicy.BLOCK, 10 * 1000);
+        final ClientRequest first = request("315::4::1");
+        submitAll(queue, first);
+        Thread consumer = new Thread(() -> {
+            try {
+                // Once the submitter waits for room
+                while (queue.getBlockedCount() == 0) {
+                    Thread.sleep(1);
+                }
+                queue.take();
+            } catch (InterruptedException e) {
+                // Test over
+            }
+        });
+        consumer.start();
+
+        ClientRequest second = request("315::5::1");
+        assertTrue(queue.submit(second, dropped));
+
+        consumer.join();
+        assertSame(second, queue.take());
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(0, queue.getShedCount());
+    }
+
+    @Test
+    public void blockShedsAfterTimeout() throws InterruptedException {
+        IngressQueue queue = new IngressQueue(1, IngressQueue.OverloadPolicy.BLOCK, 50);
+        submitAll(queue, request("315::4::1"));
+
+        long start = System.nanoTime();
+        assertFalse(queue.submit(request("315::5::1"), dropped));
+
+        assertTrue(System.nanoTime() - start >= 50 * 1000 * 1000L);
+        assertTrue(dropped.isEmpty());
+        assertEquals(1, queue.getBlockedCount());
+        assertEquals(1, queue.getShedCount());
+    }
+
+    private static ClientRequest request(String request) {
+        return new ClientRequest(1, 1, request);
+    }
+
+    private void submitAll(IngressQueue queue, ClientRequest... requests) throws InterruptedException {
+        for (ClientRequest request : requests) {
+            assertTrue(queue.submit(request, dropped));
+        }
+    }
+
+    private static List<ClientRequest> drain(IngressQueue queue) throws InterruptedException {
+        List<ClientRequest> requests = new ArrayList<>();
+        while (queue.size() > 0) {
+            requests.add(queue.take());
+        }
+        return requests;
+    }
+}
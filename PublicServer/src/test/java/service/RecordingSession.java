@@ -0,0 +1,79 @@
+package service;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+final class RecordingSession implements InvocationHandler {
+
+    /**
+     * WebSocket session standing in for a client, for SessionSender tests.
+     *
+     * Frames written are recorded in order (binary frames as their HoSoBinaryCodec text), and each write
+     * stays pending until complete() is called, as a slow client's would.
+     */
+
+    final Session session;
+    final List<String> written;
+    private final RemoteEndpoint remote;
+    private final ArrayDeque<WriteCallback> pending;
+    private boolean open;
+
+    RecordingSession() {
+        written = new ArrayList<>();
+        pending = new ArrayDeque<>();
+        open = true;
+        session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class}, this);
+        remote = (RemoteEndpoint) Proxy.newProxyInstance(RemoteEndpoint.class.getClassLoader(), new Class<?>[]{RemoteEndpoint.class}, this);
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    // Completes pending writes, also the ones started by completing others, until none is left
+    void complete() {
+        WriteCallback callback;
+        while ((callback = pending.poll()) != null) {
+            callback.writeSuccess();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "isOpen":
+                return open;
+            case "getRemote":
+                return remote;
+            case "close":
+                open = false;
+                return null;
+            case "sendString":
+                written.add((String) args[0]);
+                pending.add((WriteCallback) args[1]);
+                return null;
+            case "sendBytes":
+                ByteBuffer frame = (ByteBuffer) args[0];
+                written.add(HoSoBinaryCodec.decode(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()));
+                pending.add((WriteCallback) args[1]);
+                return null;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "RecordingSession";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package service;
+
+import model.Client_User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionResumerTest {
+
+    /**
+     * Resume tokens (#108, #109): a lost session is resumed within the grace period, once, and not after it.
+     */
+
+    private static final long GRACE_MS = 100;
+
+    private SessionResumer resumer;
+    private Client_User user;
+
+    @Before
+    public void setUp() {
+        resumer = new SessionResumer(GRACE_MS, 10);
+        user = new Client_User(1, "anna", false, "key1");
+    }
+
+    @After
+    public void tearDown() {
+        resumer.stop();
+    }
+
+    @Test
+    public void resumesWithinGracePeriodOnce() {
+        String token = resumer.issueToken(user);
+        assertTrue(resumer.retain(user));
+
+        assertSame(user, resumer.resume(token));
+        assertNull(resumer.resume(token));
+        assertEquals(1, resumer.getResumedCount());
+        assertEquals(1, resumer.getRejectedCount());
+    }
+
+    @Test
+    public void rejectsResumeAfterGraceExpiry() throws InterruptedException {
+        String token = resumer.issueToken(user);
+        assertTrue(resumer.retain(user));
+        Thread.sleep(GRACE_MS * 2);
+
+        assertNull(resumer.resume(token));
+        assertEquals(0, resumer.getResumedCount());
+        assertEquals(1, resumer.getRejectedCount());
+    }
+
+    @Test
+    public void connectionNotYetLostIsTakenOver() {
+        String token = resumer.issueToken(user);
+
+        assertSame(user, resumer.resume(token));
+    }
+
+    @Test
+    public void loggedOutUserIsNotResumed() {
+        String token = resumer.issueToken(user);
+        String otherDevice = resumer.issueToken(new Client_User(1, "anna", false, "key2"));
+        assertTrue(resumer.retain(user));
+        resumer.discardUser("anna");
+
+        assertNull(resumer.resume(token));
+        assertNull(resumer.resume(otherDevice));
+        assertEquals(0, resumer.getRetainedCount());
+    }
+
+    @Test
+    public void revokedTokenIsNotRetained() {
+        resumer.issueToken(user);
+        resumer.revoke(user);
+
+        assertFalse(resumer.retain(user));
+    }
+}
@@ -0,0 +1,111 @@
+package service;
+
+import model.OutboundMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionSenderTest {
+
+    /**
+     * Conflation of #316/#354 and batching into #317: no message is ever reordered past another one.
+     * The first message of each test is written at once and stays pending, so the following ones queue behind it.
+     */
+
+    private static final long BATCH_WINDOW_MS = 60 * 1000; // Never closes during a test: flushes come from barriers and close()
+
+    private RecordingSession client;
+    private SessionSender sender;
+    private UpdateBatcher batcher;
+
+    @Before
+    public void setUp() {
+        client = new RecordingSession();
+        sender = new SessionSender(client.session, 100, 1024 * 1024, true);
+        batcher = new UpdateBatcher(BATCH_WINDOW_MS, 64);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+    }
+
+    @Test
+    public void queuedUpdateIsReplacedInPlace() {
+        send("104::Successful login", "316::7::on", "316::8::on", "316::7::off");
+        client.complete();
+
+        assertEquals(Arrays.asList("104::Successful login", "316::7::off", "316::8::on"), client.written);
+        assertEquals(1, sender.getConflatedCount());
+    }
+
+    @Test
+    public void updatesAreNotConflatedPastOtherMessages() {
+        send("104::Successful login", "316::7::on", "304::7::Lamp::1::on", "316::7::off");
+        client.complete();
+
+        assertEquals(Arrays.asList("104::Successful login", "316::7::on", "304::7::Lamp::1::on", "316::7::off"), client.written);
+        assertEquals(0, sender.getConflatedCount());
+    }
+
+    @Test
+    public void removalReplacesUpdateButNotAcrossBarrier() {
+        send("104::Successful login", "316::7::on", "107::Gadget list changed", "316::7::off", "354::7");
+        client.complete();
+
+        assertEquals(Arrays.asList("104::Successful login", "316::7::on", "107::Gadget list changed", "354::7"), client.written);
+        assertEquals(1, sender.getConflatedCount());
+    }
+
+    @Test
+    public void updateDoesNotReplaceQueuedRemoval() {
+        send("104::Successful login", "354::7", "316::7::on", "316::7::off");
+        client.complete();
+
+        assertEquals(Arrays.asList("104::Successful login", "354::7", "316::7::off"), client.written);
+        assertEquals(1, sender.getConflatedCount());
+    }
+
+    @Test
+    public void batchIsWrittenBeforeOtherMessage() {
+        sender.setBatcher(batcher);
+        send("316::1::on", "316::2::off", "304::1::Lamp::1::on", "316::3::on");
+        client.complete();
+
+        // The open window goes first, and the update after the barrier opens a new one
+        assertEquals(Arrays.asList("317::2::1::on::2::off", "304::1::Lamp::1::on"), client.written);
+    }
+
+    @Test
+    public void batchIsWrittenOnClose() {
+        sender.setBatcher(batcher);
+        send("316::1::on", "316::2::off", "316::3::on");
+        sender.close();
+
+        assertEquals(Arrays.asList("317::3::1::on::2::off::3::on"), client.written);
+        assertTrue(client.isOpen());
+        client.complete();
+        assertFalse(client.isOpen());
+    }
+
+    @Test
+    public void singleUpdateWindowIsWrittenAsPlainUpdate() {
+        sender.setBatcher(batcher);
+        send("316::1::on", "102::Logged out");
+        client.complete();
+
+        assertEquals(Arrays.asList("316::1::on", "102::Logged out"), client.written);
+    }
+
+    private void send(String... messages) {
+        for (String message : messages) {
+            assertTrue(message, sender.send(new OutboundMessage(message)));
+        }
+    }
+}
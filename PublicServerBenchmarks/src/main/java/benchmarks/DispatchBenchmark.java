@@ -0,0 +1,109 @@
+package benchmarks;
+
+import model.ClientRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.HoSoMessage;
+import service.IngressQueue;
+import service.RequestDispatcher;
+import service.VirtualThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The request path of Server.processRequests: WebSocket thread -> IngressQueue -> dispatcher thread
+ * -> hub lane -> handler. Measures throughput of requests from many hubs, with a handler that only
+ * parses the request (so the numbers are the cost of queueing and hand-offs, not of the handlers).
+ * Lanes run on platform or virtual threads (threadMode "virtual", Java 21+).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class DispatchBenchmark {
+
+    private static final int REQUESTS = 1000;
+    private static final int HUBS = 256;
+
+    @Param({"1", "4", "8"})
+    public int lanes;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    private IngressQueue ingress;
+    private RequestDispatcher dispatcher;
+    private Thread dispatchThread;
+    private final AtomicLong processed = new AtomicLong();
+    private ClientRequest[] requests;
+    private final List<ClientRequest> dropped = new ArrayList<>();
+    private long submitted;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later");
+        }
+        ingress = new IngressQueue(10000, IngressQueue.OverloadPolicy.BLOCK, 1000);
+        dispatcher = new RequestDispatcher(lanes, 1000, request -> {
+            HoSoMessage.parse(request.request).opcode();
+            processed.incrementAndGet();
+        }, virtualThreads ? VirtualThreads.factory("dispatcher-lane-") : null);
+        dispatcher.start();
+        // As Server.processRequests()
+        dispatchThread = new Thread(() -> {
+            try {
+                while (true) {
+                    if (!dispatcher.dispatch(ingress.take())) {
+                        processed.incrementAndGet(); // Shed: lane full
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Trial over
+            }
+        }, "dispatcher");
+        dispatchThread.setDaemon(true);
+        dispatchThread.start();
+        requests = new ClientRequest[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            int hubID = i % HUBS;
+            requests[i] = new ClientRequest(i, hubID, i % 4 == 0 ? "315::4::1" : "311::4::1");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatchThread.interrupt();
+        dispatcher.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long submitAndProcess() throws InterruptedException {
+        for (ClientRequest request : requests) {
+            ingress.submit(request, dropped); // BLOCK: never drops queued requests
+        }
+        submitted += REQUESTS;
+        while (processed.get() < submitted) {
+            Thread.yield();
+        }
+        return processed.get();
+    }
+}
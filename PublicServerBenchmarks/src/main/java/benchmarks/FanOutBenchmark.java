@@ -0,0 +1,84 @@
+package benchmarks;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import service.ClientHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHandler.outputToClients: a hub event (#316) to all users of the hub, and a reply to one user,
+ * at varying numbers of users per hub. Includes queueing and writing by each user's SessionSender
+ * (to sessions whose writes complete at once).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class FanOutBenchmark {
+
+    private static final int HUBS = 10;
+
+    @Param({"1", "10", "500"})
+    public int usersPerHub;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private int hubSessionID;
+    private int userSessionID;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fixtures.useSettings();
+        for (int hubID = 0; hubID < HUBS; hubID++) {
+            Session hub = Fixtures.connectHub(hubID);
+            sessions.add(hub);
+            hubSessionID = Fixtures.sessionIDOf(hub);
+            for (int user = 0; user < usersPerHub; user++) {
+                Session session = Fixtures.connectUser(hubID, "user" + hubID + "." + user, user == 0);
+                sessions.add(session);
+                userSessionID = Fixtures.sessionIDOf(session);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Session session : sessions) {
+            Fixtures.disconnect(session);
+        }
+    }
+
+    // As Server.receiveGadgetStateChange: hub -> all its users
+    @Benchmark
+    public void broadcastToHubUsers() {
+        ClientHandler.getInstance().outputToClients(hubSessionID, false, false, false, "316::4::1");
+    }
+
+    // As Server.receiveGadgetStateChange for admins only
+    @Benchmark
+    public void broadcastToHubAdmins() {
+        ClientHandler.getInstance().outputToClients(hubSessionID, false, false, true, "316::4::1");
+    }
+
+    // A reply to the issuing user (e.g. #304, #901)
+    @Benchmark
+    public void outputToOneUser() {
+        ClientHandler.getInstance().outputToClients(userSessionID, false, true, false, "901::Invalid format");
+    }
+}
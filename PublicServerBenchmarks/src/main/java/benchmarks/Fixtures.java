@@ -0,0 +1,60 @@
+package benchmarks;
+
+import com.google.gson.Gson;
+import model.Client;
+import model.Client_Hub;
+import model.Client_User;
+import model.Settings;
+import org.eclipse.jetty.websocket.api.Session;
+import service.ClientHandler;
+import service.Server;
+import standin.FakeSessions;
+
+final class Fixtures {
+
+    /**
+     * Shared setup: Settings as if read from config.json (debug logging off), and connected clients on fake sessions.
+     */
+
+    private static final String SETTINGS = "{"
+            + "\"debugMode\": false, \"serverPort\": 0, \"clientLimit\": 100,"
+            + "\"dbIP\": \"localhost\", \"dbPort\": \"3306\", \"dbDatabase\": \"hoso\", \"dbAccount\": \"-\", \"dbPassword\": \"-\","
+            + "\"metricsEnabled\": false"
+            + "}";
+
+    private Fixtures() {
+    }
+
+    static Settings useSettings() {
+        Settings settings = new Gson().fromJson(SETTINGS, Settings.class);
+        Server.getInstance().settings = settings;
+        return settings;
+    }
+
+    static Session connectHub(int hubID) {
+        Session session = FakeSessions.newSession();
+        ClientHandler.getInstance().addClient(session);
+        ClientHandler.getInstance().connectedClients.put(session, new Client_Hub(hubID, "Hub " + hubID));
+        return session;
+    }
+
+    static Session connectUser(int hubID, String nameID, boolean admin) {
+        Session session = FakeSessions.newSession();
+        ClientHandler.getInstance().addClient(session);
+        ClientHandler.getInstance().connectedClients.put(session, new Client_User(hubID, nameID, admin, "key-" + nameID));
+        return session;
+    }
+
+    static int sessionIDOf(Session session) {
+        Client client = ClientHandler.getInstance().connectedClients.get(session);
+        return client.sessionID;
+    }
+
+    static void disconnect(Session session) {
+        if (ClientHandler.getInstance().connectedClients.get(session) instanceof Client_Hub) {
+            // Un-register the hub first: Its removal would invalidate the gadget cache of a Server that is not launched
+            ClientHandler.getInstance().connectedClients.put(session, new Client());
+        }
+        ClientHandler.getInstance().removeClient(session);
+    }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import service.HoSoBuilder;
+import service.HoSoMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * #303 -> #304: A hub's gadget list forwarded to a user, as Server.receiveAllHubGadgets does it.
+ * splitFormat is the original implementation (one String.format and a copy of the whole message per field).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class GadgetListBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int gadgets;
+
+    private String request;
+
+    @Setup
+    public void setup() {
+        request = Messages.gadgetList("303::17", gadgets);
+    }
+
+    @Benchmark
+    public String splitFormat() {
+        String[] commands = request.split("::");
+        int numberOfGadgets = Integer.parseInt(commands[2]);
+        String forwardGadgetsMsg = String.format("%s::%s", "304", numberOfGadgets);
+        for (int command = 3; command < commands.length; command++) {
+            forwardGadgetsMsg = String.format("%s::%s", forwardGadgetsMsg, commands[command]);
+        }
+        return forwardGadgetsMsg;
+    }
+
+    @Benchmark
+    public String codec() {
+        HoSoMessage commands = HoSoMessage.parse(request);
+        int numberOfGadgets = commands.intField(2);
+        return new HoSoBuilder("304", request.length())
+                .add(numberOfGadgets)
+                .addFields(commands, 3)
+                .build();
+    }
+}
@@ -0,0 +1,89 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import service.HoSoBinaryCodec;
+import service.HoSoBuilder;
+import service.HoSoMessage;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and encoding of each HoSo opcode: String.split / String.format chains (the original code)
+ * against HoSoMessage / HoSoBuilder, and the binary framing of hub traffic.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class HoSoCodecBenchmark {
+
+    @Param({"101", "103", "120", "301", "302", "303", "304", "311", "315", "316", "351", "353", "372", "401", "403", "502"})
+    public String opcode;
+
+    private String message;
+    private String[] fields;
+    private byte[] frame;
+
+    @Setup
+    public void setup() {
+        message = Messages.sample(opcode);
+        fields = message.split("::");
+        frame = HoSoBinaryCodec.encode(message);
+    }
+
+    @Benchmark
+    public void parseSplit(Blackhole blackhole) {
+        for (String field : message.split("::")) {
+            blackhole.consume(field);
+        }
+    }
+
+    @Benchmark
+    public void parseCodec(Blackhole blackhole) {
+        HoSoMessage parsed = HoSoMessage.parse(message);
+        for (int i = 0; i < parsed.fieldCount(); i++) {
+            blackhole.consume(parsed.field(i));
+        }
+    }
+
+    @Benchmark
+    public String encodeFormat() {
+        String msg = fields[0];
+        for (int i = 1; i < fields.length; i++) {
+            msg = String.format("%s::%s", msg, fields[i]);
+        }
+        return msg;
+    }
+
+    @Benchmark
+    public String encodeBuilder() {
+        HoSoBuilder msg = new HoSoBuilder(fields[0], message.length());
+        for (int i = 1; i < fields.length; i++) {
+            msg.add(fields[i]);
+        }
+        return msg.build();
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return HoSoBinaryCodec.encode(message);
+    }
+
+    @Benchmark
+    public String decodeBinary() throws Exception {
+        return HoSoBinaryCodec.decode(frame, 0, frame.length);
+    }
+}
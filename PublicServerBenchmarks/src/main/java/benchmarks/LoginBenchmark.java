@@ -0,0 +1,100 @@
+package benchmarks;
+
+import DAO.DB_Clients;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.json.simple.JSONObject;
+import standin.StandInDatabase;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logins through DB_Clients (connection pool, prepared statement cache, session key cache and
+ * batched session key writes) against the in-memory stand-in database, with and without a
+ * simulated DB round trip, from 8 concurrent login threads (as the default loginThreads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Threads(8)
+public class LoginBenchmark {
+
+    private static final int USERS = 10000;
+    private static final int HUBS = 1000;
+
+    @Param({"0", "200"})
+    public long roundTripMicros;
+
+    @Param({"0", "10000"})
+    public int sessionCacheSize;
+
+    private StandInDatabase database;
+    private DB_Clients clientDB;
+    private final AtomicLong newKeys = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom(7);
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fixtures.useSettings();
+        database = new StandInDatabase(roundTripMicros);
+        for (int hubID = 0; hubID < HUBS; hubID++) {
+            database.addHub(hubID, "hub" + hubID);
+        }
+        for (int user = 0; user < USERS; user++) {
+            database.addUser("user" + user, "pwd" + user, user % HUBS, user % 10 == 0);
+            database.addSession("key" + user, "user" + user);
+        }
+        clientDB = database.newDbClients(10, sessionCacheSize, 5);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clientDB.close();
+    }
+
+    // #101: SELECT, then a batched INSERT of the new session key (waits for its commit)
+    @Benchmark
+    public JSONObject manualUserLogin(Cursor cursor) throws Exception {
+        int user = cursor.next(USERS);
+        return clientDB.manualUserLogin("user" + user, "pwd" + user, "new" + newKeys.incrementAndGet());
+    }
+
+    // #103: session key cache, or one joined SELECT
+    @Benchmark
+    public JSONObject automaticUserLogin(Cursor cursor) throws Exception {
+        int user = cursor.next(USERS);
+        return clientDB.automaticUserLogin("user" + user, "key" + user);
+    }
+
+    // #120
+    @Benchmark
+    public boolean hubLogin(Cursor cursor) {
+        int hubID = cursor.next(HUBS);
+        return clientDB.hubLogin(hubID, "hub" + hubID);
+    }
+}
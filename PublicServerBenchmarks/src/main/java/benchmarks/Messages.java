@@ -0,0 +1,66 @@
+package benchmarks;
+
+final class Messages {
+
+    /**
+     * Representative HoSo protocol messages, per opcode.
+     */
+
+    static final String[] OPCODES = {"101", "103", "120", "301", "302", "303", "304", "311", "315", "316", "351", "353", "372", "401", "403", "502"};
+
+    private Messages() {
+    }
+
+    static String sample(String opcode) {
+        switch (opcode) {
+            case "101":
+                return "101::alice@homesome.se::correct horse battery staple";
+            case "103":
+                return "103::alice@homesome.se::9F86D081884C7D659A2FEAA0C55AD015";
+            case "120":
+                return "120::12::1234::my house";
+            case "301":
+                return "301";
+            case "302":
+                return "302::17";
+            case "303":
+                return gadgetList("303::17", 20);
+            case "304":
+                return gadgetList("304", 20);
+            case "311":
+                return "311::4::1";
+            case "315":
+                return "315::4::1";
+            case "316":
+                return "316::4::1";
+            case "351":
+                return "351::5::Kitchen lamp::SWITCH::%.1f::0::30";
+            case "353":
+                return "353::5";
+            case "372":
+                return "372::17::Living room:1:2:3::Kitchen:4:5::Garden:6";
+            case "401":
+                return "401::4::Ceiling lamp";
+            case "403":
+                return "403::4::Ceiling lamp";
+            case "502":
+                return "502::59.3293::18.0686::1";
+            default:
+                throw new IllegalArgumentException("No sample for opcode " + opcode);
+        }
+    }
+
+    // [prefix]::[count]::([id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec])*
+    static String gadgetList(String prefix, int gadgets) {
+        StringBuilder msg = new StringBuilder(prefix).append("::").append(gadgets);
+        for (int gadget = 1; gadget <= gadgets; gadget++) {
+            msg.append("::").append(gadget)
+                    .append("::Gadget ").append(gadget)
+                    .append("::").append(gadget % 3 == 0 ? "SENSOR" : "SWITCH")
+                    .append("::%.1f")
+                    .append("::").append(gadget % 2)
+                    .append("::30");
+        }
+        return msg.toString();
+    }
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import service.ClientHandler;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHandler.getSession(sessionID) at varying connection counts, alone and while other threads
+ * log clients in and out (writes to the session registry).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SessionLookupBenchmark {
+
+    private static final int USERS_PER_HUB = 10;
+
+    @Param({"100", "10000", "100000"})
+    public int connections;
+
+    private Session[] sessions;
+    private int[] sessionIDs;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom(42);
+
+        int next(int bound) {
+            return random.nextInt(bound);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fixtures.useSettings();
+        sessions = new Session[connections];
+        sessionIDs = new int[connections];
+        for (int i = 0; i < connections; i++) {
+            int hubID = i / (USERS_PER_HUB + 1);
+            sessions[i] = i % (USERS_PER_HUB + 1) == 0
+                    ? Fixtures.connectHub(hubID)
+                    : Fixtures.connectUser(hubID, "user" + i, i % 2 == 0);
+            sessionIDs[i] = Fixtures.sessionIDOf(sessions[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Session session : sessions) {
+            Fixtures.disconnect(session);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Session getSession(Cursor cursor) throws Exception {
+        return ClientHandler.getInstance().getSession(sessionIDs[cursor.next(connections)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Session getSessionConcurrent(Cursor cursor) throws Exception {
+        return ClientHandler.getInstance().getSession(sessionIDs[cursor.next(connections)]);
+    }
+
+    // 3 threads looking up sessions while 1 thread logs users in and out
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public Session churnLookup(Cursor cursor) throws Exception {
+        return ClientHandler.getInstance().getSession(sessionIDs[cursor.next(connections)]);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void churnLoginLogout(Cursor cursor) {
+        int hubID = cursor.next(connections / (USERS_PER_HUB + 1) + 1);
+        Session session = Fixtures.connectUser(hubID, "churn", false);
+        Fixtures.disconnect(session);
+    }
+}
@@ -0,0 +1,364 @@
+package loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import model.Settings;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import service.ClientHandler;
+import service.Server;
+import standin.StandInDatabase;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class LoadTest {
+
+    /**
+     * In-process load test: the real server, on the in-memory stand-in database, under load from
+     * simulated hubs and users connected over WebSocket (localhost). Runs offline.
+     *
+     * 1. The server is launched with config.json settings (or defaults) on a free port, and DB_Clients on StandInDatabase.
+     * 2. Hubs log in (120), then users (103). Each user belongs to hub [user number] % [hubs].
+     * 3. The script's phases run one after the other (see Scenario), then results are printed per phase and in total.
+     *
+     * Usage: java -cp target/benchmarks.jar loadtest.LoadTest [options]
+     *   --hubs 100 --usersPerHub 10 --gadgetsPerHub 20  Simulated population
+     *   --script steady                                 Preset (smoke, steady, reconnect, resume) or script
+     *   --config ../config.json                         Server settings (serverPort and debugMode are overridden)
+     *   --dbRoundTripMicros 0                           Simulated DB latency per statement
+     *   --threadMode virtual                            Server threads: platform or virtual (default: from the settings)
+     *   --hubCaps binary --userCaps deflate,batch,seq   Capabilities announced at login (resume is added if the script uses 109)
+     *   --connectRate 500                               New connections per second while connecting
+     *   --maxErrorRate 0.01                             Exit code 1 if the total error rate is higher
+     *
+     * Clients and server share the machine (and the JVM): compare runs of the same setup, not absolute numbers.
+     */
+
+    private static final long TICK_MS = 10;
+    private static final long PING_SECONDS = 20;
+    private static final long LOGIN_TIMEOUT_SECONDS = 60;
+    private static final long DRAIN_SECONDS = 2;
+
+    // Options
+    private int hubs = 100;
+    private int usersPerHub = 10;
+    private int gadgetsPerHub = 20;
+    private String script = "steady";
+    private String configFile = null;
+    private long dbRoundTripMicros = 0;
+    private String threadMode = null;
+    private String hubCaps = "";
+    private String userCaps = "";
+    private int connectRate = 500;
+    private double maxErrorRate = -1;
+
+    private URI serverUri;
+    private WebSocketClient webSocketClient;
+    private ExecutorService connector;
+    private ScheduledExecutorService ticker;
+    private final List<SimulatedHub> simulatedHubs = new ArrayList<>();
+    private final List<SimulatedUser> simulatedUsers = new ArrayList<>();
+    private final Results total = new Results("total", null);
+    private volatile Results results = total;
+    private volatile boolean stopping;
+
+    public static void main(String[] args) {
+        int exitCode;
+        try {
+            exitCode = new LoadTest(args).run();
+        } catch (Exception e) {
+            System.out.println("Load test failed: " + e.getMessage());
+            exitCode = 2;
+        }
+        System.exit(exitCode);
+    }
+
+    private LoadTest(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--hubs":
+                    hubs = Integer.parseInt(value);
+                    break;
+                case "--usersPerHub":
+                    usersPerHub = Integer.parseInt(value);
+                    break;
+                case "--gadgetsPerHub":
+                    gadgetsPerHub = Integer.parseInt(value);
+                    break;
+                case "--script":
+                    script = value;
+                    break;
+                case "--config":
+                    configFile = value;
+                    break;
+                case "--dbRoundTripMicros":
+                    dbRoundTripMicros = Long.parseLong(value);
+                    break;
+                case "--threadMode":
+                    threadMode = value;
+                    break;
+                case "--hubCaps":
+                    hubCaps = value;
+                    break;
+                case "--userCaps":
+                    userCaps = value;
+                    break;
+                case "--connectRate":
+                    connectRate = Integer.parseInt(value);
+                    break;
+                case "--maxErrorRate":
+                    maxErrorRate = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private int run() throws Exception {
+        Scenario scenario = Scenario.parse(script);
+        if (scenario.uses("109") && !Arrays.asList(userCaps.split(",")).contains("resume")) {
+            // Resume tokens (#108) only go to users that opt in
+            userCaps = userCaps.isEmpty() ? "resume" : userCaps + ",resume";
+        }
+        int port = freePort();
+        serverUri = URI.create("ws://localhost:" + port + "/homesome");
+        Settings settings = loadSettings(port);
+        launchServer(settings);
+
+        webSocketClient = new WebSocketClient();
+        webSocketClient.getPolicy().setMaxTextMessageSize(16 * 1024 * 1024);
+        webSocketClient.getPolicy().setMaxBinaryMessageSize(16 * 1024 * 1024);
+        webSocketClient.setMaxIdleTimeout(TimeUnit.MINUTES.toMillis(5));
+        webSocketClient.start();
+        connector = Executors.newFixedThreadPool(32);
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        System.out.println(String.format("Load test: %d hubs, %d users, %d gadgets per hub, %s threads, server on port %d%s",
+                hubs, hubs * usersPerHub, gadgetsPerHub, settings.isVirtualThreadMode() ? "virtual" : "platform", port,
+                settings.isMetricsEnabled() ? String.format(" (metrics: http://localhost:%d/metrics)", port) : ""));
+
+        try {
+            results = new Results("connect", total);
+            connectAll(simulatedHubs);
+            connectAll(simulatedUsers);
+            results.end();
+            results.print(System.out);
+
+            ticker.scheduleAtFixedRate(this::ping, PING_SECONDS, PING_SECONDS, TimeUnit.SECONDS);
+            for (Scenario.Phase phase : scenario.phases) {
+                runPhase(phase);
+            }
+            // Let answers in flight arrive
+            Thread.sleep(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+            total.end();
+            total.print(System.out);
+        } finally {
+            stopping = true;
+            ticker.shutdownNow();
+            connector.shutdownNow();
+            webSocketClient.stop();
+            Server.getInstance().close();
+        }
+        return maxErrorRate >= 0 && total.getErrorRate() > maxErrorRate ? 1 : 0;
+    }
+
+    // ============================================= SETUP ==========================================================
+
+    private Settings loadSettings(int port) throws Exception {
+        JsonObject json = new JsonObject();
+        if (configFile != null) {
+            try (FileReader reader = new FileReader(configFile)) {
+                json = new JsonParser().parse(reader).getAsJsonObject();
+            } catch (IOException e) {
+                throw new Exception("Unable to read settings from " + configFile);
+            }
+        }
+        json.addProperty("serverPort", port);
+        json.addProperty("debugMode", false);
+        if (threadMode != null) {
+            json.addProperty("threadMode", threadMode);
+        }
+        if (!json.has("clientLimit") || json.get("clientLimit").getAsInt() <= 0) {
+            json.addProperty("clientLimit", 200); // Jetty threads
+        }
+        return new Gson().fromJson(json, Settings.class);
+    }
+
+    // Stand-in database with every simulated client, then the server on its own thread
+    private void launchServer(final Settings settings) throws Exception {
+        StandInDatabase database = new StandInDatabase(dbRoundTripMicros);
+        for (int hubID = 0; hubID < hubs; hubID++) {
+            database.addHub(hubID, "hub" + hubID);
+            simulatedHubs.add(new SimulatedHub(this, hubID, gadgetsPerHub, hubCaps));
+        }
+        for (int user = 0; user < hubs * usersPerHub; user++) {
+            database.addUser("user" + user, "pwd" + user, user % hubs, user % 10 == 0);
+            database.addSession("key" + user, "user" + user);
+            simulatedUsers.add(new SimulatedUser(this, user, "key" + user, gadgetsPerHub, userCaps));
+        }
+
+        Server.getInstance().settings = settings;
+        ClientHandler.getInstance().setClientDB(database.newDbClients(settings.getDbPoolSize(), settings.getSessionCacheSize(),
+                settings.getSessionWriteFlushMs()));
+        Thread server = new Thread(() -> Server.getInstance().launch(settings), "server");
+        server.setDaemon(true);
+        server.start();
+
+        // Wait for the server to listen
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", settings.getServerPort()), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new Exception("Server did not start");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Connect at connectRate, then wait for the logins
+    private void connectAll(List<? extends SimulatedClient> clients) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < clients.size(); i++) {
+            long due = start + TimeUnit.SECONDS.toNanos(i) / Math.max(1, connectRate);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            connector.execute(clients.get(i)::connect);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOGIN_TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline && loggedIn(clients) < clients.size()) {
+            Thread.sleep(100);
+        }
+    }
+
+    private static int loggedIn(List<? extends SimulatedClient> clients) {
+        int loggedIn = 0;
+        for (SimulatedClient client : clients) {
+            if (client.isLoggedIn()) {
+                loggedIn++;
+            }
+        }
+        return loggedIn;
+    }
+
+    // ============================================= PHASES =========================================================
+
+    private void runPhase(final Scenario.Phase phase) throws InterruptedException {
+        results = new Results(phase.name, total);
+        final double[] credits = new double[phase.rates.size()];
+        final String[] opcodes = phase.rates.keySet().toArray(new String[0]);
+        final double[] perTick = new double[opcodes.length];
+        for (int i = 0; i < opcodes.length; i++) {
+            perTick[i] = phase.rates.get(opcodes[i]) * TICK_MS / 1000.0;
+        }
+        ScheduledFuture<?> mix = ticker.scheduleAtFixedRate(() -> {
+            for (int i = 0; i < opcodes.length; i++) {
+                credits[i] += perTick[i];
+                while (credits[i] >= 1) {
+                    credits[i]--;
+                    issue(opcodes[i]);
+                }
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(phase.seconds));
+        mix.cancel(false);
+        results.end();
+        results.print(System.out);
+    }
+
+    // One request of the mix, by a random client able to send it
+    private void issue(String opcode) {
+        switch (opcode) {
+            case "315": {
+                SimulatedHub hub = randomOf(simulatedHubs);
+                if (hub.isLoggedIn()) {
+                    hub.event();
+                }
+                break;
+            }
+            case "120":
+                randomOf(simulatedHubs).reconnect("120");
+                break;
+            case "101":
+            case "103":
+            case "109":
+                randomOf(simulatedUsers).reconnect(opcode);
+                break;
+            default: {
+                SimulatedUser user = randomOf(simulatedUsers);
+                if (!user.isReady()) {
+                    break;
+                }
+                if (opcode.equals("301")) {
+                    user.requestAllGadgets();
+                } else if (opcode.equals("311")) {
+                    user.changeState();
+                } else {
+                    user.reportLocation();
+                }
+                break;
+            }
+        }
+    }
+
+    private static <T> T randomOf(List<T> clients) {
+        return clients.get(ThreadLocalRandom.current().nextInt(clients.size()));
+    }
+
+    private void ping() {
+        for (SimulatedClient client : simulatedHubs) {
+            client.ping();
+        }
+        for (SimulatedClient client : simulatedUsers) {
+            client.ping();
+        }
+    }
+
+    // ====================================== USED BY SIMULATED CLIENTS =============================================
+
+    Results results() {
+        return results;
+    }
+
+    URI getServerUri() {
+        return serverUri;
+    }
+
+    WebSocketClient getWebSocketClient() {
+        return webSocketClient;
+    }
+
+    ExecutorService getConnector() {
+        return connector;
+    }
+
+    boolean isStopping() {
+        return stopping;
+    }
+}
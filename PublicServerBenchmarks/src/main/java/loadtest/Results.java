@@ -0,0 +1,171 @@
+package loadtest;
+
+import service.LatencyRecorder;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+class Results {
+
+    /**
+     * Outcome of the simulated clients' requests, per opcode (of the request).
+     *
+     * - sent: requests written to the server
+     * - answered: answers received, each with its end-to-end latency (request written -> answer read by the client)
+     * - failed: error answers (901/902/903), failed writes and failed connects
+     * - lost: sent, but neither answered nor failed (yet)
+     *
+     * Hub events (#315) are answered once per user of the hub (#316), so they have no lost count.
+     * Results of a phase are also added to the results of the whole run (parent).
+     */
+
+    private static final Map<String, String> DESCRIPTIONS = new TreeMap<>();
+
+    static {
+        DESCRIPTIONS.put("101", "Manual user login -> 102");
+        DESCRIPTIONS.put("103", "Automatic user login -> 104");
+        DESCRIPTIONS.put("109", "Session resume -> 110");
+        DESCRIPTIONS.put("120", "Hub login -> 121");
+        DESCRIPTIONS.put("301", "All gadgets -> 304");
+        DESCRIPTIONS.put("302", "Gadgets after login -> 304");
+        DESCRIPTIONS.put("303", "Gadget list from hub");
+        DESCRIPTIONS.put("311", "State change via hub -> 316");
+        DESCRIPTIONS.put("315", "Hub event -> 316 (per user)");
+        DESCRIPTIONS.put("330", "Event replay after resume -> 331/332");
+        DESCRIPTIONS.put("502", "Location -> 503 at hub");
+    }
+
+    private static final String FAN_OUT = "315";
+    private static final String NO_ANSWER = "303"; // Answered by 304 to the user: see 301/302
+
+    private static class OpcodeStats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LatencyRecorder latency = new LatencyRecorder();
+    }
+
+    private final String name;
+    private final Results parent;
+    private final ConcurrentHashMap<String, OpcodeStats> opcodes;
+    private final LongAdder connectFailures;
+    private final LongAdder disconnects;
+    private final long startNanos;
+    private volatile long endNanos;
+
+    Results(String name, Results parent) {
+        this.name = name;
+        this.parent = parent;
+        opcodes = new ConcurrentHashMap<>();
+        connectFailures = new LongAdder();
+        disconnects = new LongAdder();
+        startNanos = System.nanoTime();
+    }
+
+    // ============================================ RECORDING =======================================================
+
+    void sent(String opcode) {
+        statsOf(opcode).sent.increment();
+        if (parent != null) {
+            parent.sent(opcode);
+        }
+    }
+
+    void answered(String opcode, long nanos) {
+        statsOf(opcode).latency.record(nanos);
+        if (parent != null) {
+            parent.answered(opcode, nanos);
+        }
+    }
+
+    void failed(String opcode) {
+        statsOf(opcode).failed.increment();
+        if (parent != null) {
+            parent.failed(opcode);
+        }
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+        if (parent != null) {
+            parent.connectFailed();
+        }
+    }
+
+    // Connection closed by the server (not by the client reconnecting)
+    void disconnected() {
+        disconnects.increment();
+        if (parent != null) {
+            parent.disconnected();
+        }
+    }
+
+    void end() {
+        endNanos = System.nanoTime();
+    }
+
+    // ============================================= REPORT =========================================================
+
+    // Failed and lost requests of all opcodes answered one to one, relative to the requests sent
+    double getErrorRate() {
+        long sent = 0;
+        long errors = 0;
+        for (Map.Entry<String, OpcodeStats> entry : opcodes.entrySet()) {
+            if (!entry.getKey().equals(FAN_OUT)) {
+                OpcodeStats stats = entry.getValue();
+                sent += stats.sent.sum();
+                errors += stats.failed.sum() + lostOf(entry.getKey(), stats);
+            }
+        }
+        return sent == 0 ? 0 : (double) errors / sent;
+    }
+
+    void print(PrintStream out) {
+        double seconds = Math.max(1, (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos) / 1e9;
+        long sent = 0;
+        for (OpcodeStats stats : opcodes.values()) {
+            sent += stats.sent.sum();
+        }
+        out.println();
+        out.println(String.format("== %s: %.1f s, %.0f requests/s, error rate %.3f%%, %d connect failures, %d disconnects",
+                name, seconds, sent / seconds, getErrorRate() * 100, connectFailures.sum(), disconnects.sum()));
+        out.println(String.format("%-6s %-30s %9s %9s %7s %7s %10s %8s %8s %8s %8s %8s",
+                "opcode", "", "sent", "answered", "failed", "lost", "answers/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+        for (Map.Entry<String, OpcodeStats> entry : new TreeMap<>(opcodes).entrySet()) {
+            String opcode = entry.getKey();
+            OpcodeStats stats = entry.getValue();
+            LatencyRecorder latency = stats.latency;
+            out.println(String.format("%-6s %-30s %9d %9d %7d %7s %10.1f %8.2f %8.2f %8.2f %8.2f %8.2f",
+                    opcode, DESCRIPTIONS.containsKey(opcode) ? DESCRIPTIONS.get(opcode) : "",
+                    stats.sent.sum(), latency.getCount(), stats.failed.sum(),
+                    opcode.equals(FAN_OUT) || opcode.equals(NO_ANSWER) ? "-" : String.valueOf(lostOf(opcode, stats)),
+                    latency.getCount() / seconds,
+                    millis(latency.percentile(50)), millis(latency.percentile(90)), millis(latency.percentile(99)),
+                    millis(latency.percentile(99.9)), millis(latency.getMaxMicros())));
+        }
+    }
+
+    // ============================================ UTILITIES =======================================================
+
+    private OpcodeStats statsOf(String opcode) {
+        OpcodeStats stats = opcodes.get(opcode);
+        if (stats == null) {
+            stats = opcodes.computeIfAbsent(opcode, key -> new OpcodeStats());
+        }
+        return stats;
+    }
+
+    private static long lostOf(String opcode, OpcodeStats stats) {
+        if (opcode.equals(FAN_OUT) || opcode.equals(NO_ANSWER)) {
+            return 0;
+        }
+        return Math.max(0, stats.sent.sum() - stats.latency.getCount() - stats.failed.sum());
+    }
+
+    private static double millis(long micros) {
+        return micros / (double) TimeUnit.MILLISECONDS.toMicros(1);
+    }
+}
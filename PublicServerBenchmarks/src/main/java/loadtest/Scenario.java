@@ -0,0 +1,101 @@
+package loadtest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+final class Scenario {
+
+    /**
+     * Script of a load test: phases run one after the other, each with its own mix of requests.
+     *
+     * Script:  [phase];[phase];...
+     * Phase:   [name]=[seconds]s:[opcode]=[per second],[opcode]=[per second],...
+     * E.g.     warmup=10s:315=100,311=20;steady=60s:315=1000,311=200,301=20,502=50
+     *
+     * Rates are for the whole simulated population. Opcodes:
+     * - 315: a hub reports a gadget state change
+     * - 301, 311, 502: a user requests all gadgets, changes a gadget's state, reports its location
+     * - 101, 103, 120: a user (manual or automatic login) or hub drops its connection and logs in again
+     * - 109: a user drops its connection and resumes its session with its resume token (users then announce caps:resume)
+     */
+
+    static final Set<String> OPCODES = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            "101", "103", "109", "120", "301", "311", "315", "502")));
+
+    private static final Map<String, String> PRESETS = new LinkedHashMap<>();
+
+    static {
+        PRESETS.put("smoke", "smoke=10s:315=50,311=10,301=2,502=5");
+        PRESETS.put("steady", "warmup=10s:315=100,311=20,301=5,502=10;steady=60s:315=1000,311=200,301=20,502=50");
+        PRESETS.put("reconnect", "warmup=10s:315=100,311=20;storm=30s:315=500,311=100,103=200,101=10,120=2");
+        PRESETS.put("resume", "warmup=10s:315=100,311=20;storm=30s:315=500,311=100,109=200,101=10,120=2");
+    }
+
+    static final class Phase {
+        final String name;
+        final int seconds;
+        final Map<String, Double> rates; // Opcode -> requests per second
+
+        private Phase(String name, int seconds, Map<String, Double> rates) {
+            this.name = name;
+            this.seconds = seconds;
+            this.rates = rates;
+        }
+    }
+
+    final List<Phase> phases;
+
+    private Scenario(List<Phase> phases) {
+        this.phases = phases;
+    }
+
+    // A preset name (smoke, steady, reconnect, resume) or a script
+    static Scenario parse(String script) {
+        if (PRESETS.containsKey(script)) {
+            script = PRESETS.get(script);
+        }
+        List<Phase> phases = new ArrayList<>();
+        for (String phase : script.split(";")) {
+            if (!phase.trim().isEmpty()) {
+                phases.add(parsePhase(phase.trim()));
+            }
+        }
+        if (phases.isEmpty()) {
+            throw new IllegalArgumentException("Empty script. Presets: " + PRESETS.keySet());
+        }
+        return new Scenario(phases);
+    }
+
+    // Whether any phase sends this opcode
+    boolean uses(String opcode) {
+        for (Phase phase : phases) {
+            if (phase.rates.containsKey(opcode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Phase parsePhase(String phase) {
+        int nameEnd = phase.indexOf('=');
+        int durationEnd = phase.indexOf("s:");
+        if (nameEnd < 1 || durationEnd < nameEnd) {
+            throw new IllegalArgumentException("Invalid phase (expected [name]=[seconds]s:[opcode]=[rate],...): " + phase);
+        }
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (String rate : phase.substring(durationEnd + 2).split(",")) {
+            String[] opcodeAndRate = rate.trim().split("=");
+            if (opcodeAndRate.length != 2 || !OPCODES.contains(opcodeAndRate[0])) {
+                throw new IllegalArgumentException("Invalid rate '" + rate + "' in phase " + phase + ". Opcodes: " + OPCODES);
+            }
+            rates.put(opcodeAndRate[0], Double.parseDouble(opcodeAndRate[1]));
+        }
+        return new Phase(phase.substring(0, nameEnd), Integer.parseInt(phase.substring(nameEnd + 1, durationEnd)), rates);
+    }
+}
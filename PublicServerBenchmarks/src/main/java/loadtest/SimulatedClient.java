@@ -0,0 +1,184 @@
+package loadtest;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import service.HoSoMessage;
+
+import java.util.concurrent.TimeUnit;
+
+abstract class SimulatedClient implements WebSocketListener {
+
+    /**
+     * A hub or user: one WebSocket connection to the server under test at a time.
+     *
+     * The client logs in as soon as it is connected, and is logged in once the login is confirmed.
+     * Error answers (901/902) carry no request, so they count against the last request sent.
+     * A reconnect closes the connection, and connects and logs in again once it is closed.
+     */
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    protected final LoadTest test;
+    private volatile Session session;
+    private volatile boolean loggedIn;
+    private volatile boolean reconnecting;
+    private volatile String loginOpcode;
+    private volatile long loginStart;
+    private volatile String lastSent;
+
+    SimulatedClient(LoadTest test, String loginOpcode) {
+        this.test = test;
+        this.loginOpcode = loginOpcode;
+    }
+
+    // Login request, e.g. 120::12::1234::my house
+    protected abstract String loginMessage(String loginOpcode);
+
+    // Called when the login is confirmed (102, 104 or 121)
+    protected abstract void loggedIn(HoSoMessage confirmation, long now);
+
+    // Any other message from the server
+    protected abstract void receive(HoSoMessage message, long now);
+
+    // Text of a binary frame from the server
+    protected abstract String decode(byte[] frame, int offset, int length) throws Exception;
+
+    // Called when a request is answered with an error
+    protected void failed(String opcode) {
+    }
+
+    // Write a message. Binary clients override.
+    protected void write(Session session, String msg, WriteCallback callback) {
+        session.getRemote().sendString(msg, callback);
+    }
+
+    // ============================================ CONNECTION ======================================================
+
+    // Blocks until connected (run on the load test's connector threads)
+    void connect() {
+        try {
+            test.getWebSocketClient().connect(this, test.getServerUri()).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            test.results().connectFailed();
+            test.results().sent(loginOpcode);
+            test.results().failed(loginOpcode);
+        }
+    }
+
+    // Drop the connection and log in again, e.g. with 103 instead of 101. Returns false if not logged in.
+    boolean reconnect(String loginOpcode) {
+        Session session = this.session;
+        if (!loggedIn || session == null || reconnecting) {
+            return false;
+        }
+        this.loginOpcode = loginOpcode;
+        reconnecting = true;
+        loggedIn = false;
+        session.close();
+        return true;
+    }
+
+    boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    // Keeps the session from idling out on the server
+    void ping() {
+        send(null, "ping");
+    }
+
+    // Opcode: counted as sent (null: not counted, e.g. replies of hubs)
+    protected boolean send(final String opcode, String msg) {
+        Session session = this.session;
+        if (session == null || !session.isOpen()) {
+            if (opcode != null) {
+                test.results().sent(opcode);
+                test.results().failed(opcode);
+            }
+            return false;
+        }
+        if (opcode != null) {
+            lastSent = opcode;
+            test.results().sent(opcode);
+        }
+        write(session, msg, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable e) {
+                if (opcode != null) {
+                    test.results().failed(opcode);
+                }
+            }
+
+            @Override
+            public void writeSuccess() {
+            }
+        });
+        return true;
+    }
+
+    // ========================================== WEBSOCKET EVENTS ==================================================
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        this.session = session;
+        loginStart = System.nanoTime();
+        send(loginOpcode, loginMessage(loginOpcode));
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        long now = System.nanoTime();
+        HoSoMessage msg = HoSoMessage.parse(message);
+        switch (msg.opcode()) {
+            case "102":
+            case "104":
+            case "110":
+            case "121":
+                loggedIn = true;
+                test.results().answered(loginOpcode, now - loginStart);
+                loggedIn(msg, now);
+                break;
+            case "903": // Login failed. The server closes the session
+                test.results().failed(loginOpcode);
+                break;
+            case "901":
+            case "902":
+                String opcode = lastSent;
+                if (opcode != null) {
+                    test.results().failed(opcode);
+                    failed(opcode);
+                }
+                break;
+            default:
+                receive(msg, now);
+                break;
+        }
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+        try {
+            onWebSocketText(decode(payload, offset, len));
+        } catch (Exception e) {
+            test.results().failed("binary");
+        }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        session = null;
+        loggedIn = false;
+        if (reconnecting) {
+            reconnecting = false;
+            test.getConnector().execute(this::connect);
+        } else if (!test.isStopping()) {
+            test.results().disconnected();
+        }
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        // Followed by onWebSocketClose
+    }
+}
@@ -0,0 +1,108 @@
+package loadtest;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import service.HoSoBinaryCodec;
+import service.HoSoBuilder;
+import service.HoSoMessage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+class SimulatedHub extends SimulatedClient {
+
+    /**
+     * A hub with a fixed table of gadgets, answering the server at once:
+     * - 302 (gadgets for a user) with its gadget list (303)
+     * - 312 (state change from a user) with the new state as its own report (315)
+     * - 371 (gadget groups) with 372, and 402 (alias change) with 403
+     * - 503 (user location) completes the user's 502: its send time travels in the longitude field
+     *
+     * Hub events (315) carry their send time in the state, h[nanoTime], so every user receiving
+     * the 316 can record the fan-out latency.
+     *
+     * With caps:binary, the hub writes binary frames once its login is confirmed in a binary frame.
+     */
+
+    final int hubID;
+    final String password;
+    private final int gadgets;
+    private final String caps;
+    private volatile boolean binary;
+
+    SimulatedHub(LoadTest test, int hubID, int gadgets, String caps) {
+        super(test, "120");
+        this.hubID = hubID;
+        this.password = "hub" + hubID;
+        this.gadgets = gadgets;
+        this.caps = caps;
+    }
+
+    @Override
+    protected String loginMessage(String loginOpcode) {
+        binary = false;
+        HoSoBuilder login = new HoSoBuilder("120").add(hubID).add(password).add("Hub " + hubID);
+        if (!caps.isEmpty()) {
+            login.add("caps:" + caps);
+        }
+        return login.build();
+    }
+
+    @Override
+    protected void loggedIn(HoSoMessage confirmation, long now) {
+    }
+
+    // Gadget state change, reported by the hub
+    void event() {
+        int gadget = 1 + ThreadLocalRandom.current().nextInt(gadgets);
+        send("315", new HoSoBuilder("315").add(gadget).add("h" + System.nanoTime()).build());
+    }
+
+    @Override
+    protected void receive(HoSoMessage message, long now) {
+        switch (message.opcode()) {
+            case "302":
+                send("303", gadgetList(message.intField(1)));
+                break;
+            case "312":
+                send(null, new HoSoBuilder("315").add(message.field(1)).add(message.field(2)).build());
+                break;
+            case "371":
+                send(null, new HoSoBuilder("372").add(message.field(1)).add("Living room:1:2:3").add("Kitchen:4:5").build());
+                break;
+            case "402":
+                send(null, new HoSoBuilder("403").add(message.field(2)).add(message.field(3)).build());
+                break;
+            case "503":
+                test.results().answered("502", now - Long.parseLong(message.field(2)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    protected String decode(byte[] frame, int offset, int length) throws Exception {
+        binary = true;
+        return HoSoBinaryCodec.decode(frame, offset, length);
+    }
+
+    @Override
+    protected void write(Session session, String msg, WriteCallback callback) {
+        byte[] frame = binary ? HoSoBinaryCodec.encode(msg) : null;
+        if (frame != null) {
+            session.getRemote().sendBytes(ByteBuffer.wrap(frame), callback);
+        } else {
+            super.write(session, msg, callback);
+        }
+    }
+
+    // 303::[targetSessionID]::[count]::([id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec])*
+    private String gadgetList(int targetSessionID) {
+        HoSoBuilder list = new HoSoBuilder("303", 32 + gadgets * 40).add(targetSessionID).add(gadgets);
+        for (int gadget = 1; gadget <= gadgets; gadget++) {
+            list.add(gadget).add("Gadget " + gadget).add(gadget % 3 == 0 ? "SENSOR" : "SWITCH").add("%.1f").add(gadget % 2).add(30);
+        }
+        return list.build();
+    }
+}
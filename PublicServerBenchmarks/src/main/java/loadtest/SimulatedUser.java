@@ -0,0 +1,203 @@
+package loadtest;
+
+import service.HoSoBuilder;
+import service.HoSoMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Inflater;
+
+class SimulatedUser extends SimulatedClient {
+
+    /**
+     * A phone or browser of one hub's household.
+     *
+     * After login, the server sends the hub's gadgets on the user's behalf (302 -> 304). The user
+     * is ready for requests once they have arrived. Answers are matched to requests as follows:
+     * - 301: 304s come in the order requested, so their send times are queued
+     * - 311: the new state is u[nanoTime]-[user number]. The user's own 316 (or 317) completes it
+     * - 502: completed by the hub receiving the 503, see SimulatedHub
+     *
+     * Resume token (caps:resume): from #108 at login, and #110 when resumed (109). A resumed user does not reload its gadgets.
+     * With caps:seq, hub events arrive as 318::[seq]::[event], and a resumed user asks for the events it missed
+     * (330::[last seq]). The replay ends with #331, or with #332 (too many missed), after which the user reloads (301).
+     *
+     * With caps:deflate, large messages arrive as raw DEFLATE binary frames. With caps:batch,
+     * state updates may arrive as 317::[count]::[gadgetID]::[state]...
+     */
+
+    final int number;
+    final String nameID;
+    final String password;
+    private final int gadgets;
+    private final String caps;
+    private volatile String sessionKey;
+    private volatile String resumeToken = "";
+    private volatile long lastSeq = -1;
+    private volatile long replayRequestedAt; // 0 when no replay is in progress
+    private volatile boolean ready;
+    private volatile long loggedInAt;
+    private final ConcurrentLinkedQueue<Long> gadgetRequests;
+    private final String stateSuffix;
+    private final Inflater inflater;
+
+    SimulatedUser(LoadTest test, int number, String sessionKey, int gadgets, String caps) {
+        super(test, "103");
+        this.number = number;
+        this.nameID = "user" + number;
+        this.password = "pwd" + number;
+        this.sessionKey = sessionKey;
+        this.gadgets = gadgets;
+        this.caps = caps;
+        gadgetRequests = new ConcurrentLinkedQueue<>();
+        stateSuffix = "-" + number;
+        inflater = new Inflater(true);
+    }
+
+    @Override
+    protected String loginMessage(String loginOpcode) {
+        ready = false;
+        replayRequestedAt = 0;
+        gadgetRequests.clear();
+        HoSoBuilder login = loginOpcode.equals("109") ? new HoSoBuilder("109").add(resumeToken)
+                : new HoSoBuilder(loginOpcode).add(nameID).add(loginOpcode.equals("101") ? password : sessionKey);
+        if (!caps.isEmpty()) {
+            login.add("caps:" + caps);
+        }
+        return login.build();
+    }
+
+    @Override
+    protected void loggedIn(HoSoMessage confirmation, long now) {
+        if (confirmation.opcode().equals("110")) {
+            // 110::resumeToken::graceSeconds: the gadgets loaded before are still valid
+            resumeToken = confirmation.field(1);
+            ready = true;
+            if (lastSeq >= 0) {
+                replayRequestedAt = now;
+                send("330", new HoSoBuilder("330").add(String.valueOf(lastSeq)).build());
+            }
+            return;
+        }
+        if (confirmation.opcode().equals("102")) {
+            // 102::nameID::isAdmin::hubAlias::sessionKey
+            sessionKey = confirmation.field(4);
+        }
+        loggedInAt = now;
+        test.results().sent("302");
+    }
+
+    boolean isReady() {
+        return ready && isLoggedIn();
+    }
+
+    // #301
+    void requestAllGadgets() {
+        gadgetRequests.add(System.nanoTime());
+        if (!send("301", "301")) {
+            gadgetRequests.poll();
+        }
+    }
+
+    // #311
+    void changeState() {
+        int gadget = 1 + ThreadLocalRandom.current().nextInt(gadgets);
+        send("311", new HoSoBuilder("311").add(gadget).add("u" + System.nanoTime() + stateSuffix).build());
+    }
+
+    // #502
+    void reportLocation() {
+        send("502", new HoSoBuilder("502").add(String.valueOf(System.nanoTime())).add("59.3293").build());
+    }
+
+    @Override
+    protected void failed(String opcode) {
+        if (opcode.equals("301")) {
+            gadgetRequests.poll();
+        } else if (opcode.equals("330")) {
+            replayRequestedAt = 0;
+        }
+    }
+
+    @Override
+    protected void receive(HoSoMessage message, long now) {
+        switch (message.opcode()) {
+            case "108":
+                resumeToken = message.field(1);
+                break;
+            case "318":
+                // 318::seq::[event]
+                lastSeq = Math.max(lastSeq, Long.parseLong(message.field(1)));
+                if (replayRequestedAt == 0) {
+                    // Live event (replayed ones are not counted as answers again)
+                    receive(HoSoMessage.parse(message.fieldsFrom(2)), now);
+                }
+                break;
+            case "331":
+                replayDone(now);
+                break;
+            case "332":
+                replayDone(now);
+                lastSeq = Long.parseLong(message.field(1));
+                requestAllGadgets();
+                break;
+            case "304":
+                if (!ready) {
+                    ready = true;
+                    test.results().answered("302", now - loggedInAt);
+                } else {
+                    Long requested = gadgetRequests.poll();
+                    if (requested != null) {
+                        test.results().answered("301", now - requested);
+                    }
+                }
+                break;
+            case "316":
+                stateUpdate(message.field(2), now);
+                break;
+            case "317":
+                int count = message.intField(1);
+                for (int update = 0; update < count; update++) {
+                    stateUpdate(message.field(3 + update * 2), now);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void replayDone(long now) {
+        if (replayRequestedAt != 0) {
+            test.results().answered("330", now - replayRequestedAt);
+            replayRequestedAt = 0;
+        }
+    }
+
+    // h[nanoTime]: hub event. u[nanoTime]-[user number]: state change requested by a user
+    private void stateUpdate(String state, long now) {
+        if (state.startsWith("h")) {
+            test.results().answered("315", now - Long.parseLong(state.substring(1)));
+        } else if (state.startsWith("u") && state.endsWith(stateSuffix)) {
+            test.results().answered("311", now - Long.parseLong(state.substring(1, state.length() - stateSuffix.length())));
+        }
+    }
+
+    // Compressed message (caps:deflate)
+    @Override
+    protected synchronized String decode(byte[] frame, int offset, int length) throws Exception {
+        inflater.reset();
+        inflater.setInput(frame, offset, length);
+        ByteArrayOutputStream text = new ByteArrayOutputStream(length * 4);
+        byte[] buffer = new byte[4096];
+        while (!inflater.finished()) {
+            int inflated = inflater.inflate(buffer);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            text.write(buffer, 0, inflated);
+        }
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,84 @@
+package standin;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class FakeSessions {
+
+    /**
+     * WebSocket sessions without a network, for benchmarks of ClientHandler and SessionSender.
+     *
+     * Writes complete at once (the write callback is called from within the send), and only
+     * the number of frames and characters written is kept. Proxies, so they work against any
+     * Jetty 9.x WebSocket API version.
+     */
+
+    private static final AtomicInteger nextPort = new AtomicInteger(1024);
+
+    public static final LongAdder framesWritten = new LongAdder();
+    public static final LongAdder charactersWritten = new LongAdder();
+
+    private FakeSessions() {
+    }
+
+    public static Session newSession() {
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 1024 + nextPort.getAndIncrement() % 60000);
+        final RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(FakeSessions.class.getClassLoader(),
+                new Class<?>[]{RemoteEndpoint.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("sendString") && args.length == 2) {
+                            framesWritten.increment();
+                            charactersWritten.add(((String) args[0]).length());
+                            ((WriteCallback) args[1]).writeSuccess();
+                        } else if (method.getName().equals("sendBytes") && args.length == 2) {
+                            framesWritten.increment();
+                            ((WriteCallback) args[1]).writeSuccess();
+                        } else if (method.getName().equals("getInetSocketAddress")) {
+                            return address;
+                        }
+                        return null;
+                    }
+                });
+        return (Session) Proxy.newProxyInstance(FakeSessions.class.getClassLoader(),
+                new Class<?>[]{Session.class}, new InvocationHandler() {
+                    private volatile boolean open = true;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "getRemote":
+                                return remote;
+                            case "getRemoteAddress":
+                                return address;
+                            case "isOpen":
+                                return open;
+                            case "close":
+                            case "disconnect":
+                                open = false;
+                                return null;
+                            case "getIdleTimeout":
+                                return 0L;
+                            case "isSecure":
+                                return false;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return "FakeSession " + address;
+                            default:
+                                return null;
+                        }
+                    }
+                });
+    }
+}
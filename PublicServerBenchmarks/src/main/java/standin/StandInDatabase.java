@@ -0,0 +1,294 @@
+package standin;
+
+import DAO.ConnectionPool;
+import DAO.DB_Clients;
+import DAO.SessionKeyCache;
+import DAO.SessionKeyWriter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class StandInDatabase {
+
+    /**
+     * In-memory stand-in for the hoso MySQL database, at the JDBC level.
+     *
+     * Connections, prepared statements and result sets are dynamic proxies answering the
+     * statements DB_Clients and SessionKeyWriter issue (client_user, client_hub, client_session).
+     * Everything above JDBC (ConnectionPool, statement cache, SessionKeyCache, SessionKeyWriter)
+     * is the real code, so benchmarks and load tests exercise the server's own DB path.
+     *
+     * Each statement execution can be delayed by a simulated round trip (roundTripMicros).
+     */
+
+    private static class User {
+        private final String password;
+        private final int hubID;
+        private final boolean admin;
+
+        private User(String password, int hubID, boolean admin) {
+            this.password = password;
+            this.hubID = hubID;
+            this.admin = admin;
+        }
+    }
+
+    private final ConcurrentHashMap<String, User> users;
+    private final ConcurrentHashMap<Integer, String> hubs;
+    private final ConcurrentHashMap<String, String> sessions; // sessionKey -> nameId
+    private final long roundTripMicros;
+
+    public StandInDatabase(long roundTripMicros) {
+        this.roundTripMicros = roundTripMicros;
+        users = new ConcurrentHashMap<>();
+        hubs = new ConcurrentHashMap<>();
+        sessions = new ConcurrentHashMap<>();
+    }
+
+    public void addHub(int hubID, String password) {
+        hubs.put(hubID, password);
+    }
+
+    public void addUser(String nameID, String password, int hubID, boolean admin) {
+        users.put(nameID, new User(password, hubID, admin));
+    }
+
+    public void addSession(String sessionKey, String nameID) {
+        sessions.put(sessionKey, nameID);
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // DB_Clients on this database: real pool, session key cache and batched writer
+    public DB_Clients newDbClients(int poolSize, int sessionCacheSize, long writeFlushMs) {
+        ConnectionPool pool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection create() throws SQLException {
+                return newConnection();
+            }
+        }, poolSize, 5000);
+        return new DB_Clients(pool, new SessionKeyCache(sessionCacheSize, 300 * 1000),
+                new SessionKeyWriter(pool, writeFlushMs, 100));
+    }
+
+    public Connection newConnection() {
+        return proxy(Connection.class, new ConnectionHandler());
+    }
+
+    // ============================================ STATEMENTS =====================================================
+
+    private List<Object[]> query(String sql, Map<Integer, Object> params) throws SQLException {
+        roundTrip();
+        if (sql.contains("FROM hoso.client_user WHERE nameId = ?")) {
+            User user = users.get((String) params.get(1));
+            if (user != null && user.password.equals(params.get(2))) {
+                return Collections.singletonList(new Object[]{user.hubID, user.admin});
+            }
+            return Collections.emptyList();
+        }
+        if (sql.contains("FROM hoso.client_session s JOIN hoso.client_user u")) {
+            String nameID = sessions.get((String) params.get(1));
+            User user = nameID == null ? null : users.get(nameID);
+            if (user != null && nameID.equals(params.get(2))) {
+                return Collections.singletonList(new Object[]{user.hubID, user.admin});
+            }
+            return Collections.emptyList();
+        }
+        if (sql.contains("FROM hoso.client_hub WHERE hubId = ?")) {
+            String password = hubs.get((Integer) params.get(1));
+            if (password != null && password.equals(params.get(2))) {
+                return Collections.singletonList(new Object[]{params.get(1), password});
+            }
+            return Collections.emptyList();
+        }
+        throw new SQLException("Stand-in database: unsupported query " + sql);
+    }
+
+    private int update(String sql, Map<Integer, Object> params) throws SQLException {
+        if (sql.startsWith("INSERT INTO hoso.client_session")) {
+            return sessions.putIfAbsent((String) params.get(1), (String) params.get(2)) == null ? 1 : 0;
+        }
+        if (sql.contains("client_session WHERE sessionKey = ?")) {
+            return sessions.remove((String) params.get(1)) != null ? 1 : 0;
+        }
+        if (sql.contains("client_session WHERE client_user_nameId = ?")) {
+            int removed = 0;
+            Iterator<Map.Entry<String, String>> entries = sessions.entrySet().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().getValue().equals(params.get(1))) {
+                    entries.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+        throw new SQLException("Stand-in database: unsupported update " + sql);
+    }
+
+    private void roundTrip() {
+        if (roundTripMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(roundTripMicros));
+        }
+    }
+
+    // ============================================ JDBC PROXIES ===================================================
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StandInDatabase.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private volatile boolean closed;
+        private boolean autoCommit = true;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return StandInDatabase.proxy(PreparedStatement.class, new StatementHandler((String) args[0]));
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "getAutoCommit":
+                    return autoCommit;
+                case "commit":
+                    roundTrip();
+                    return null;
+                case "rollback":
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "isValid":
+                    return !closed;
+                case "close":
+                    closed = true;
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StandInConnection";
+                default:
+                    return defaultValue(method);
+            }
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final String sql;
+        private final Map<Integer, Object> params = new ConcurrentHashMap<>();
+        private final List<Map<Integer, Object>> batch = new ArrayList<>();
+
+        private StatementHandler(String sql) {
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "setString":
+                case "setInt":
+                    params.put((Integer) args[0], args[1]);
+                    return null;
+                case "executeQuery":
+                    return StandInDatabase.proxy(ResultSet.class, new ResultSetHandler(query(sql, params)));
+                case "executeUpdate":
+                    roundTrip();
+                    return update(sql, params);
+                case "addBatch":
+                    batch.add(new ConcurrentHashMap<>(params));
+                    return null;
+                case "executeBatch":
+                    roundTrip();
+                    int[] results = new int[batch.size()];
+                    for (int i = 0; i < results.length; i++) {
+                        results[i] = update(sql, batch.get(i));
+                    }
+                    batch.clear();
+                    return results;
+                case "clearBatch":
+                    batch.clear();
+                    return null;
+                case "clearParameters":
+                    params.clear();
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return sql;
+                default:
+                    return defaultValue(method);
+            }
+        }
+    }
+
+    // Rows of the queries above: [client_hub_hubId / hubId, isAdmin / pass]
+    private static class ResultSetHandler implements InvocationHandler {
+        private final List<Object[]> rows;
+        private int row = -1;
+
+        private ResultSetHandler(List<Object[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    row++;
+                    return row < rows.size();
+                case "getInt":
+                    return (Integer) column(args[0]);
+                case "getBoolean":
+                    return (Boolean) column(args[0]);
+                case "getString":
+                    return String.valueOf(column(args[0]));
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return defaultValue(method);
+            }
+        }
+
+        private Object column(Object column) {
+            if (column instanceof Integer) {
+                return rows.get(row)[(Integer) column - 1];
+            }
+            String name = (String) column;
+            return rows.get(row)[name.equals("client_hub_hubId") || name.equals("hubId") ? 0 : 1];
+        }
+    }
+}
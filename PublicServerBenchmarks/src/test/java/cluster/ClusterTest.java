@@ -0,0 +1,216 @@
+package cluster;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ClusterTest {
+
+    /**
+     * Two nodes on localhost, in this JVM, each in a class loader of its own (see ClusterTestNode).
+     * The hub logs in to node 0 and its user to node 1, so everything between them crosses the node link:
+     * - the #302 on the user's behalf at login goes to the hub's node and on to the hub, its #304 comes back
+     * - a state change of the hub (#315) reaches the user as #316
+     * - a later #301 is answered by the hub's node with the changed state
+     */
+
+    private static final String SECRET = "cluster-test";
+    private static final long WAIT_SECONDS = 30;
+
+    // 303::[targetSessionID]::[count]::([id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec])*
+    private static final String GADGETS = "2::1::Lamp::SWITCH::%.1f::0::30::2::Heater::SWITCH::%.1f::0::30";
+
+    private final URLClassLoader[] nodes = new URLClassLoader[2];
+    private final int[] ports = new int[2];
+    private WebSocketClient webSocketClient;
+
+    @Before
+    public void setUp() throws Exception {
+        ports[0] = freePort();
+        ports[1] = freePort();
+        startNode(0, ports[1]);
+        startNode(1, ports[0]);
+        waitFor("node link", () -> Math.min(call(0, "getLinkCount"), call(1, "getLinkCount")), 1);
+
+        webSocketClient = new WebSocketClient();
+        webSocketClient.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (webSocketClient != null) {
+            webSocketClient.stop();
+        }
+        for (int node = 0; node < nodes.length; node++) {
+            if (nodes[node] != null) {
+                call(node, "stop");
+                nodes[node].close();
+            }
+        }
+    }
+
+    @Test
+    public void gadgetListsAndEventsCrossTheNodeLink() throws Exception {
+        TestClient hub = connect(0);
+        hub.send("120::" + ClusterTestNode.HUB_ID + "::" + ClusterTestNode.HUB_PASSWORD + "::My house");
+        hub.expect("121");
+        waitFor("hub announcement", () -> call(1, "getRemoteHubCount"), 1);
+
+        TestClient user = connect(1);
+        user.send("103::" + ClusterTestNode.USER + "::" + ClusterTestNode.SESSION_KEY);
+        user.expect("104");
+        String[] request = hub.expect("302");
+        hub.send("303::" + request[1] + "::" + GADGETS);
+        assertEquals("0", stateOf(user.expect("304"), "1"));
+
+        hub.send("315::1::1");
+        String[] update = user.expect("316");
+        assertEquals("1", update[1]);
+        assertEquals("1", update[2]);
+
+        user.send("301");
+        assertEquals("1", stateOf(user.expect("304"), "1"));
+    }
+
+    // ============================================ NODES ===========================================================
+
+    private void startNode(int node, int peerPort) throws Exception {
+        String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+        List<URL> urls = new ArrayList<>();
+        for (String entry : classPath.split(File.pathSeparator)) {
+            if (!entry.isEmpty()) {
+                urls.add(new File(entry).toURI().toURL());
+            }
+        }
+        // Not delegating to the class path loader: the node gets its own copy of every class but the JDK's
+        nodes[node] = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+        String settings = "{\"serverPort\": " + ports[node] + ", \"debugMode\": false, \"clientLimit\": 64,"
+                + " \"clusterEnabled\": true, \"clusterNodeID\": " + node + ","
+                + " \"clusterPeers\": [\"localhost:" + peerPort + "\"], \"clusterSecret\": \"" + SECRET + "\"}";
+        call(node, "start", settings);
+    }
+
+    // Static method of the node's ClusterTestNode. Threads it starts inherit the node's class loader as context loader.
+    private int call(int node, String name, Object... args) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(nodes[node]);
+        try {
+            Class<?> type = Class.forName(ClusterTestNode.class.getName(), true, nodes[node]);
+            for (Method method : type.getMethods()) {
+                if (method.getName().equals(name)) {
+                    Object result = method.invoke(null, args);
+                    return result instanceof Integer ? (Integer) result : 0;
+                }
+            }
+            throw new IllegalArgumentException("No method " + name);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Node " + node + ": " + name + " failed", e);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private static void waitFor(String what, IntSupplier actual, int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+        while (actual.getAsInt() != expected) {
+            if (System.nanoTime() > deadline) {
+                fail("No " + what + " within " + WAIT_SECONDS + " s");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // State of a gadget in a #304: 304::[count]::([id]::[alias]::[type]::[valueTemplate]::[state]::[pollDelaySec])*
+    private static String stateOf(String[] gadgets, String gadgetID) {
+        for (int field = 2; field + 5 < gadgets.length; field += 6) {
+            if (gadgets[field].equals(gadgetID)) {
+                return gadgets[field + 4];
+            }
+        }
+        throw new AssertionError("Gadget " + gadgetID + " not in " + String.join("::", gadgets));
+    }
+
+    // ============================================ CLIENTS =========================================================
+
+    private TestClient connect(int node) throws Exception {
+        TestClient client = new TestClient();
+        webSocketClient.connect(client, URI.create("ws://localhost:" + ports[node] + "/homesome")).get(WAIT_SECONDS, TimeUnit.SECONDS);
+        return client;
+    }
+
+    // A hub or user sending from the test thread. Messages from the server are queued for expect()
+    private static final class TestClient implements WebSocketListener {
+        private final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private volatile Session session;
+
+        void send(String msg) throws IOException {
+            session.getRemote().sendString(msg);
+        }
+
+        // Fields of the next message with this opcode. Others before it are skipped.
+        String[] expect(String opcode) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+            while (true) {
+                String msg = received.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (msg == null) {
+                    throw new AssertionError("No #" + opcode + " within " + WAIT_SECONDS + " s");
+                }
+                String[] fields = msg.split("::", -1);
+                if (fields[0].equals(opcode)) {
+                    return fields;
+                }
+                if (fields[0].equals("901") || fields[0].equals("902")) {
+                    throw new AssertionError("Expected #" + opcode + ", got " + msg);
+                }
+            }
+        }
+
+        @Override
+        public void onWebSocketConnect(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onWebSocketText(String message) {
+            received.add(message);
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int length) {
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason) {
+        }
+
+        @Override
+        public void onWebSocketError(Throwable cause) {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package cluster;
+
+import com.google.gson.Gson;
+import model.Settings;
+import service.ClientHandler;
+import service.ClusterNode;
+import service.Server;
+import standin.StandInDatabase;
+
+public class ClusterTestNode {
+
+    /**
+     * One server node of ClusterTest. Each node is loaded by a class loader of its own, so the server's
+     * singletons are per node, and is called by reflection (see ClusterTest). Like the database of a real
+     * cluster, the stand-in database of every node has the same hub and user.
+     */
+
+    public static final int HUB_ID = 7;
+    public static final String HUB_PASSWORD = "hub7";
+    public static final String USER = "user7";
+    public static final String SESSION_KEY = "key7";
+
+    public static void start(String settingsJson) {
+        final Settings settings = new Gson().fromJson(settingsJson, Settings.class);
+        StandInDatabase database = new StandInDatabase(0);
+        database.addHub(HUB_ID, HUB_PASSWORD);
+        database.addUser(USER, "pwd7", HUB_ID, true);
+        database.addSession(SESSION_KEY, USER);
+
+        Server.getInstance().settings = settings;
+        ClientHandler.getInstance().setClientDB(database.newDbClients(settings.getDbPoolSize(), settings.getSessionCacheSize(),
+                settings.getSessionWriteFlushMs()));
+        Thread server = new Thread(() -> Server.getInstance().launch(settings), "server-node-" + settings.getClusterNodeID());
+        server.setDaemon(true);
+        server.start();
+    }
+
+    // Authenticated links to other nodes
+    public static int getLinkCount() {
+        return ClusterNode.getInstance().getLinkCount();
+    }
+
+    // Hubs known to be on other nodes
+    public static int getRemoteHubCount() {
+        return ClusterNode.getInstance().getRemoteHubCount();
+    }
+
+    public static void stop() {
+        Server.getInstance().close();
+    }
+}